@@ -60,24 +60,35 @@ public interface AlignmentsProvider {
         }
 
         public static AlignmentsProvider createProvider(final String file, final VDJCLibraryRegistry geneResolver) {
-            return new VDJCAlignmentsReaderWrapper(new Factory<VDJCAlignmentsReader>() {
-                @Override
-                public VDJCAlignmentsReader create() {
-                    try {
-                        return new VDJCAlignmentsReader(file, geneResolver);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            });
+            return createProvider(new File(file), geneResolver, 1);
         }
 
         public static AlignmentsProvider createProvider(final File file, final VDJCLibraryRegistry geneResolver) {
+            return createProvider(file, geneResolver, 1);
+        }
+
+        /**
+         * Creates provider, that decodes alignments using specified number of threads (see {@link
+         * VDJCAlignmentsReader#setDecodingThreads(int)}).
+         */
+        public static AlignmentsProvider createProvider(final String file, final VDJCLibraryRegistry geneResolver,
+                                                        final int decodingThreads) {
+            return createProvider(new File(file), geneResolver, decodingThreads);
+        }
+
+        /**
+         * Creates provider, that decodes alignments using specified number of threads (see {@link
+         * VDJCAlignmentsReader#setDecodingThreads(int)}).
+         */
+        public static AlignmentsProvider createProvider(final File file, final VDJCLibraryRegistry geneResolver,
+                                                        final int decodingThreads) {
             return new VDJCAlignmentsReaderWrapper(new Factory<VDJCAlignmentsReader>() {
                 @Override
                 public VDJCAlignmentsReader create() {
                     try {
-                        return new VDJCAlignmentsReader(file, geneResolver);
+                        VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, geneResolver);
+                        reader.setDecodingThreads(decodingThreads);
+                        return reader;
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
@@ -5,29 +5,70 @@ import com.milaboratory.mixcr.util.TempFileManager;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.PriorityQueue;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.milaboratory.mixcr.assembler.ReadToCloneMapping.*;
 
 /**
+ * Index file with mapping between alignments and clones.
+ *
+ * File is memory-mapped on open, so all methods and ports created by this class are thread-safe and lock-free.
+ *
  * @author Stanislav Poslavsky
  */
 public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closeable {
     public static final int MAGIC = 0x95bf97e3;
 
+    /**
+     * Max number of records in a single mapped segment of the file (segment size is ~2Gb)
+     */
+    static final int MAX_SEGMENT_SIZE_RECORDS = Integer.MAX_VALUE / RECORD_SIZE;
+
+    /**
+     * Alignment id of each SPARSE_INDEX_STEP-th record in "by alignment id" section is kept in memory to narrow
+     * binary search to a single page of the file
+     */
+    static final int SPARSE_INDEX_STEP = 256;
+
     final RandomAccessFile raf;
     final int cloneCount;
     final long alignmentCount;
     final long[] cloneOffsets;
     final long lastOffset;
+    // Records starting from offset 4, each segment contains segmentSizeRecords records
+    final ByteBuffer[] segments;
+    final int segmentSizeRecords;
+    // Lazily built sparse index of "by alignment id" section
+    private volatile long[] sparseIndex;
+
+    public AlignmentsToClonesMappingContainer(RandomAccessFile raf, int cloneCount, long alignmentCount, long[] cloneOffsets, long lastOffset) throws IOException {
+        this(raf, cloneCount, alignmentCount, cloneOffsets, lastOffset, MAX_SEGMENT_SIZE_RECORDS);
+    }
 
-    public AlignmentsToClonesMappingContainer(RandomAccessFile raf, int cloneCount, long alignmentCount, long[] cloneOffsets, long lastOffset) {
+    AlignmentsToClonesMappingContainer(RandomAccessFile raf, int cloneCount, long alignmentCount, long[] cloneOffsets,
+                                       long lastOffset, int segmentSizeRecords) throws IOException {
         this.raf = raf;
         this.cloneCount = cloneCount;
         this.alignmentCount = alignmentCount;
         this.cloneOffsets = cloneOffsets;
         this.lastOffset = lastOffset;
+        this.segmentSizeRecords = segmentSizeRecords;
+
+        // Mapping both sections of the file
+        final long totalRecords = 2 * alignmentCount;
+        final int nSegments = (int) ((totalRecords + segmentSizeRecords - 1) / segmentSizeRecords);
+        this.segments = new ByteBuffer[nSegments];
+        final FileChannel channel = raf.getChannel();
+        for (int i = 0; i < nSegments; i++) {
+            long from = (long) i * segmentSizeRecords;
+            long size = Math.min(segmentSizeRecords, totalRecords - from) * RECORD_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, 4 + from * RECORD_SIZE, size);
+        }
     }
 
     @Override
@@ -43,10 +84,18 @@ public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closea
         return alignmentCount;
     }
 
+    /**
+     * Returns number of records for the clone.
+     *
+     * @param cloneId clone id
+     * @return number of alignments mapped to the clone
+     */
+    public long getCloneSize(int cloneId) {
+        return (cloneEnd(cloneId) - cloneOffsets[cloneId]) / RECORD_SIZE;
+    }
+
     public OutputPort<ReadToCloneMapping> createPortForClone(int cloneId) {
-        long nextOffset = (cloneId == cloneOffsets.length - 1) ?
-                lastOffset : cloneOffsets[cloneId + 1];
-        return new OP(cloneOffsets[cloneId], (nextOffset - cloneOffsets[cloneId]) / RECORD_SIZE);
+        return new OP(cloneOffsets[cloneId], (cloneEnd(cloneId) - cloneOffsets[cloneId]) / RECORD_SIZE);
     }
 
     public OutputPort<ReadToCloneMapping> createPortByClones() {
@@ -57,82 +106,233 @@ public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closea
         return new OP(4, alignmentCount);
     }
 
-    public static AlignmentsToClonesMappingContainer open(String fileName) throws IOException {
-        return open(new File(fileName));
+    /**
+     * Returns mapping record for the alignment with specified id, or null if there is no such alignment in the index
+     * (e.g. alignment was dropped during assembly).
+     *
+     * @param alignmentsId alignments id
+     * @return mapping or null
+     */
+    public ReadToCloneMapping getMappingForAlignment(long alignmentsId) {
+        long record = findAlignment(alignmentsId);
+        return record < 0 ? null : readRecord(record);
     }
 
-    public static AlignmentsToClonesMappingContainer open(File file) throws IOException {
-        RandomAccessFile raf = new RandomAccessFile(file, "r");
+    /**
+     * Returns clone index for the alignment with specified id, or -1 if there is no such alignment in the index.
+     *
+     * @param alignmentsId alignments id
+     * @return clone index or -1
+     */
+    public int getCloneIndexForAlignment(long alignmentsId) {
+        long record = findAlignment(alignmentsId);
+        return record < 0 ? -1 : getCloneIndex(record);
+    }
 
-        // Checking magic bytes
-        final int magic = raf.readInt();
-        if (magic != MAGIC) {
-            raf.close();
-            throw new RuntimeException("Wrong file format.");
+    /**
+     * Returns clone indices for alignments with ids from {@code fromAlignmentsId} (inclusive) to {@code
+     * toAlignmentsId} (exclusive); -1 is set for alignments absent in the index.
+     *
+     * @param fromAlignmentsId first alignments id (inclusive)
+     * @param toAlignmentsId   last alignments id (exclusive)
+     * @return array of clone indices, i-th element corresponds to alignment with id {@code fromAlignmentsId + i}
+     */
+    public int[] getCloneIndices(long fromAlignmentsId, long toAlignmentsId) {
+        if (toAlignmentsId < fromAlignmentsId)
+            throw new IllegalArgumentException();
+        int[] result = new int[(int) (toAlignmentsId - fromAlignmentsId)];
+        getCloneIndices(fromAlignmentsId, result);
+        return result;
+    }
+
+    /**
+     * Fills {@code target} with clone indices for alignments with ids {@code fromAlignmentsId}, {@code
+     * fromAlignmentsId + 1}, ..., {@code fromAlignmentsId + target.length - 1}; -1 is set for alignments absent in
+     * the index.
+     *
+     * @param fromAlignmentsId first alignments id
+     * @param target           target array
+     */
+    public void getCloneIndices(long fromAlignmentsId, int[] target) {
+        Arrays.fill(target, -1);
+        long record = lowerBound(fromAlignmentsId);
+        final long toAlignmentsId = fromAlignmentsId + target.length;
+        long id;
+        // Single sequential pass over the range of "by alignment id" section
+        for (; record < alignmentCount && (id = getAlignmentsId(record)) < toAlignmentsId; ++record)
+            target[(int) (id - fromAlignmentsId)] = getCloneIndex(record);
+    }
+
+    private long cloneEnd(int cloneId) {
+        return (cloneId == cloneOffsets.length - 1) ?
+                lastOffset : cloneOffsets[cloneId + 1];
+    }
+
+    /**
+     * Returns index of the record in "by alignment id" section, or -1 if there is no record with such id
+     */
+    private long findAlignment(long alignmentsId) {
+        long record = lowerBound(alignmentsId);
+        if (record == alignmentCount || getAlignmentsId(record) != alignmentsId)
+            return -1;
+        return record;
+    }
+
+    /**
+     * Returns index of the first record in "by alignment id" section with alignment id >= alignmentsId
+     */
+    private long lowerBound(long alignmentsId) {
+        final long[] index = getSparseIndex();
+        // Searching for the block of SPARSE_INDEX_STEP records
+        int block = Arrays.binarySearch(index, alignmentsId);
+        if (block >= 0)
+            return (long) block * SPARSE_INDEX_STEP;
+        block = -block - 2;
+        if (block < 0)
+            return 0;
+        // Binary search inside the block
+        long from = (long) block * SPARSE_INDEX_STEP + 1,
+                to = Math.min(from - 1 + SPARSE_INDEX_STEP, alignmentCount);
+        while (from < to) {
+            long mid = (from + to) >>> 1;
+            if (getAlignmentsId(mid) < alignmentsId)
+                from = mid + 1;
+            else
+                to = mid;
         }
-        final long fileSize = raf.length();
+        return from;
+    }
 
-        // Reading cloneCount and alignmentCount in the footer of the file
-        raf.seek(fileSize - 4 - 8);
-        final int cloneCount = raf.readInt();
-        final long alignmentCount = raf.readLong();
+    private long[] getSparseIndex() {
+        long[] index = sparseIndex;
+        if (index == null)
+            synchronized (this) {
+                if ((index = sparseIndex) == null) {
+                    index = new long[(int) ((alignmentCount + SPARSE_INDEX_STEP - 1) / SPARSE_INDEX_STEP)];
+                    for (int i = 0; i < index.length; i++)
+                        index[i] = getAlignmentsId((long) i * SPARSE_INDEX_STEP);
+                    sparseIndex = index;
+                }
+            }
+        return index;
+    }
 
-        final long lastOffset = fileSize - 4 - 8 - cloneCount * 8;
-        raf.seek(lastOffset);
-        final long[] cloneOffsets = new long[cloneCount];
-        for (int i = 0; i < cloneCount; i++)
-            cloneOffsets[i] = raf.readLong();
+    /* Absolute access to records (thread-safe, as only absolute get methods of buffers are used) */
+
+    private ByteBuffer segment(long record) {
+        return segments[(int) (record / segmentSizeRecords)];
+    }
+
+    private int position(long record) {
+        return (int) (record % segmentSizeRecords) * RECORD_SIZE;
+    }
+
+    private long getAlignmentsId(long record) {
+        return segment(record).getLong(position(record));
+    }
+
+    private int getCloneIndex(long record) {
+        return segment(record).getInt(position(record) + 16);
+    }
+
+    /**
+     * @param record global record index (records of "by clone id" section start from alignmentCount)
+     */
+    ReadToCloneMapping readRecord(long record) {
+        ByteBuffer segment = segment(record);
+        int position = position(record);
+        return new ReadToCloneMapping(segment.getLong(position), segment.getLong(position + 8),
+                segment.getInt(position + 16), segment.get(position + 20));
+    }
 
-        return new AlignmentsToClonesMappingContainer(raf, cloneCount, alignmentCount, cloneOffsets, lastOffset);
+    public static AlignmentsToClonesMappingContainer open(String fileName) throws IOException {
+        return open(new File(fileName));
     }
 
-    public static final int MAX_BUFFER_SIZE_RECORDS = 65536; // <~ 1.4Mb
+    public static AlignmentsToClonesMappingContainer open(File file) throws IOException {
+        return open(file, MAX_SEGMENT_SIZE_RECORDS);
+    }
 
+    static AlignmentsToClonesMappingContainer open(File file, int segmentSizeRecords) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // Checking magic bytes
+            final int magic = raf.readInt();
+            if (magic != MAGIC)
+                throw new RuntimeException("Wrong file format.");
+            final long fileSize = raf.length();
+
+            // Reading cloneCount and alignmentCount in the footer of the file
+            raf.seek(fileSize - 4 - 8);
+            final int cloneCount = raf.readInt();
+            final long alignmentCount = raf.readLong();
+
+            final long lastOffset = fileSize - 4 - 8 - cloneCount * 8L;
+            final long[] cloneOffsets = new long[cloneCount];
+            final ByteBuffer offsets = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, lastOffset, cloneCount * 8L);
+            for (int i = 0; i < cloneCount; i++)
+                cloneOffsets[i] = offsets.getLong();
+
+            return new AlignmentsToClonesMappingContainer(raf, cloneCount, alignmentCount, cloneOffsets, lastOffset,
+                    segmentSizeRecords);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Lock-free port over a range of records
+     */
     public final class OP implements OutputPort<ReadToCloneMapping> {
-        private final long offset;
+        private final long firstRecord;
         private final long limit;
-        private long pointer = 0;
-        //private boolean bufferEmpty;
-        //private ByteBuffer buffer = null;
-        private final ByteBuffer buffer;
+        private final AtomicLong pointer = new AtomicLong();
 
         public OP(long offset, long limit) {
-            this.offset = offset;
+            this.firstRecord = (offset - 4) / RECORD_SIZE;
             this.limit = limit;
-            this.buffer = ByteBuffer.allocate((int) Math.min(MAX_BUFFER_SIZE_RECORDS, limit) * RECORD_SIZE);
-            readMore();
         }
 
-        private void readMore() {
-            try {
-                int chunkSize = (int) Math.min(MAX_BUFFER_SIZE_RECORDS, limit - pointer) * RECORD_SIZE;
-                buffer.clear();
-                buffer.limit(chunkSize);
-                int read = raf.getChannel().read(buffer, offset + pointer * RECORD_SIZE);
-                assert read == chunkSize;
-                buffer.flip();
-            } catch (IOException e) {
-                throw new RuntimeException();
+        @Override
+        public ReadToCloneMapping take() {
+            long p = pointer.getAndIncrement();
+            if (p >= limit) {
+                // Prevents overflow in case of endless polling of drained port
+                pointer.set(limit);
+                return null;
             }
+            return readRecord(firstRecord + p);
         }
+    }
 
-        @Override
-        public synchronized ReadToCloneMapping take() {
-            if (pointer == limit)
-                return null;
+    public static final int DEFAULT_SORTING_CHUNK_SIZE = 2097152;
 
-            if (!buffer.hasRemaining())
-                readMore();
+    /**
+     * Minimal size of sorting chunk used if expected number of records is known
+     */
+    private static final int MIN_SORTING_CHUNK_SIZE = 65536;
 
-            ReadToCloneMapping record = ReadToCloneMapping.read(buffer);
+    /**
+     * Maximal number of threads used to sort chunks of records; each sorting thread holds its own chunk (~100Mb for
+     * the default chunk size), so this value limits memory footprint regardless of requested number of threads
+     */
+    public static final int MAX_SORTING_THREADS = 4;
 
-            ++pointer;
+    /**
+     * Number of threads used to sort chunks of records if not specified explicitly
+     */
+    public static final int DEFAULT_SORTING_THREADS = Math.min(MAX_SORTING_THREADS, Runtime.getRuntime().availableProcessors());
 
-            return record;
-        }
-    }
+    /**
+     * Total size of read buffers used during k-way merge (split between all sorted chunks)
+     */
+    public static final int MERGE_BUFFER_SIZE = 64 * 1024 * 1024;
 
-    public static final int DEFAULT_SORTING_CHUNK_SIZE = 2097152;
+    /**
+     * Minimal size of read buffer for a single sorted chunk (in records)
+     */
+    private static final int MIN_MERGE_BUFFER_SIZE_RECORDS = 4096;
 
     public static void writeMapping(final OutputPort<ReadToCloneMapping> mappingPort,
                                     final int cloneCount,
@@ -143,8 +343,33 @@ public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closea
     public static void writeMapping(final OutputPort<ReadToCloneMapping> mappingPort,
                                     final int cloneCount,
                                     final File file) throws IOException {
-        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
-            writeMapping(mappingPort, cloneCount, dos, DEFAULT_SORTING_CHUNK_SIZE);
+        writeMapping(mappingPort, cloneCount, file, -1, DEFAULT_SORTING_THREADS);
+    }
+
+    public static void writeMapping(final OutputPort<ReadToCloneMapping> mappingPort,
+                                    final int cloneCount,
+                                    final String fileName,
+                                    final long expectedRecords,
+                                    final int sortingThreads) throws IOException {
+        writeMapping(mappingPort, cloneCount, new File(fileName), expectedRecords, sortingThreads);
+    }
+
+    /**
+     * @param expectedRecords expected number of (not dropped) records, used to limit size of sorting chunks; -1 if
+     *                        unknown
+     * @param sortingThreads  number of threads used to sort chunks of records (at most {@link #MAX_SORTING_THREADS}
+     *                        are used)
+     */
+    public static void writeMapping(final OutputPort<ReadToCloneMapping> mappingPort,
+                                    final int cloneCount,
+                                    final File file,
+                                    final long expectedRecords,
+                                    final int sortingThreads) throws IOException {
+        int sortingChunkSize = DEFAULT_SORTING_CHUNK_SIZE;
+        if (expectedRecords >= 0)
+            sortingChunkSize = (int) Math.min(sortingChunkSize, Math.max(expectedRecords, MIN_SORTING_CHUNK_SIZE));
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 262144))) {
+            writeMapping(mappingPort, cloneCount, dos, sortingChunkSize, sortingThreads);
         }
     }
 
@@ -152,6 +377,17 @@ public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closea
                                     final int cloneCount,
                                     final DataOutput output,
                                     final int sortingChunkSize) throws IOException {
+        writeMapping(mappingPort, cloneCount, output, sortingChunkSize, DEFAULT_SORTING_THREADS);
+    }
+
+    public static void writeMapping(final OutputPort<ReadToCloneMapping> mappingPort,
+                                    final int cloneCount,
+                                    final DataOutput output,
+                                    final int sortingChunkSize,
+                                    final int sortingThreads) throws IOException {
+        // Each sorting thread holds its own chunk, so number of threads is limited to bound memory footprint
+        final int threads = Math.max(1, Math.min(sortingThreads, MAX_SORTING_THREADS));
+
         // Writing 4 magic bytes
         output.writeInt(MAGIC);
 
@@ -164,100 +400,77 @@ public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closea
         // Saving number of records for each clone
         final long[] cloneOffsets = new long[cloneCount];
 
-        // Sorting blocks (sortingChunkSize) of records by clone id (for "by clone id" index file section)
-        // Simultaneously writing records sorted "by alignment id"
-        try (final DataOutputStream tempOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 262144))) {
-            final ReadToCloneMapping[] buffer = new ReadToCloneMapping[sortingChunkSize];
-            ReadToCloneMapping mapping;
-            ReadToCloneMapping previous = null;
-            int pointer = 0;
-            while ((mapping = mappingPort.take()) != null) {
-                // Skip dropped alignments
-                if (mapping.isDropped())
-                    continue;
-
-                // Checking that input stream is correctly sorted
-                if (previous != null && ALIGNMENTS_COMPARATOR.compare(previous, mapping) >= 0)
-                    throw new IllegalArgumentException();
-
-                // Count alignments
-                ++alignmentsCount;
-                // and clone records
-                ++cloneOffsets[mapping.cloneIndex];
-
-                // Writing record to "by alignment id" section
-                ReadToCloneMapping.write(output, mapping);
-
-                // If we collected sortingChunkSize records,
-                // sort by clone id, and write sorted block to temp file
-                if (pointer == sortingChunkSize) {
-                    Arrays.sort(buffer, CLONE_COMPARATOR);
-                    for (int i = 0; i < sortingChunkSize; ++i)
-                        ReadToCloneMapping.write(tempOutput, buffer[i]);
-
-                    // Resetting pointer
-                    pointer = 0;
-                }
-
-                // Saving record for further block-sorting
-                buffer[pointer++] = mapping;
+        try (final RandomAccessFile temp = new RandomAccessFile(tempFile, "rw")) {
+            final FileChannel tempChannel = temp.getChannel();
 
-                // Saving previous record
-                previous = mapping;
-            }
-
-            // Sorting and flushing final chunk for "by clone id" index file section
-            Arrays.sort(buffer, 0, pointer, CLONE_COMPARATOR);
-            for (int i = 0; i < pointer; ++i)
-                ReadToCloneMapping.write(tempOutput, buffer[i]);
-        }
-
-        // Writing "by clone id" file section using merge-sort
-
-        // Calculating number of chunks
-        final int nPivots = (int) ((alignmentsCount + sortingChunkSize - 1) / sortingChunkSize);
+            // Sorting blocks (sortingChunkSize) of records by clone id (for "by clone id" index file section)
+            // Simultaneously writing records sorted "by alignment id"
+            final ExecutorService sorters = Executors.newFixedThreadPool(threads, SORTER_THREAD_FACTORY);
+            final List<Future<?>> sortingTasks = new ArrayList<>();
+            try {
+                // Pool of chunk buffers, one chunk is being filled while others are sorted
+                final SortingChunksPool freeChunks = new SortingChunksPool(threads + 1, sortingChunkSize);
+
+                SortingChunk chunk = freeChunks.take();
+                int chunkId = 0;
+                ReadToCloneMapping mapping;
+                ReadToCloneMapping previous = null;
+                while ((mapping = mappingPort.take()) != null) {
+                    // Skip dropped alignments
+                    if (mapping.isDropped())
+                        continue;
+
+                    // Checking that input stream is correctly sorted
+                    if (previous != null && ALIGNMENTS_COMPARATOR.compare(previous, mapping) >= 0)
+                        throw new IllegalArgumentException();
+
+                    // Count alignments
+                    ++alignmentsCount;
+                    // and clone records
+                    ++cloneOffsets[mapping.cloneIndex];
+
+                    // Saving record for further block-sorting
+                    chunk.add(mapping);
+
+                    // If we collected sortingChunkSize records, write them to "by alignment id" section,
+                    // and submit sorting of the block by clone id (sorted block is then written to temp file)
+                    if (chunk.size == sortingChunkSize) {
+                        output.write(chunk.records, 0, chunk.size * RECORD_SIZE);
+                        sortingTasks.add(sorters.submit(new SortingTask(chunk, tempChannel,
+                                (long) chunkId++ * sortingChunkSize * RECORD_SIZE, freeChunks)));
+                        chunk = freeChunks.take();
+                    }
+
+                    // Saving previous record
+                    previous = mapping;
+                }
 
-        // Queue's head will always contain SortedBlock pointing to the least record (in terms of CLONE_COMPARATOR)
-        final PriorityQueue<SortedBlockReader> blocks = new PriorityQueue<>();
+                // Flushing final chunk
+                if (chunk.size != 0) {
+                    output.write(chunk.records, 0, chunk.size * RECORD_SIZE);
+                    sortingTasks.add(sorters.submit(new SortingTask(chunk, tempChannel,
+                            (long) chunkId * sortingChunkSize * RECORD_SIZE, freeChunks)));
+                }
 
-        // Used to correctly close file in case of exception
-        SortedBlockReader head = null;
-        try {
-            // Opening SortedBlocks and initiating reading
-            for (int i = 0; i < nPivots; i++) {
-                final SortedBlockReader pivot = new SortedBlockReader(tempFile, i, sortingChunkSize);
-                pivot.advance();
-                blocks.add(pivot);
+                // Waiting for all sorted blocks to be written
+                for (Future<?> task : sortingTasks)
+                    task.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                sorters.shutdownNow();
             }
 
-            // Perform sorting and write of "by clone id" index file section
-            while (!blocks.isEmpty()) {
-                // Getting reader pointing to the least reader
-                head = blocks.poll();
-
-                // Writing this value to output file
-                ReadToCloneMapping.write(output, head.current());
-
-                // Advance the reader
-                head.advance();
-                if (head.current() != null) { // If reader has more records put it back to queue
-                    blocks.add(head);
-                    head = null;
-                } else { // If reader was completely drained close it and don't put it back to queue
-                    head.close();
-                    head = null;
-                }
-            }
+            // Writing "by clone id" file section using k-way merge of sorted blocks
+            mergeSortedBlocks(tempChannel, alignmentsCount, sortingChunkSize, output);
         } finally {
-            // Closing readers if something went wrong
-            for (SortedBlockReader view : blocks)
-                view.close();
-            if (head != null)
-                head.close();
+            tempFile.delete();
         }
 
-        assert blocks.isEmpty();
-
         // Calculating offsets for first record in each block with the same clone id
         // in "by clone id" index file section
         long cOffset = 4 + alignmentsCount * RECORD_SIZE; // Initial offset
@@ -282,46 +495,249 @@ public class AlignmentsToClonesMappingContainer implements AutoCloseable, Closea
     }
 
     /**
-     * Used to read sorted block from tem file during merge-sort procedure
+     * Pool of sorting chunks. Chunks are allocated on demand (so small inputs use a single chunk), up to the
+     * specified number of chunks.
      */
-    private static final class SortedBlockReader implements Comparable<SortedBlockReader>, AutoCloseable, Closeable {
-        final DataInputStream input;
-        final int chunkSize;
-        private int position = 0;
-        private ReadToCloneMapping current = null;
-
-        public SortedBlockReader(File file, long chunkId, int chunkSize) throws IOException {
+    private static final class SortingChunksPool {
+        final BlockingQueue<SortingChunk> free;
+        final int maxChunks, chunkSize;
+        int allocated = 0;
+
+        SortingChunksPool(int maxChunks, int chunkSize) {
+            this.free = new ArrayBlockingQueue<>(maxChunks);
+            this.maxChunks = maxChunks;
             this.chunkSize = chunkSize;
+        }
 
-            final FileInputStream fo = new FileInputStream(file);
-            // Setting file position to the beginning of the chunkId-th chunk
-            fo.getChannel().position(chunkId * chunkSize * RECORD_SIZE);
+        /**
+         * Returns free chunk; allocates new one if there are no free chunks and limit is not reached, otherwise waits
+         * for a chunk to be released. Called from a single thread.
+         */
+        SortingChunk take() {
+            SortingChunk chunk = free.poll();
+            if (chunk != null)
+                return chunk;
+            if (allocated < maxChunks) {
+                ++allocated;
+                return new SortingChunk(chunkSize);
+            }
+            try {
+                return free.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-            // Read using small buffer (~50 records)
-            this.input = new DataInputStream(new BufferedInputStream(fo, 1024));
+        void release(SortingChunk chunk) {
+            chunk.reset();
+            free.add(chunk);
         }
+    }
 
-        public void advance() throws IOException {
-            if (position == chunkSize || input.available() == 0) {
-                current = null;
-            } else {
-                ++position;
-                current = ReadToCloneMapping.read(input);
-            }
+    /**
+     * Merges sorted blocks from temp file into the output.
+     *
+     * Input records are sorted by alignment id, so for any clone all its records from i-th block precede records
+     * from (i+1)-th block in terms of CLONE_COMPARATOR. So the merge is performed over (clone id, block id) keys,
+     * and whole runs of records with the same clone id are copied from block to output at once.
+     */
+    private static void mergeSortedBlocks(final FileChannel tempChannel, final long alignmentsCount,
+                                          final int sortingChunkSize, final DataOutput output) throws IOException {
+        // Calculating number of chunks
+        final int nBlocks = (int) ((alignmentsCount + sortingChunkSize - 1) / sortingChunkSize);
+        if (nBlocks == 0)
+            return;
+
+        final int bufferRecords = Math.max(MIN_MERGE_BUFFER_SIZE_RECORDS, MERGE_BUFFER_SIZE / nBlocks / RECORD_SIZE);
+
+        // Opening blocks and initiating reading
+        final SortedBlockReader[] blocks = new SortedBlockReader[nBlocks];
+        // Min-heap of (clone id << 32 | block id) keys
+        final long[] heap = new long[nBlocks];
+        for (int i = 0; i < nBlocks; i++) {
+            long offset = (long) i * sortingChunkSize;
+            int size = (int) Math.min(sortingChunkSize, alignmentsCount - offset);
+            blocks[i] = new SortedBlockReader(tempChannel, offset * RECORD_SIZE, size, bufferRecords);
+            heap[i] = heapKey(blocks[i].currentClone(), i);
+        }
+        // Keys for blocks are already in heap order (blocks ids are increasing), but clone ids are not
+        Arrays.sort(heap);
+        int heapSize = nBlocks;
+
+        // Perform sorting and write of "by clone id" index file section
+        while (heapSize > 0) {
+            final SortedBlockReader head = blocks[(int) heap[0]];
+
+            // Writing all records with the least clone id from the head block
+            head.drainClone(output);
+
+            if (head.hasMore())
+                heap[0] = heapKey(head.currentClone(), (int) heap[0]);
+            else // If block was completely drained don't put it back to heap
+                heap[0] = heap[--heapSize];
+
+            siftDown(heap, heapSize);
+        }
+    }
+
+    private static long heapKey(int cloneIndex, int blockId) {
+        return ((long) cloneIndex << 32) | blockId;
+    }
+
+    private static void siftDown(long[] heap, int heapSize) {
+        int i = 0;
+        long key = heap[0];
+        int child;
+        while ((child = 2 * i + 1) < heapSize) {
+            if (child + 1 < heapSize && heap[child + 1] < heap[child])
+                ++child;
+            if (key <= heap[child])
+                break;
+            heap[i] = heap[child];
+            i = child;
         }
+        heap[i] = key;
+    }
 
-        public ReadToCloneMapping current() {
-            return current;
+    /**
+     * Packed buffer of serialized records collected from input stream
+     */
+    private static final class SortingChunk {
+        // Records in the same format as in output file
+        final byte[] records;
+        final ByteBuffer recordsBuffer;
+        // Records sorted by clone id
+        final byte[] sorted;
+        // (clone id << 32 | record index) keys
+        final long[] keys;
+        int size = 0;
+
+        SortingChunk(int capacity) {
+            this.records = new byte[capacity * RECORD_SIZE];
+            this.recordsBuffer = ByteBuffer.wrap(records);
+            this.sorted = new byte[capacity * RECORD_SIZE];
+            this.keys = new long[capacity];
+        }
+
+        void add(ReadToCloneMapping mapping) {
+            recordsBuffer.putLong(mapping.alignmentsId);
+            recordsBuffer.putLong(mapping.readId);
+            recordsBuffer.putInt(mapping.cloneIndex);
+            recordsBuffer.put(mapping.mappingType);
+            keys[size] = ((long) mapping.cloneIndex << 32) | size;
+            ++size;
+        }
+
+        /**
+         * Sorts records by clone id. Records with the same clone id keep their order (by alignment id), so resulting
+         * order is the same as for CLONE_COMPARATOR.
+         */
+        void sort() {
+            Arrays.sort(keys, 0, size);
+            for (int i = 0; i < size; i++)
+                System.arraycopy(records, ((int) keys[i]) * RECORD_SIZE, sorted, i * RECORD_SIZE, RECORD_SIZE);
+        }
+
+        void reset() {
+            size = 0;
+            recordsBuffer.clear();
+        }
+    }
+
+    private static final class SortingTask implements Callable<Void> {
+        final SortingChunk chunk;
+        final FileChannel tempChannel;
+        final long position;
+        final SortingChunksPool freeChunks;
+
+        SortingTask(SortingChunk chunk, FileChannel tempChannel, long position, SortingChunksPool freeChunks) {
+            this.chunk = chunk;
+            this.tempChannel = tempChannel;
+            this.position = position;
+            this.freeChunks = freeChunks;
         }
 
         @Override
-        public void close() throws IOException {
-            this.input.close();
+        public Void call() throws Exception {
+            try {
+                chunk.sort();
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.sorted, 0, chunk.size * RECORD_SIZE);
+                long p = position;
+                while (buffer.hasRemaining())
+                    p += tempChannel.write(buffer, p);
+            } finally {
+                // Returning chunk to the pool
+                freeChunks.release(chunk);
+            }
+            return null;
         }
+    }
 
+    private static final ThreadFactory SORTER_THREAD_FACTORY = new ThreadFactory() {
         @Override
-        public int compareTo(SortedBlockReader o) {
-            return CLONE_COMPARATOR.compare(current, o.current);
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MappingSorter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Used to read sorted block from temp file during merge-sort procedure
+     */
+    private static final class SortedBlockReader {
+        final FileChannel channel;
+        final ByteBuffer buffer;
+        private long position;
+        private final long end;
+
+        SortedBlockReader(FileChannel channel, long offset, int size, int bufferRecords) throws IOException {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + (long) size * RECORD_SIZE;
+            this.buffer = ByteBuffer.allocate(Math.min(bufferRecords, size) * RECORD_SIZE);
+            this.buffer.limit(0);
+            readMore();
+        }
+
+        private void readMore() throws IOException {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new IOException("Unexpected end of temp file.");
+                position += read;
+            }
+            buffer.flip();
+        }
+
+        boolean hasMore() {
+            return buffer.hasRemaining();
+        }
+
+        int currentClone() {
+            return buffer.getInt(buffer.position() + 16);
+        }
+
+        /**
+         * Copies all subsequent records having the same clone id as the current one to the output
+         */
+        void drainClone(DataOutput output) throws IOException {
+            final int cloneIndex = currentClone();
+            final byte[] array = buffer.array();
+            do {
+                int from = buffer.position(), to = from;
+                while (to < buffer.limit() && buffer.getInt(to + 16) == cloneIndex)
+                    to += RECORD_SIZE;
+                output.write(array, from, to - from);
+                buffer.position(to);
+                if (to < buffer.limit())
+                    return;
+                if (position == end)
+                    return;
+                readMore();
+            } while (currentClone() == cloneIndex);
         }
     }
 }
@@ -52,19 +52,18 @@ public class AssembledReadsPort implements OutputPortCloseable<ReadToCloneMappin
 
         synchronized (this) {
             event = initialEvents.take();
-        }
 
-        if (event == null)
-            return null;
+            if (event == null)
+                return null;
 
-        if (mappingEvents != null)
-            synchronized (this) {
+            // Mapping log contains events only for deferred alignments
+            if (mappingEvents != null && event.cloneIndex == AssemblerEvent.DEFERRED)
                 eventMapping = mappingEvents.take();
-            }
-        else
-            eventMapping = null;
+            else
+                eventMapping = null;
+        }
 
-        assert eventMapping == null || eventMapping.alignmentsIndex == event.alignmentsIndex;
+        assert eventMapping == null || eventMapping.readId == event.readId;
 
         int cloneIndex = event.cloneIndex;
         boolean mapped = false;
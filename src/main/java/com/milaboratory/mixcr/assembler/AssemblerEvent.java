@@ -28,19 +28,30 @@
  */
 package com.milaboratory.mixcr.assembler;
 
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+
 public final class AssemblerEvent implements Comparable<AssemblerEvent> {
     //auxiliary status codes used instead of cloneIndex
     public static final int DROPPED = -2, DEFERRED = -3, EOF = -1;
     public final long alignmentsIndex;
     public final long readId;
     public final int cloneIndex;
+    /**
+     * Alignments attached to DEFERRED event to be spilled in the order of alignment indices (not serialized)
+     */
+    final VDJCAlignments deferredAlignments;
 
     public AssemblerEvent(long alignmentsIndex, long readId, int cloneIndex) {
+        this(alignmentsIndex, readId, cloneIndex, null);
+    }
+
+    AssemblerEvent(long alignmentsIndex, long readId, int cloneIndex, VDJCAlignments deferredAlignments) {
         if (cloneIndex == EOF)
             throw new IllegalArgumentException();
         this.alignmentsIndex = alignmentsIndex;
         this.readId = readId;
         this.cloneIndex = cloneIndex;
+        this.deferredAlignments = deferredAlignments;
     }
 
     @Override
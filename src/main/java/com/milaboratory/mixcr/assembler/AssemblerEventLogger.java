@@ -34,64 +34,146 @@ import com.milaboratory.core.io.util.IOUtil;
 import com.milaboratory.mixcr.util.TempFileManager;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.milaboratory.core.io.util.IOUtil.*;
 
+/**
+ * Writes assembler events to a file in the order of alignment indices.
+ *
+ * Events may come from many threads in arbitrary order. {@link #newEvent(AssemblerEvent)} is lock-free: event is
+ * published to the slot of a ring buffer addressed by its alignment index (or, if it is too far ahead of the last
+ * written event, to an overflow map), and a single drain thread writes events to the file one by one, as soon as the
+ * next event in the sequence becomes available.
+ */
 public final class AssemblerEventLogger {
-    static final int MAX_BUFFER_SIZE = 30_000;
+    static final int RING_BUFFER_SIZE = 1 << 16;
+    static final int RING_BUFFER_MASK = RING_BUFFER_SIZE - 1;
+    static final int SPINS_BEFORE_PARK = 128;
     final AtomicBoolean closed = new AtomicBoolean(false);
     final File file;
     final OutputStream os;
-    //todo replace with ArrayDeque
-    final ArrayList<AssemblerEvent> eventsBuffer = new ArrayList<>();
-    long counter = 0;
+    // Events with alignmentsIndex in [counter, counter + RING_BUFFER_SIZE)
+    final AtomicReferenceArray<AssemblerEvent> ring = new AtomicReferenceArray<>(RING_BUFFER_SIZE);
+    // Events too far ahead of the counter (only in case of large scheduling skew between threads)
+    final ConcurrentHashMap<Long, AssemblerEvent> overflow = new ConcurrentHashMap<>();
+    // Index of the next event to be written (modified only by drain thread)
+    volatile long counter = 0;
+    // Used only by drain thread
     long previousReadId = 0;
+    // Receives alignments attached to deferred events in the order of alignment indices
+    final DeferredAlignmentsSpill deferredSpill;
+    // Drain thread (started on first event)
+    final AtomicBoolean drainerStarted = new AtomicBoolean(false);
+    volatile Thread drainer;
+    volatile boolean ending = false;
+    volatile Throwable drainerError;
 
     public AssemblerEventLogger() {
+        this((DeferredAlignmentsSpill) null);
+    }
+
+    AssemblerEventLogger(DeferredAlignmentsSpill deferredSpill) {
+        this.deferredSpill = deferredSpill;
         try {
             this.file = TempFileManager.getTempFile();
-            this.os = new BufferedOutputStream(new FileOutputStream(file));
+            this.os = new BufferedOutputStream(new FileOutputStream(file), 262144);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public AssemblerEventLogger(File file) {
+        this.deferredSpill = null;
         this.file = file;
         try {
-            this.os = new BufferedOutputStream(new FileOutputStream(file));
+            this.os = new BufferedOutputStream(new FileOutputStream(file), 262144);
         } catch (FileNotFoundException e) {
             throw new RuntimeException();
         }
     }
 
-    public synchronized void newEvent(AssemblerEvent event) {
-        if (event.alignmentsIndex != counter) {
-            if (event.alignmentsIndex < counter)
+    public void newEvent(AssemblerEvent event) {
+        checkDrainerError();
+        if (drainer == null)
+            startDrainer();
+
+        final long index = event.alignmentsIndex;
+        final long c = counter;
+        if (index < c)
+            throw new IllegalArgumentException("Duplicate event detected.");
+
+        if (index - c < RING_BUFFER_SIZE) {
+            // Slot is free: previous event addressed to this slot (index - RING_BUFFER_SIZE) was already written,
+            // because counter > index - RING_BUFFER_SIZE
+            if (!ring.compareAndSet((int) (index & RING_BUFFER_MASK), null, event))
                 throw new IllegalArgumentException("Duplicate event detected.");
-            eventsBuffer.add(event);
-            if (eventsBuffer.size() > MAX_BUFFER_SIZE)
-                throw new RuntimeException("Missing event detected.");
-            return;
-        }
+        } else if (overflow.putIfAbsent(index, event) != null)
+            throw new IllegalArgumentException("Duplicate event detected.");
 
-        write(event);
-        ++counter;
-        if (!eventsBuffer.isEmpty()) {
-            Collections.sort(eventsBuffer);
-            while (!eventsBuffer.isEmpty()) {
-                if (eventsBuffer.get(0).alignmentsIndex != counter)
-                    return;
-                write(eventsBuffer.remove(0));
-                ++counter;
+        // Waking up drain thread if it waits for this event
+        // (publication of event above and reading of counter here are ordered with the drainer's write of counter
+        // and reading of ring slot, so the event can't be missed)
+        if (index == counter)
+            LockSupport.unpark(drainer);
+    }
+
+    private void startDrainer() {
+        if (drainerStarted.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "AssemblerEventLogger");
+            thread.setDaemon(true);
+            drainer = thread;
+            thread.start();
+        } else
+            // Waiting for the thread to be published by the starting thread
+            while (drainer == null)
+                Thread.yield();
+    }
+
+    private void drain() {
+        try {
+            int idle = 0;
+            while (true) {
+                final boolean finishing = ending;
+                final long c = counter;
+                final int slot = (int) (c & RING_BUFFER_MASK);
+                AssemblerEvent event = ring.get(slot);
+                if (event != null) {
+                    ring.set(slot, null);
+                } else if (!overflow.isEmpty() && (event = overflow.remove(c)) != null) {
+                    // Nothing to do, event was taken from overflow map
+                } else {
+                    if (finishing)
+                        return;
+                    // Short spinning before parking, as next event is usually expected very soon
+                    if (++idle > SPINS_BEFORE_PARK)
+                        LockSupport.park(this);
+                    continue;
+                }
+                idle = 0;
+                write(event);
+                counter = c + 1;
             }
+        } catch (Throwable e) {
+            drainerError = e;
         }
     }
 
+    private void checkDrainerError() {
+        Throwable e = drainerError;
+        if (e != null)
+            throw new RuntimeException("Error while writing assembler events.", e);
+    }
+
     private void write(AssemblerEvent event) {
         // Just in case (like assert)
         if (event.cloneIndex == -2_147_483_648)
@@ -112,6 +194,9 @@ public final class AssemblerEventLogger {
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
+
+        if (deferredSpill != null && event.deferredAlignments != null)
+            deferredSpill.write(event.deferredAlignments);
     }
 
     public Iterable<AssemblerEvent> events() {
@@ -139,6 +224,7 @@ public final class AssemblerEventLogger {
      * Tells this class that logging is finished, and underlying file can be closet for write.
      */
     public synchronized void end(long check) {
+        finishDraining();
         if (check != counter)
             throw new RuntimeException("Something wrong.");
         end();
@@ -148,14 +234,35 @@ public final class AssemblerEventLogger {
         //Close only once
         if (closed.compareAndSet(false, true))
             try {
-                if (!eventsBuffer.isEmpty())
+                finishDraining();
+                if (!overflow.isEmpty())
                     throw new IllegalStateException("Some elements left in buffer.");
+                for (int i = 0; i < RING_BUFFER_SIZE; i++)
+                    if (ring.get(i) != null)
+                        throw new IllegalStateException("Some elements left in buffer.");
                 os.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
     }
 
+    /**
+     * Waits for drain thread to write all available events
+     */
+    private void finishDraining() {
+        ending = true;
+        Thread thread = drainer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        checkDrainerError();
+    }
+
     /**
      * Deletes underlying file with log information.
      */
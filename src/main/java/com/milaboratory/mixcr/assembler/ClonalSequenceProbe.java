@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.core.sequence.SequenceQuality;
+import com.milaboratory.core.sequence.SequencesUtils;
+import com.milaboratory.mixcr.basictypes.ClonalSequence;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import io.repseq.core.GeneFeature;
+
+/**
+ * Reusable (one instance per thread) lookup key for clonal sequence maps. Extracts assembling features from
+ * alignments, calculates hash code (equal to the hash code of the corresponding {@link ClonalSequence}) and number of
+ * bad quality points in a single pass, without allocating {@link ClonalSequence} objects. {@link ClonalSequence} is
+ * created only if it is going to be stored somewhere (see {@link #createClonalSequence()}).
+ *
+ * <p>Instances are equal to {@link ClonalSequence} objects with the same sequences (but not vice versa), so probe
+ * must always be passed as a key argument to map lookup methods.</p>
+ */
+final class ClonalSequenceProbe {
+    final GeneFeature[] assemblingFeatures;
+    final int minimalClonalSequenceLength;
+    final byte badQualityThreshold;
+    final NSequenceWithQuality[] parts;
+    int length, hash, badPoints;
+
+    ClonalSequenceProbe(CloneAssemblerParameters parameters) {
+        this.assemblingFeatures = parameters.assemblingFeatures;
+        this.minimalClonalSequenceLength = parameters.minimalClonalSequenceLength;
+        this.badQualityThreshold = parameters.getBadQualityThreshold();
+        this.parts = new NSequenceWithQuality[assemblingFeatures.length];
+    }
+
+    /**
+     * Loads clonal sequence from alignments.
+     *
+     * @return false if clonal sequence can't be extracted from alignments (some of the assembling features are absent
+     * or clonal sequence is too short)
+     */
+    boolean extract(VDJCAlignments alignments) {
+        length = 0;
+        for (int i = 0; i < parts.length; ++i)
+            if ((parts[i] = alignments.getFeature(assemblingFeatures[i])) == null)
+                return false;
+            else
+                length += parts[i].size();
+        if (length < minimalClonalSequenceLength)
+            return false;
+
+        int hash = ClonalSequence.HASH_SEED, badPoints = 0;
+        for (NSequenceWithQuality part : parts) {
+            NucleotideSequence sequence = part.getSequence();
+            SequenceQuality quality = part.getQuality();
+            for (int i = 0, size = sequence.size(); i < size; ++i) {
+                hash = ClonalSequence.HASH_MULTIPLIER * hash + sequence.codeAt(i);
+                if (quality.value(i) <= badQualityThreshold)
+                    ++badPoints;
+            }
+        }
+        this.hash = hash;
+        this.badPoints = badPoints;
+        return true;
+    }
+
+    /**
+     * Returns quality of the whole (concatenated) clonal sequence
+     */
+    SequenceQuality getQuality() {
+        return parts.length == 1 ? parts[0].getQuality() : SequencesUtils.concatenate(parts).getQuality();
+    }
+
+    ClonalSequence createClonalSequence() {
+        return new ClonalSequence(parts.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ClonalSequence))
+            return false;
+        ClonalSequence that = (ClonalSequence) o;
+        if (that.sequences.length != parts.length || that.getConcatenated().size() != length)
+            return false;
+        for (int i = 0; i < parts.length; ++i)
+            if (!that.sequences[i].getSequence().equals(parts[i].getSequence()))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -44,19 +44,65 @@ import io.repseq.core.GeneType;
 import io.repseq.core.VDJCGeneId;
 
 import java.util.EnumMap;
+import java.util.Map;
 
+/**
+ * Accumulates information from alignments assembled to a single clonotype.
+ *
+ * <p>Alignments are first accumulated in the main (primary) partial accumulator. When number of accumulated alignments
+ * exceeds {@link #STRIPING_THRESHOLD} (i.e. clone is highly expanded and several assembler threads are likely to
+ * add alignments to it at the same time) accumulation is spread across several independently locked stripes. Stripes
+ * are merged into the main accumulator by {@link #mergePartials()}, that is invoked before mapping and before
+ * pre-clustering, so all getters return complete values after these stages.</p>
+ */
 public final class CloneAccumulator {
-    final EnumMap<GeneType, TObjectFloatHashMap<VDJCGeneId>> geneScores = new EnumMap<>(GeneType.class);
+    /**
+     * Number of core alignments after which accumulation becomes striped
+     */
+    static final int STRIPING_THRESHOLD = 128;
+    /**
+     * Number of stripes (power of two)
+     */
+    static final int NUMBER_OF_STRIPES = Integer.highestOneBit(Math.max(1,
+            Runtime.getRuntime().availableProcessors() - 1)) << 1;
+    /**
+     * Number of qualities collected by a stripe before they are aggregated in the main accumulator (for aggregation
+     * types that can't be split between stripes)
+     */
+    static final int QUALITY_BATCH_SIZE = 64;
+    final EnumMap<GeneType, TObjectFloatHashMap<VDJCGeneId>> geneScores;
     private ClonalSequence sequence;
-    private final QualityAggregator aggregator;
-    private long coreCount = 0, mappedCount = 0, initialCoreCount = -1;
-    private volatile int cloneIndex = -1;
+    private final QualityAggregationType qualityAggregationType;
+    // Main partial accumulator, also holds final values
+    private final PartialAccumulator main;
+    private volatile PartialAccumulator[] stripes;
+    private long initialCoreCount = -1;
+    private volatile int cloneIndex;
     final Range[] nRegions;
+    private final int stripingThreshold;
 
     public CloneAccumulator(ClonalSequence sequence, Range[] nRegions, QualityAggregationType qualityAggregationType) {
+        this(sequence, nRegions, qualityAggregationType, -1);
+    }
+
+    /**
+     * Creates accumulator with already allocated clone index, so the index is visible to any thread the accumulator
+     * is (safely) published to.
+     */
+    public CloneAccumulator(ClonalSequence sequence, Range[] nRegions, QualityAggregationType qualityAggregationType,
+                            int cloneIndex) {
+        this(sequence, nRegions, qualityAggregationType, cloneIndex, STRIPING_THRESHOLD);
+    }
+
+    CloneAccumulator(ClonalSequence sequence, Range[] nRegions, QualityAggregationType qualityAggregationType,
+                     int cloneIndex, int stripingThreshold) {
+        this.stripingThreshold = stripingThreshold;
+        this.cloneIndex = cloneIndex;
         this.sequence = sequence;
         this.nRegions = nRegions;
-        this.aggregator = qualityAggregationType.create(sequence.getConcatenated().size());
+        this.qualityAggregationType = qualityAggregationType;
+        this.main = new PartialAccumulator(qualityAggregationType.create(sequence.getConcatenated().size()));
+        this.geneScores = main.geneScores;
         //this.quality = sequence.getConcatenated().getQuality().asArray();
     }
 
@@ -65,7 +111,8 @@ public final class CloneAccumulator {
     }
 
     public void rebuildClonalSequence() {
-        SequenceQuality newQuality = aggregator.getQuality();
+        mergePartials();
+        SequenceQuality newQuality = main.aggregator.getQuality();
         final NSequenceWithQuality[] updated = new NSequenceWithQuality[sequence.size()];
         int pointer = 0;
         for (int i = 0; i < updated.length; i++) {
@@ -78,7 +125,8 @@ public final class CloneAccumulator {
     }
 
     public void onBeforeMapping() {
-        initialCoreCount = coreCount;
+        mergePartials();
+        initialCoreCount = main.coreCount;
     }
 
     public VDJCGeneId getBestGene(GeneType geneType) {
@@ -107,8 +155,9 @@ public final class CloneAccumulator {
     }
 
     public int getCloneIndex() {
-        // O_o
-        while (cloneIndex == -1) ;
+        int cloneIndex = this.cloneIndex;
+        if (cloneIndex == -1)
+            throw new IllegalStateException("Clone index is not assigned.");
         return cloneIndex;
     }
 
@@ -117,18 +166,20 @@ public final class CloneAccumulator {
     }
 
     public long getCount() {
-        return coreCount + mappedCount;
+        return main.coreCount + main.mappedCount;
     }
 
     public long getCoreCount() {
-        return coreCount;
+        return main.coreCount;
     }
 
     public long getMappedCount() {
-        return mappedCount;
+        return main.mappedCount;
     }
 
     public void calculateScores(CloneFactoryParameters parameters) {
+        mergePartials();
+        final long coreCount = main.coreCount;
         for (GeneType geneType : GeneType.VJC_REFERENCE) {
             VJCClonalAlignerParameters vjcParameters = parameters.getVJCParameters(geneType);
             if (vjcParameters == null)
@@ -160,47 +211,169 @@ public final class CloneAccumulator {
     }
 
     public void mergeCounts(CloneAccumulator acc) {
-        coreCount += acc.coreCount;
-        mappedCount += acc.mappedCount;
+        mergePartials();
+        acc.mergePartials();
+        main.coreCount += acc.main.coreCount;
+        main.mappedCount += acc.main.mappedCount;
     }
 
-    public synchronized void accumulate(ClonalSequence data, VDJCAlignments alignment, boolean mapped) {
-        if (!mapped) { // Core sequence accumulation
-            ++coreCount;
+    /**
+     * Adds all information collected by stripes to the main accumulator. Must not be invoked concurrently with
+     * {@link #accumulate(SequenceQuality, VDJCAlignments, boolean)}.
+     */
+    public void mergePartials() {
+        PartialAccumulator[] stripes = this.stripes;
+        if (stripes == null)
+            return;
+        this.stripes = null;
+        synchronized (main) {
+            for (PartialAccumulator stripe : stripes)
+                synchronized (stripe) {
+                    main.merge(stripe);
+                }
+        }
+    }
 
-            // Accumulate information about V-D-J alignments only for strictly clustered reads
-            // (only for core clonotypes members)
-            float score;
+    public void accumulate(ClonalSequence data, VDJCAlignments alignment, boolean mapped) {
+        accumulate(data.getConcatenated().getQuality(), alignment, mapped);
+    }
 
-            // Accumulate information about all genes
-            for (GeneType geneType : GeneType.VJC_REFERENCE) {
-                TObjectFloatHashMap<VDJCGeneId> geneScores = this.geneScores.get(geneType);
-                VDJCHit[] hits = alignment.getHits(geneType);
-                if (hits.length == 0)
-                    continue;
+    /**
+     * Accumulates alignment
+     *
+     * @param quality   quality of the clonal sequence extracted from the alignment
+     * @param alignment alignment
+     * @param mapped    true if alignment was mapped to the clone (not assembled into it)
+     */
+    public void accumulate(SequenceQuality quality, VDJCAlignments alignment, boolean mapped) {
+        PartialAccumulator[] stripes = this.stripes;
+        if (stripes == null) {
+            boolean startStriping;
+            synchronized (main) {
+                main.accumulate(quality, alignment, mapped);
+                startStriping = main.coreCount == stripingThreshold;
+            }
+            if (startStriping)
+                startStriping();
+        } else {
+            PartialAccumulator stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+            SequenceQuality[] qualities;
+            synchronized (stripe) {
+                stripe.accumulate(quality, alignment, mapped);
+                qualities = stripe.pollQualities();
+            }
+            if (qualities != null)
+                // Quality aggregation can't be split between stripes (see PartialAccumulator.merge), so qualities
+                // are aggregated in the main accumulator by batches
+                synchronized (main) {
+                    for (SequenceQuality q : qualities)
+                        main.aggregator.aggregate(q);
+                }
+        }
+    }
+
+    private void startStriping() {
+        // Partial quality aggregation is possible only for aggregation types for which aggregated value of several
+        // aggregated values is equal to the value aggregated at once
+        boolean partialQuality = qualityAggregationType == QualityAggregationType.Max
+                || qualityAggregationType == QualityAggregationType.Min;
+        PartialAccumulator[] stripes = new PartialAccumulator[NUMBER_OF_STRIPES];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new PartialAccumulator(partialQuality
+                    ? qualityAggregationType.create(sequence.getConcatenated().size())
+                    : null);
+        this.stripes = stripes;
+    }
+
+    /**
+     * Part of the accumulator state, accumulated under its own lock.
+     */
+    private static final class PartialAccumulator {
+        final EnumMap<GeneType, TObjectFloatHashMap<VDJCGeneId>> geneScores = new EnumMap<>(GeneType.class);
+        // null if quality is aggregated in the main accumulator
+        final QualityAggregator aggregator;
+        // Qualities to be aggregated in the main accumulator (only if aggregator is null)
+        SequenceQuality[] qualities;
+        int qualitiesCount = 0;
+        long coreCount = 0, mappedCount = 0;
+
+        PartialAccumulator(QualityAggregator aggregator) {
+            this.aggregator = aggregator;
+            this.qualities = aggregator == null ? new SequenceQuality[QUALITY_BATCH_SIZE] : null;
+        }
+
+        /**
+         * Returns full batch of collected qualities (and starts a new one), or null if batch is not full yet
+         */
+        SequenceQuality[] pollQualities() {
+            if (qualities == null || qualitiesCount < qualities.length)
+                return null;
+            SequenceQuality[] result = qualities;
+            qualities = new SequenceQuality[QUALITY_BATCH_SIZE];
+            qualitiesCount = 0;
+            return result;
+        }
+
+        void merge(PartialAccumulator stripe) {
+            coreCount += stripe.coreCount;
+            mappedCount += stripe.mappedCount;
+            for (Map.Entry<GeneType, TObjectFloatHashMap<VDJCGeneId>> entry : stripe.geneScores.entrySet()) {
+                TObjectFloatHashMap<VDJCGeneId> geneScores = this.geneScores.get(entry.getKey());
                 if (geneScores == null)
-                    this.geneScores.put(geneType, geneScores = new TObjectFloatHashMap<>());
-                for (VDJCHit hit : hits) {
-                    // Calculating sum of natural logarithms of scores
-                    score = hit.getScore();
-                    geneScores.adjustOrPutValue(hit.getGene().getId(), score, score);
+                    this.geneScores.put(entry.getKey(), geneScores = new TObjectFloatHashMap<>());
+                TObjectFloatIterator<VDJCGeneId> it = entry.getValue().iterator();
+                while (it.hasNext()) {
+                    it.advance();
+                    geneScores.adjustOrPutValue(it.key(), it.value(), it.value());
                 }
             }
+            if (stripe.aggregator != null && stripe.coreCount > 0)
+                aggregator.aggregate(stripe.aggregator.getQuality());
+            for (int i = 0; i < stripe.qualitiesCount; i++)
+                aggregator.aggregate(stripe.qualities[i]);
+        }
+
+        void accumulate(SequenceQuality quality, VDJCAlignments alignment, boolean mapped) {
+            if (!mapped) { // Core sequence accumulation
+                ++coreCount;
 
-            aggregator.aggregate(data.getConcatenated().getQuality());
-            //int pointer = 0;
-            //for (NSequenceWithQuality p : data) {
-            //    for (int i = 0; i < p.size(); ++i) {
-            //        final SequenceQuality q = p.getQuality();
-            //        if (quality[pointer] != MergerParameters.DEFAULT_MAX_QUALITY_VALUE)
-            //            if (quality[pointer] + q.value(i) > MergerParameters.DEFAULT_MAX_QUALITY_VALUE)
-            //                quality[pointer] = MergerParameters.DEFAULT_MAX_QUALITY_VALUE;
-            //            else
-            //                quality[pointer] += q.value(i);
-            //        ++pointer;
-            //    }
-            //}
-        } else // Mapped sequence accumulation
-            ++mappedCount;
+                // Accumulate information about V-D-J alignments only for strictly clustered reads
+                // (only for core clonotypes members)
+                float score;
+
+                // Accumulate information about all genes
+                for (GeneType geneType : GeneType.VJC_REFERENCE) {
+                    TObjectFloatHashMap<VDJCGeneId> geneScores = this.geneScores.get(geneType);
+                    VDJCHit[] hits = alignment.getHits(geneType);
+                    if (hits.length == 0)
+                        continue;
+                    if (geneScores == null)
+                        this.geneScores.put(geneType, geneScores = new TObjectFloatHashMap<>());
+                    for (VDJCHit hit : hits) {
+                        // Calculating sum of natural logarithms of scores
+                        score = hit.getScore();
+                        geneScores.adjustOrPutValue(hit.getGene().getId(), score, score);
+                    }
+                }
+
+                if (aggregator != null)
+                    aggregator.aggregate(quality);
+                else
+                    qualities[qualitiesCount++] = quality;
+                //int pointer = 0;
+                //for (NSequenceWithQuality p : data) {
+                //    for (int i = 0; i < p.size(); ++i) {
+                //        final SequenceQuality q = p.getQuality();
+                //        if (quality[pointer] != MergerParameters.DEFAULT_MAX_QUALITY_VALUE)
+                //            if (quality[pointer] + q.value(i) > MergerParameters.DEFAULT_MAX_QUALITY_VALUE)
+                //                quality[pointer] = MergerParameters.DEFAULT_MAX_QUALITY_VALUE;
+                //            else
+                //                quality[pointer] += q.value(i);
+                //        ++pointer;
+                //    }
+                //}
+            } else // Mapped sequence accumulation
+                ++mappedCount;
+        }
     }
 }
@@ -28,13 +28,12 @@
  */
 package com.milaboratory.mixcr.assembler;
 
+import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPortCloseable;
 import cc.redberry.pipe.VoidProcessor;
-import cc.redberry.primitives.Filter;
 import com.milaboratory.core.Range;
 import com.milaboratory.core.clustering.Cluster;
 import com.milaboratory.core.clustering.Clustering;
-import com.milaboratory.core.clustering.SequenceExtractor;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.core.sequence.SequenceQuality;
@@ -42,6 +41,7 @@ import com.milaboratory.core.tree.MutationGuide;
 import com.milaboratory.core.tree.NeighborhoodIterator;
 import com.milaboratory.core.tree.SequenceTreeMap;
 import com.milaboratory.mixcr.basictypes.*;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
 import io.repseq.core.*;
 import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.Factory;
@@ -71,6 +71,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
     private final ConcurrentHashMap<ClonalSequence, CloneAccumulatorContainer> clones = new ConcurrentHashMap<>();
     private final List<CloneAccumulator> cloneList = new ArrayList<>();
     final AssemblerEventLogger globalLogger;
+    private final DeferredAlignmentsSpill deferredSpill;
     private AssemblerEventLogger deferredAlignmentsLogger;
     private TIntIntHashMap idMapping;
     private volatile SequenceTreeMap<NucleotideSequence, ArrayList<CloneAccumulatorContainer>> mappingTree;
@@ -79,6 +80,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
     private final HashMap<VDJCGeneId, VDJCGene> usedGenes = new HashMap<>();
     volatile CanReportProgress progressReporter;
     private CloneAssemblerListener listener;
+    private DAlignmentCache dAlignmentCache = DAlignmentCache.getDefault();
     volatile boolean deferredExists = false;
     volatile boolean preClusteringDone = false;
     final TIntIntHashMap preClustered = new TIntIntHashMap();
@@ -92,10 +94,13 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
     public CloneAssembler(CloneAssemblerParameters parameters, boolean logAssemblerEvents, Collection<VDJCGene> genes) {
         this.parameters = parameters.clone();
+        // Deferred alignments are spilled to temporary file (in the order of alignment indices)
+        // by the global logger, so mapping stage doesn't need to re-read the whole input
+        deferredSpill = parameters.isMappingEnabled() ? new DeferredAlignmentsSpill(genes) : null;
         if (!logAssemblerEvents && !parameters.isMappingEnabled())
             globalLogger = null;
         else
-            globalLogger = new AssemblerEventLogger();
+            globalLogger = new AssemblerEventLogger(deferredSpill);
         for (VDJCGene gene : genes)
             usedGenes.put(gene.getId(), gene);
     }
@@ -163,6 +168,13 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         this.listener = listener;
     }
 
+    /**
+     * Sets cache of D alignments used by clone factory (by default {@link DAlignmentCache#getDefault()} is used)
+     */
+    public void setDAlignmentCache(DAlignmentCache dAlignmentCache) {
+        this.dAlignmentCache = dAlignmentCache;
+    }
+
     private ClonalSequence extractClonalSequence(VDJCAlignments alignments) {
         final NSequenceWithQuality[] targets = new NSequenceWithQuality[parameters.assemblingFeatures.length];
         int totalLengt = 0;
@@ -183,6 +195,8 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
     public boolean beginMapping() {
         if (globalLogger != null)
             globalLogger.end(totalAlignments.get());
+        if (deferredSpill != null)
+            deferredSpill.end();
         if (!parameters.isMappingEnabled())
             return false;
 
@@ -201,11 +215,14 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         return true;
     }
 
-    public Filter<VDJCAlignments> getDeferredAlignmentsFilter() {
-        return new DeferredAlignmentsFilter();
+    /**
+     * Creates port of alignments deferred during initial assembly. Can be used only after {@link #beginMapping()}.
+     */
+    OutputPortCloseable<DeferredAlignmentsSpill.DeferredAlignment> createDeferredAlignmentsPort() {
+        return deferredSpill.createPort();
     }
 
-    public VoidProcessor<VDJCAlignments> getDeferredAlignmentsMapper() {
+    VoidProcessor<DeferredAlignmentsSpill.DeferredAlignment> getDeferredAlignmentsMapper() {
         if (mappingTree == null)
             throw new IllegalStateException("Mapping tree not yet created.");
         return new DeferredAlignmentsMapper();
@@ -213,7 +230,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
     public void endMapping() {
         this.mappingTree = null;
-        this.deferredAlignmentsLogger.end();
+        this.deferredAlignmentsLogger.end(deferredSpill.size());
     }
 
     public void preClustering() {
@@ -237,22 +254,42 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
     }
 
     public void runClustering() {
+        runClustering(1);
+    }
+
+    /**
+     * Performs clustering of clonotypes.
+     *
+     * @param threads number of threads; if greater than one, clonotypes are partitioned into independent groups that
+     *                are clustered in parallel (result is the same as for sequential clustering)
+     */
+    public void runClustering(int threads) {
+        runClustering(threads, ParallelCloneClustering.DEFAULT_MIN_TASK_SIZE);
+    }
+
+    /**
+     * Performs clustering of clonotypes.
+     *
+     * @param threads     number of threads
+     * @param minTaskSize minimal number of clonotypes in a single parallel clustering task
+     */
+    void runClustering(int threads, int minTaskSize) {
         if (clusteredClonesAccumulators != null)
             throw new IllegalStateException("Already clustered.");
         if (!preClusteringDone)
             throw new IllegalStateException("No preclustering done.");
 
-        @SuppressWarnings("unchecked")
-        Clustering clustering = new Clustering(cloneList,
-                new SequenceExtractor<CloneAccumulator, NucleotideSequence>() {
-                    @Override
-                    public NucleotideSequence getSequence(CloneAccumulator object) {
-                        return object.getSequence().getConcatenated().getSequence();
-                    }
-                }, new CloneClusteringStrategy(parameters.getCloneClusteringParameters(),
-                this));
-        this.progressReporter = clustering;
-        List<Cluster<CloneAccumulator>> clusters = clustering.performClustering();
+        List<Cluster<CloneAccumulator>> clusters;
+        if (threads > 1) {
+            ParallelCloneClustering clustering = new ParallelCloneClustering(this, cloneList, threads, minTaskSize);
+            this.progressReporter = clustering;
+            clusters = clustering.performClustering();
+        } else {
+            Clustering<CloneAccumulator, NucleotideSequence> clustering =
+                    ParallelCloneClustering.createClustering(this, cloneList);
+            this.progressReporter = clustering;
+            clusters = clustering.performClustering();
+        }
         clusteredClonesAccumulators = new ArrayList<>(clusters.size());
         idMapping = new TIntIntHashMap(cloneList.size());
         for (int i = 0; i < clusters.size(); ++i) {
@@ -276,17 +313,36 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         this.progressReporter = null;
     }
 
+    TIntIntHashMap getIdMapping() {
+        return idMapping;
+    }
+
+    List<CloneAccumulator> getClusteredClonesAccumulators() {
+        return clusteredClonesAccumulators;
+    }
+
     public void buildClones() {
+        buildClones(1);
+    }
+
+    /**
+     * Builds final clones.
+     *
+     * @param threads number of threads used to align clonal sequences to genes
+     */
+    public void buildClones(int threads) {
         if (!preClusteringDone)
             throw new IllegalStateException("No preclustering done.");
         ClonesBuilder builder = new ClonesBuilder();
         progressReporter = builder;
-        builder.buildClones();
+        builder.buildClones(threads);
         this.progressReporter = null;
     }
 
     @Override
     public void close() {
+        if (deferredSpill != null)
+            deferredSpill.close();
         if (globalLogger != null)
             globalLogger.close();
         if (deferredAlignmentsLogger != null)
@@ -324,20 +380,28 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
                 globalLogger.newEvent(event);
         }
 
+        // Reusable lookup keys
+        private final ThreadLocal<ClonalSequenceProbe> probes = new ThreadLocal<ClonalSequenceProbe>() {
+            @Override
+            protected ClonalSequenceProbe initialValue() {
+                return new ClonalSequenceProbe(parameters);
+            }
+        };
+
         @Override
         public void process(VDJCAlignments input) {
             totalAlignments.incrementAndGet();
-            final ClonalSequence target = extractClonalSequence(input);
-            if (target == null) {
+            // Extracting clonal sequence, calculating its hash and number of bad points in a single pass
+            final ClonalSequenceProbe target = probes.get();
+            if (!target.extract(input)) {
                 log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DROPPED));
                 droppedAlignments.incrementAndGet();
                 onFailedToExtractTarget(input);
                 return;
             }
-            //Calculating number of bad points
-            int badPoints = numberOfBadPoints(target);
+            int badPoints = target.badPoints;
 
-            if (badPoints > target.getConcatenated().size() * parameters.getMaxBadPointsPercent()) {
+            if (badPoints > target.length * parameters.getMaxBadPointsPercent()) {
                 // Too many bad points (this read has too low quality in the regions of interest)
                 log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DROPPED));
                 droppedAlignments.incrementAndGet();
@@ -347,18 +411,18 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
             if (badPoints > 0) {
                 // Has some number of bad points but not greater then maxBadPointsToMap
-                log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DEFERRED));
+                log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DEFERRED, input));
                 onAlignmentDeferred(input);
                 return;
             }
 
-            //Getting or creating accumulator from map
+            //Getting or creating accumulator from map (lookup by probe doesn't allocate anything)
             CloneAccumulatorContainer container = clones.get(target);
             if (container == null) {
                 //Creating accumulator
                 CloneAccumulatorContainer temp = new CloneAccumulatorContainer();
-                //Trying to put this new clone to map
-                container = clones.putIfAbsent(target, temp);
+                //Trying to put this new clone to map (only here clonal sequence object is created)
+                container = clones.putIfAbsent(target.createClonalSequence(), temp);
                 //Assign cloneIndex for the newly created clone only if it was successfully put into map
                 if (container == null) {
                     //Executed only once for newly created clone
@@ -367,7 +431,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
                 //accumulator variable contains correct clone from map
             }
 
-            CloneAccumulator acc = container.accumulate(target, input, false);
+            CloneAccumulator acc = container.accumulate(target, input);
             //Logging assembler events for subsequent index creation and mapping filtering
             log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), acc.getCloneIndex()));
             //Incrementing corresponding counter
@@ -376,31 +440,14 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         }
     }
 
-    private final class DeferredAlignmentsFilter implements Filter<VDJCAlignments> {
-        final Iterator<AssemblerEvent> events = globalLogger.events().iterator();
-
-        @Override
-        public boolean accept(VDJCAlignments alignment) {
-            if (!events.hasNext())
-                throw new IllegalArgumentException("This filter can not be used in concurrent " +
-                        "environment. Perform pre-filtering in a single thread.");
-            AssemblerEvent event = events.next();
-            if (alignment.getAlignmentsIndex() != event.alignmentsIndex)
-                throw new IllegalArgumentException("This filter can not be used in concurrent " +
-                        "environment. Perform pre-filtering in a single thread.");
-            if (event.cloneIndex != AssemblerEvent.DEFERRED) {
-                deferredAlignmentsLogger.newEvent(new AssemblerEvent(event.alignmentsIndex, event.readId, AssemblerEvent.DROPPED));
-                return false;
-            }
-            return true;
-        }
-    }
-
-    private final class DeferredAlignmentsMapper implements VoidProcessor<VDJCAlignments> {
+    private final class DeferredAlignmentsMapper implements VoidProcessor<DeferredAlignmentsSpill.DeferredAlignment> {
         final AssemblerUtils.MappingThresholdCalculator thresholdCalculator = parameters.getThresholdCalculator();
 
         @Override
-        public void process(VDJCAlignments input) {
+        public void process(DeferredAlignmentsSpill.DeferredAlignment deferred) {
+            // Mapping events are logged only for deferred alignments, so ordinal is used as event index
+            final long ordinal = deferred.ordinal;
+            final VDJCAlignments input = deferred.alignments;
             final ClonalSequence clonalSequence = extractClonalSequence(input);
 
             RandomUtil.reseedThreadLocal(HashFunctions.JenkinWang64shift(input.getReadId()));
@@ -435,7 +482,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
                 }
 
             if (candidates.isEmpty()) {
-                deferredAlignmentsLogger.newEvent(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(),
+                deferredAlignmentsLogger.newEvent(new AssemblerEvent(ordinal, input.getReadId(),
                         AssemblerEvent.DROPPED));
                 droppedAlignments.incrementAndGet();
                 onNoCandidateFoundForDefferedAlignment(input);
@@ -452,7 +499,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
             mappedAlignments.incrementAndGet();
             successfullyAssembledAlignments.incrementAndGet();
-            deferredAlignmentsLogger.newEvent(new AssemblerEvent(input.getAlignmentsIndex(),
+            deferredAlignmentsLogger.newEvent(new AssemblerEvent(ordinal,
                     input.getReadId(), minMismatches == 0 ?
                     accumulator.getCloneIndex() : -4 - accumulator.getCloneIndex()));
 
@@ -487,26 +534,27 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
     private final class ClonesBuilder implements CanReportProgress {
         final int sourceSize;
-        volatile int progress;
+        final AtomicInteger progress = new AtomicInteger();
 
         private ClonesBuilder() {
-            this.sourceSize = clusteredClonesAccumulators != null ? clusteredClonesAccumulators.size() : clones.size();
+            this.sourceSize = clusteredClonesAccumulators != null ? clusteredClonesAccumulators.size() : cloneList.size();
         }
 
         @Override
         public double getProgress() {
-            return (1.0 * progress) / sourceSize;
+            return (1.0 * progress.get()) / sourceSize;
         }
 
         @Override
         public boolean isFinished() {
-            return progress == sourceSize;
+            return progress.get() == sourceSize;
         }
 
-        void buildClones() {
-            CloneFactory cloneFactory =
+        void buildClones(int threads) {
+            // Clone factory is stateless (D aligner uses concurrent cache), so it is shared between threads
+            final CloneFactory cloneFactory =
                     new CloneFactory(parameters.getCloneFactoryParameters(),
-                            parameters.getAssemblingFeatures(), usedGenes);
+                            parameters.getAssemblingFeatures(), usedGenes, dAlignmentCache);
             Collection<CloneAccumulator> source;
             if (clusteredClonesAccumulators != null)
                 source = clusteredClonesAccumulators;
@@ -521,16 +569,28 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
                 }
                 source = Arrays.asList(sourceArray);
             }
-            realClones = new Clone[source.size()];
-            int i = 0;
-            Iterator<CloneAccumulator> iterator = source.iterator();
-            while (iterator.hasNext()) {
-                CloneAccumulator accumulator = iterator.next();
-                int cloneIndex = accumulator.getCloneIndex();
-                assert realClones[cloneIndex] == null;
-                realClones[cloneIndex] = cloneFactory.create(cloneIndex, accumulator);
-                this.progress = ++i;
-            }
+            // Each clone is put to the position defined by its index, so order of clones doesn't depend on the order
+            // in which they were built
+            final Clone[] realClones = new Clone[source.size()];
+            VoidProcessor<CloneAccumulator> builder = new VoidProcessor<CloneAccumulator>() {
+                @Override
+                public void process(CloneAccumulator accumulator) {
+                    int cloneIndex = accumulator.getCloneIndex();
+                    assert realClones[cloneIndex] == null;
+                    realClones[cloneIndex] = cloneFactory.create(cloneIndex, accumulator);
+                    progress.incrementAndGet();
+                }
+            };
+            if (threads > 1)
+                try {
+                    CUtils.processAllInParallel(CUtils.asOutputPort(source), builder, threads);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            else
+                for (CloneAccumulator accumulator : source)
+                    builder.process(accumulator);
+            CloneAssembler.this.realClones = realClones;
         }
     }
 
@@ -538,19 +598,29 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
      * Container for Clone Accumulators with the same clonal sequence but different V/J/C genes.
      */
     public final class CloneAccumulatorContainer {
-        final HashMap<VJCSignature, CloneAccumulator> accumulators = new HashMap<>();
+        // Copy-on-write map: replaced (under container lock) only when new accumulator is created, so lookups of
+        // existing accumulators don't require locking
+        volatile HashMap<VJCSignature, CloneAccumulator> accumulators = new HashMap<>(2);
 
-        synchronized CloneAccumulator accumulate(ClonalSequence sequence, VDJCAlignments alignments, boolean mapped) {
+        CloneAccumulator accumulate(ClonalSequenceProbe probe, VDJCAlignments alignments) {
             VJCSignature vjcSignature = extractSignature(alignments);
             CloneAccumulator acc = accumulators.get(vjcSignature);
-            if (acc == null) {
-                acc = new CloneAccumulator(sequence, extractNRegions(sequence, alignments),
-                        parameters.getQualityAggregationType());
-                accumulators.put(vjcSignature, acc);
-                acc.setCloneIndex(cloneIndexGenerator.incrementAndGet());
-                onNewCloneCreated(acc);
-            }
-            acc.accumulate(sequence, alignments, mapped);
+            if (acc == null)
+                synchronized (this) {
+                    acc = accumulators.get(vjcSignature);
+                    if (acc == null) {
+                        ClonalSequence sequence = probe.createClonalSequence();
+                        // Clone index is allocated before accumulator is published (by the volatile write below),
+                        // so all threads that see the accumulator also see its index
+                        acc = new CloneAccumulator(sequence, extractNRegions(sequence, alignments),
+                                parameters.getQualityAggregationType(), cloneIndexGenerator.incrementAndGet());
+                        HashMap<VJCSignature, CloneAccumulator> newAccumulators = new HashMap<>(accumulators);
+                        newAccumulators.put(vjcSignature, acc);
+                        accumulators = newAccumulators;
+                        onNewCloneCreated(acc);
+                    }
+                }
+            acc.accumulate(probe.getQuality(), alignments, false);
             return acc;
         }
 
@@ -30,7 +30,6 @@ package com.milaboratory.mixcr.assembler;
 
 import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPortCloseable;
-import cc.redberry.pipe.blocks.FilteringPort;
 import com.milaboratory.mixcr.basictypes.CloneSet;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.util.CanReportProgress;
@@ -83,20 +82,15 @@ public class CloneAssemblerRunner implements CanReportProgressAndStage {
         }
         // run mapping if required
         if (assembler.beginMapping()) {
-            synchronized (this) {
-                stage = "Preparing for mapping of low quality reads";
-                innerProgress = null;
-            }
-            try (OutputPortCloseable<VDJCAlignments> alignmentsPort = alignmentsProvider.create()) {
+            // Only alignments deferred during initial assembly are read here
+            try (OutputPortCloseable<DeferredAlignmentsSpill.DeferredAlignment> deferredPort =
+                         assembler.createDeferredAlignmentsPort()) {
                 synchronized (this) {
                     stage = "Mapping low quality reads";
-                    if (alignmentsPort instanceof CanReportProgress)
-                        innerProgress = (CanReportProgress) alignmentsPort;
+                    innerProgress = (CanReportProgress) deferredPort;
                 }
                 try {
-                    CUtils.processAllInParallel(CUtils.buffered(
-                            new FilteringPort<>(alignmentsPort,
-                                    assembler.getDeferredAlignmentsFilter()), 128),
+                    CUtils.processAllInParallel(CUtils.buffered(deferredPort, 128),
                             assembler.getDeferredAlignmentsMapper(), threads);
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
@@ -111,14 +105,14 @@ public class CloneAssemblerRunner implements CanReportProgressAndStage {
                 stage = "Clustering";
                 innerProgress = assembler;
             }
-            assembler.runClustering();
+            assembler.runClustering(threads);
         }
         //build clones
         synchronized (this) {
             stage = "Building clones";
             innerProgress = assembler;
         }
-        assembler.buildClones();
+        assembler.buildClones(threads);
         isFinished = true;
     }
 
@@ -33,6 +33,7 @@ import com.milaboratory.core.alignment.*;
 import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.mixcr.basictypes.Clone;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
 import com.milaboratory.mixcr.vdjaligners.SingleDAligner;
 import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
 import gnu.trove.iterator.TObjectFloatIterator;
@@ -49,7 +50,7 @@ class CloneFactory {
     final int indexOfAssemblingFeatureWithD;
 
     CloneFactory(CloneFactoryParameters parameters, GeneFeature[] assemblingFeatures,
-                 HashMap<VDJCGeneId, VDJCGene> usedGenes) {
+                 HashMap<VDJCGeneId, VDJCGene> usedGenes, DAlignmentCache dAlignmentCache) {
         this.parameters = parameters.clone();
         this.assemblingFeatures = assemblingFeatures.clone();
         this.usedGenes = usedGenes;
@@ -57,7 +58,7 @@ class CloneFactory {
         for (VDJCGene gene : usedGenes.values())
             if (gene.getGeneType() == GeneType.Diversity)
                 dGenes.add(gene);
-        this.dAligner = new SingleDAligner(parameters.getDParameters(), dGenes);
+        this.dAligner = new SingleDAligner(parameters.getDParameters(), dGenes, dAlignmentCache);
 
         int indexOfAssemblingFeatureWithD = -1;
         for (int i = 0; i < assemblingFeatures.length; ++i)
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import com.milaboratory.mixcr.basictypes.IOUtil;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.TempFileManager;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import com.milaboratory.util.CanReportProgress;
+import io.repseq.core.VDJCGene;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Temporary storage for alignments deferred by initial assembler. Alignments are written in the order of their
+ * indices (see {@link AssemblerEventLogger}), so the mapping stage reads only this (usually small) file instead of
+ * re-reading the whole input.
+ */
+final class DeferredAlignmentsSpill implements AutoCloseable {
+    final File file;
+    final List<VDJCGene> genes;
+    final PrimitivO output;
+    long count = 0;
+    boolean ended = false;
+
+    DeferredAlignmentsSpill(Collection<VDJCGene> genes) {
+        this.genes = new ArrayList<>(genes);
+        try {
+            this.file = TempFileManager.getTempFile();
+            this.output = new PrimitivO(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        IOUtil.registerGeneReferences(output, this.genes, null);
+    }
+
+    /**
+     * Must be invoked in the order of alignment indices.
+     */
+    synchronized void write(VDJCAlignments alignments) {
+        if (ended)
+            throw new IllegalStateException();
+        output.writeLong(alignments.getAlignmentsIndex());
+        output.writeObject(alignments);
+        ++count;
+    }
+
+    synchronized void end() {
+        if (ended)
+            return;
+        output.writeLong(-1);
+        output.close();
+        ended = true;
+    }
+
+    /**
+     * Returns number of spilled alignments
+     */
+    synchronized long size() {
+        return count;
+    }
+
+    OutputPortCloseable<DeferredAlignment> createPort() {
+        if (!ended)
+            throw new IllegalStateException("Spill is not finished.");
+        try {
+            return new SpillPort(new PrimitivI(new BufferedInputStream(new FileInputStream(file), 65536)));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes underlying file.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!ended) {
+                output.close();
+                ended = true;
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Deferred alignment and its ordinal among all deferred alignments.
+     */
+    static final class DeferredAlignment {
+        final long ordinal;
+        final VDJCAlignments alignments;
+
+        DeferredAlignment(long ordinal, VDJCAlignments alignments) {
+            this.ordinal = ordinal;
+            this.alignments = alignments;
+        }
+    }
+
+    private final class SpillPort implements OutputPortCloseable<DeferredAlignment>, CanReportProgress {
+        final PrimitivI input;
+        volatile long ordinal = 0;
+        boolean closed = false;
+
+        SpillPort(PrimitivI input) {
+            this.input = input;
+            IOUtil.registerGeneReferences(input, genes, null);
+        }
+
+        @Override
+        public synchronized DeferredAlignment take() {
+            if (closed)
+                return null;
+            long alignmentsIndex = input.readLong();
+            if (alignmentsIndex == -1) {
+                close();
+                return null;
+            }
+            VDJCAlignments alignments = input.readObject(VDJCAlignments.class);
+            alignments.setAlignmentsIndex(alignmentsIndex);
+            return new DeferredAlignment(ordinal++, alignments);
+        }
+
+        @Override
+        public double getProgress() {
+            return count == 0 ? 1.0 : 1.0 * ordinal / count;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            input.close();
+            closed = true;
+        }
+    }
+}
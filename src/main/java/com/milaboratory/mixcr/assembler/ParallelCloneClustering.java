@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import com.milaboratory.core.clustering.Cluster;
+import com.milaboratory.core.clustering.Clustering;
+import com.milaboratory.core.clustering.SequenceExtractor;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.core.tree.TreeSearchParameters;
+import com.milaboratory.util.CanReportProgress;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import io.repseq.core.GeneType;
+import io.repseq.core.VDJCGeneId;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performs clustering of clonotypes in several independent groups in parallel.
+ *
+ * <p>Clonotypes are partitioned so that no two clonotypes from different groups can be clustered together (or
+ * compete for the same cluster): if search parameters don't allow indels, only clonotypes with the same clonal
+ * sequence length can interact; and (if clonotypes are separated by V, J or C genes) minor clonotype can be added to
+ * a cluster only if it has a hit with the top gene of the cluster head, so clonotypes without common genes can't
+ * interact. Clustering inside each group is performed by the same sequential algorithm as for the whole set, and the
+ * resulting clusters are ordered in the same way as the sequential algorithm orders them, so the final result is
+ * identical to the sequential clustering.</p>
+ */
+final class ParallelCloneClustering implements CanReportProgress {
+    /**
+     * Small groups are packed together into tasks of (at least) this number of clonotypes
+     */
+    static final int DEFAULT_MIN_TASK_SIZE = 1024;
+    final CloneAssembler assembler;
+    final List<CloneAccumulator> clones;
+    final int threads;
+    final int minTaskSize;
+    final AtomicLong processed = new AtomicLong();
+    volatile boolean finished = false;
+
+    ParallelCloneClustering(CloneAssembler assembler, List<CloneAccumulator> clones, int threads) {
+        this(assembler, clones, threads, DEFAULT_MIN_TASK_SIZE);
+    }
+
+    ParallelCloneClustering(CloneAssembler assembler, List<CloneAccumulator> clones, int threads, int minTaskSize) {
+        if (minTaskSize <= 0)
+            throw new IllegalArgumentException();
+        this.assembler = assembler;
+        this.clones = clones;
+        this.threads = threads;
+        this.minTaskSize = minTaskSize;
+    }
+
+    @Override
+    public double getProgress() {
+        return clones.isEmpty() ? 1.0 : (1.0 * processed.get()) / clones.size();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns clusters in the same order as {@link Clustering#performClustering()} invoked for all clonotypes.
+     */
+    List<Cluster<CloneAccumulator>> performClustering() {
+        List<List<CloneAccumulator>> groups = partition();
+
+        // Largest groups go first for better load balancing
+        Collections.sort(groups, new Comparator<List<CloneAccumulator>>() {
+            @Override
+            public int compare(List<CloneAccumulator> o1, List<CloneAccumulator> o2) {
+                return Integer.compare(o2.size(), o1.size());
+            }
+        });
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Future<List<Cluster<CloneAccumulator>>>> futures = new ArrayList<>();
+        try {
+            List<List<CloneAccumulator>> task = new ArrayList<>();
+            int taskSize = 0;
+            for (List<CloneAccumulator> group : groups) {
+                task.add(group);
+                if ((taskSize += group.size()) >= minTaskSize) {
+                    futures.add(pool.submit(new ClusteringTask(task)));
+                    task = new ArrayList<>();
+                    taskSize = 0;
+                }
+            }
+            if (!task.isEmpty())
+                futures.add(pool.submit(new ClusteringTask(task)));
+
+            List<Cluster<CloneAccumulator>> result = new ArrayList<>();
+            for (Future<List<Cluster<CloneAccumulator>>> future : futures)
+                result.addAll(future.get());
+
+            // Restoring order of the sequential algorithm: heads are ordered by decreasing count, ties are resolved
+            // by the order in the input list
+            final TIntIntHashMap positions = new TIntIntHashMap(clones.size());
+            for (int i = 0; i < clones.size(); i++)
+                positions.put(clones.get(i).getCloneIndex(), i);
+            Collections.sort(result, new Comparator<Cluster<CloneAccumulator>>() {
+                @Override
+                public int compare(Cluster<CloneAccumulator> o1, Cluster<CloneAccumulator> o2) {
+                    int c = Long.compare(o2.getHead().getCount(), o1.getHead().getCount());
+                    if (c != 0)
+                        return c;
+                    return Integer.compare(positions.get(o1.getHead().getCloneIndex()),
+                            positions.get(o2.getHead().getCloneIndex()));
+                }
+            });
+            return result;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+            finished = true;
+        }
+    }
+
+    /**
+     * Splits clonotypes into groups of potentially interacting clonotypes (connected components). Order of clonotypes
+     * inside each group is the same as in the input list.
+     */
+    List<List<CloneAccumulator>> partition() {
+        TreeSearchParameters searchParameters = assembler.parameters.getCloneClusteringParameters()
+                .getSearchParameters();
+        boolean byLength = searchParameters.getMaxInsertions() == 0 && searchParameters.getMaxDeletions() == 0;
+
+        GeneType geneType = null;
+        if (assembler.parameters.getSeparateByV())
+            geneType = GeneType.Variable;
+        else if (assembler.parameters.getSeparateByJ())
+            geneType = GeneType.Joining;
+        else if (assembler.parameters.getSeparateByC())
+            geneType = GeneType.Constant;
+
+        int size = clones.size();
+
+        // Clonotypes without hits of the selected gene type can be clustered with any other clonotype
+        // (of the same length class)
+        TIntHashSet wildcardClasses = new TIntHashSet();
+        if (geneType != null)
+            for (CloneAccumulator clone : clones) {
+                TObjectFloatHashMap<VDJCGeneId> genes = clone.geneScores.get(geneType);
+                if (genes == null || genes.isEmpty())
+                    wildcardClasses.add(lengthClass(clone, byLength));
+            }
+
+        int[] parents = new int[size];
+        for (int i = 0; i < size; i++)
+            parents[i] = i;
+
+        HashMap<PartitionKey, Integer> representatives = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            CloneAccumulator clone = clones.get(i);
+            int lengthClass = lengthClass(clone, byLength);
+            if (geneType == null || wildcardClasses.contains(lengthClass))
+                union(parents, i, representatives, new PartitionKey(lengthClass, null));
+            else
+                for (VDJCGeneId gene : clone.geneScores.get(geneType).keySet())
+                    union(parents, i, representatives, new PartitionKey(lengthClass, gene));
+        }
+
+        LinkedHashMap<Integer, List<CloneAccumulator>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            int root = find(parents, i);
+            List<CloneAccumulator> group = groups.get(root);
+            if (group == null)
+                groups.put(root, group = new ArrayList<>());
+            group.add(clones.get(i));
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int lengthClass(CloneAccumulator clone, boolean byLength) {
+        return byLength ? clone.getSequence().getConcatenated().size() : -1;
+    }
+
+    private static void union(int[] parents, int element, HashMap<PartitionKey, Integer> representatives,
+                              PartitionKey key) {
+        Integer representative = representatives.get(key);
+        if (representative == null) {
+            representatives.put(key, element);
+            return;
+        }
+        int a = find(parents, element), b = find(parents, representative);
+        if (a != b)
+            // Smaller index becomes root
+            if (a < b)
+                parents[b] = a;
+            else
+                parents[a] = b;
+    }
+
+    private static int find(int[] parents, int element) {
+        int root = element;
+        while (parents[root] != root)
+            root = parents[root];
+        // Path compression
+        while (parents[element] != root) {
+            int next = parents[element];
+            parents[element] = root;
+            element = next;
+        }
+        return root;
+    }
+
+    private static final class PartitionKey {
+        final int lengthClass;
+        // null for all genes
+        final VDJCGeneId gene;
+
+        PartitionKey(int lengthClass, VDJCGeneId gene) {
+            this.lengthClass = lengthClass;
+            this.gene = gene;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PartitionKey that = (PartitionKey) o;
+            return lengthClass == that.lengthClass && (gene != null ? gene.equals(that.gene) : that.gene == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * lengthClass + (gene != null ? gene.hashCode() : 0);
+        }
+    }
+
+    private final class ClusteringTask implements Callable<List<Cluster<CloneAccumulator>>> {
+        final List<List<CloneAccumulator>> groups;
+
+        ClusteringTask(List<List<CloneAccumulator>> groups) {
+            this.groups = groups;
+        }
+
+        @Override
+        public List<Cluster<CloneAccumulator>> call() throws Exception {
+            // Clonotypes from different groups don't interact, so all groups of the task are clustered at once
+            List<CloneAccumulator> clones = new ArrayList<>();
+            for (List<CloneAccumulator> group : groups)
+                clones.addAll(group);
+            List<Cluster<CloneAccumulator>> result = createClustering(assembler, clones).performClustering();
+            processed.addAndGet(clones.size());
+            return result;
+        }
+    }
+
+    static Clustering<CloneAccumulator, NucleotideSequence> createClustering(CloneAssembler assembler,
+                                                                            List<CloneAccumulator> clones) {
+        return new Clustering<>(clones,
+                new SequenceExtractor<CloneAccumulator, NucleotideSequence>() {
+                    @Override
+                    public NucleotideSequence getSequence(CloneAccumulator object) {
+                        return object.getSequence().getConcatenated().getSequence();
+                    }
+                }, new CloneClusteringStrategy(assembler.parameters.getCloneClusteringParameters(), assembler));
+    }
+}
@@ -41,10 +41,16 @@ import java.util.Iterator;
 import static com.milaboratory.core.mutations.Mutation.*;
 
 public final class ClonalSequence implements Iterable<NSequenceWithQuality> {
+    /**
+     * Hash code is a polynomial hash of nucleotide codes of the concatenated sequence, so it can be calculated
+     * incrementally from the parts without concatenation
+     */
+    public static final int HASH_SEED = 17, HASH_MULTIPLIER = 31;
     public final NSequenceWithQuality[] sequences;
     protected final NSequenceWithQuality sequence;
     protected final int[] pointers;
     private Stretch[] stretches;
+    private int hash;
 
     public ClonalSequence(final NSequenceWithQuality[] sequences) {
         this.sequences = sequences;
@@ -189,7 +195,15 @@ public final class ClonalSequence implements Iterable<NSequenceWithQuality> {
 
     @Override
     public int hashCode() {
-        return sequence.getSequence().hashCode();
+        int h = hash;
+        if (h == 0) {
+            h = HASH_SEED;
+            NucleotideSequence seq = sequence.getSequence();
+            for (int i = 0, size = seq.size(); i < size; ++i)
+                h = HASH_MULTIPLIER * h + seq.codeAt(i);
+            hash = h;
+        }
+        return h;
     }
 
     private static Stretch truncate(Mutations<NucleotideSequence> mutations, Stretch initial, int boundary) {
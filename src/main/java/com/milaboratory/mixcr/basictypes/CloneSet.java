@@ -61,6 +61,18 @@ public final class CloneSet implements Iterable<Clone> {
         this.assemblingFeatures = assemblingFeatures;
     }
 
+    /**
+     * Creates clone set without clones, used as a parent of clones streamed by {@link CloneSetIO.CloneSetReader}
+     */
+    CloneSet(long totalCount, Collection<VDJCGene> usedGenes, EnumMap<GeneType, GeneFeature> alignedFeatures,
+             GeneFeature[] assemblingFeatures) {
+        this.clones = Collections.emptyList();
+        this.alignedFeatures = alignedFeatures.clone();
+        this.usedGenes = Collections.unmodifiableList(new ArrayList<>(usedGenes));
+        this.totalCount = totalCount;
+        this.assemblingFeatures = assemblingFeatures;
+    }
+
     public CloneSet(List<Clone> clones) {
         this.clones = Collections.unmodifiableList(new ArrayList<>(clones));
         long totalCount = 0;
@@ -28,9 +28,11 @@
  */
 package com.milaboratory.mixcr.basictypes;
 
+import cc.redberry.pipe.OutputPortCloseable;
 import com.milaboratory.mixcr.util.MiXCRVersionInfo;
 import com.milaboratory.primitivio.PrimitivI;
 import com.milaboratory.primitivio.PrimitivO;
+import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.CanReportProgressAndStage;
 import io.repseq.core.*;
 
@@ -42,7 +44,8 @@ import java.util.List;
 
 public final class CloneSetIO {
     static final String MAGIC_V5 = "MiXCR.CLNS.V05";
-    static final String MAGIC = MAGIC_V5;
+    static final String MAGIC_V6 = "MiXCR.CLNS.V06";
+    static final String MAGIC = MAGIC_V6;
     static final int MAGIC_LENGTH = 14;
     static final byte[] MAGIC_BYTES = MAGIC.getBytes(StandardCharsets.US_ASCII);
 
@@ -101,6 +104,7 @@ public final class CloneSetIO {
             IOUtil.writeGeneReferences(output, cloneSet.getUsedGenes(), new GT2GFAdapter(cloneSet.alignedFeatures));
 
             output.writeInt(cloneSet.getClones().size());
+            output.writeLong(totalCountWithVJCHits(cloneSet));
 
             for (Clone clone : cloneSet) {
                 output.writeObject(clone);
@@ -114,6 +118,30 @@ public final class CloneSetIO {
         }
     }
 
+    /**
+     * Total count of clones having at least one V, J or C hit, i.e. of clones passing the default (all chains) export
+     * filter. Stored in the file header so that fractions can be exported without additional pass over the clones.
+     */
+    static long totalCountWithVJCHits(CloneSet cloneSet) {
+        long totalCount = 0;
+        for (Clone clone : cloneSet)
+            if (hasVJCHit(clone))
+                totalCount += clone.getCount();
+        return totalCount;
+    }
+
+    /**
+     * Returns true if object has V, J or C hit (the same criterion as chains filter with all chains)
+     */
+    public static boolean hasVJCHit(VDJCObject object) {
+        for (GeneType gt : GeneType.VJC_REFERENCE) {
+            VDJCHit bestHit = object.getBestHit(gt);
+            if (bestHit != null && Chains.ALL.intersects(bestHit.getGene().getChains()))
+                return true;
+        }
+        return false;
+    }
+
     public static void write(CloneSet cloneSet, File file) throws IOException {
         try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 32768)) {
             write(cloneSet, os);
@@ -157,41 +185,134 @@ public final class CloneSetIO {
     }
 
     public static CloneSet read(InputStream inputStream, VDJCLibraryRegistry libraryRegistry) {
-        PrimitivI input = new PrimitivI(inputStream);
+        CloneSetReader reader = new CloneSetReader(inputStream, libraryRegistry);
+        List<Clone> clones = new ArrayList<>(reader.getNumberOfClones());
+        Clone clone;
+        while ((clone = reader.take()) != null)
+            clones.add(clone);
 
-        // Registering custom serializer
-        input.getSerializersManager().registerCustomSerializer(GeneFeature.class, new GeneFeatureSerializer(true));
+        CloneSet cloneSet = new CloneSet(clones, reader.getUsedGenes(), reader.alignedFeatures, reader.getAssemblingFeatures());
+        cloneSet.versionInfo = reader.getVersionInfo();
 
-        byte[] magicBytes = new byte[MAGIC_LENGTH];
-        input.readFully(magicBytes);
+        return cloneSet;
+    }
 
-        String magicString = new String(magicBytes);
+    /**
+     * Reads clones one by one without materializing the whole clone set in memory.
+     */
+    public static final class CloneSetReader implements OutputPortCloseable<Clone>, CanReportProgress {
+        final PrimitivI input;
+        final String versionInfo;
+        final GeneFeature[] assemblingFeatures;
+        final EnumMap<GeneType, GeneFeature> alignedFeatures;
+        final List<VDJCGene> genes;
+        final int numberOfClones;
+        final long totalCountWithVJCHits;
+        CloneSet parent;
+        volatile int current = 0;
+
+        public CloneSetReader(String fileName, VDJCLibraryRegistry libraryRegistry) throws IOException {
+            this(new File(fileName), libraryRegistry);
+        }
 
-        //SerializersManager serializersManager = input.getSerializersManager();
+        public CloneSetReader(File file, VDJCLibraryRegistry libraryRegistry) throws IOException {
+            this(IOUtil.createIS(file), libraryRegistry);
+        }
 
-        switch (magicString) {
-            case MAGIC:
-                break;
-            default:
-                throw new RuntimeException("Unsupported file format; .clns file of version " + magicString +
-                        " while you are running MiXCR " + MAGIC);
+        public CloneSetReader(InputStream inputStream, VDJCLibraryRegistry libraryRegistry) {
+            this.input = new PrimitivI(inputStream);
+
+            // Registering custom serializer
+            input.getSerializersManager().registerCustomSerializer(GeneFeature.class, new GeneFeatureSerializer(true));
+
+            byte[] magicBytes = new byte[MAGIC_LENGTH];
+            input.readFully(magicBytes);
+
+            String magicString = new String(magicBytes, StandardCharsets.US_ASCII);
+
+            switch (magicString) {
+                case MAGIC_V5:
+                case MAGIC:
+                    break;
+                default:
+                    throw new RuntimeException("Unsupported file format; .clns file of version " + magicString +
+                            " while you are running MiXCR " + MAGIC);
+            }
+
+            this.versionInfo = input.readUTF();
+            this.assemblingFeatures = input.readObject(GeneFeature[].class);
+            this.alignedFeatures = IO.readGF2GTMap(input);
+            this.genes = IOUtil.readGeneReferences(input, libraryRegistry, new GT2GFAdapter(alignedFeatures));
+            this.numberOfClones = input.readInt();
+            this.totalCountWithVJCHits = MAGIC_V5.equals(magicString) ? -1 : input.readLong();
         }
 
-        String versionInfo = input.readUTF();
+        public String getVersionInfo() {
+            return versionInfo;
+        }
 
-        GeneFeature[] assemblingFeatures = input.readObject(GeneFeature[].class);
-        EnumMap<GeneType, GeneFeature> alignedFeatures = IO.readGF2GTMap(input);
-        List<VDJCGene> genes = IOUtil.readGeneReferences(input, libraryRegistry, new GT2GFAdapter(alignedFeatures));
+        public GeneFeature[] getAssemblingFeatures() {
+            return assemblingFeatures;
+        }
 
-        int count = input.readInt();
-        List<Clone> clones = new ArrayList<>(count);
-        for (int i = 0; i < count; i++)
-            clones.add(input.readObject(Clone.class));
+        public GeneFeature getAlignedGeneFeature(GeneType geneType) {
+            return alignedFeatures.get(geneType);
+        }
 
-        CloneSet cloneSet = new CloneSet(clones, genes, alignedFeatures, assemblingFeatures);
-        cloneSet.versionInfo = versionInfo;
+        public List<VDJCGene> getUsedGenes() {
+            return genes;
+        }
 
-        return cloneSet;
+        public int getNumberOfClones() {
+            return numberOfClones;
+        }
+
+        /**
+         * Returns total number of reads in clones having at least one V, J or C hit (see {@link #hasVJCHit(VDJCObject)}),
+         * or -1 if file was written by older version of MiXCR and does not contain this information
+         */
+        public long getTotalCountWithVJCHits() {
+            return totalCountWithVJCHits;
+        }
+
+        /**
+         * Binds all subsequently read clones to the clone set with specified total count, so that
+         * {@link Clone#getFraction()} is available without reading the whole file.
+         *
+         * @param totalCount total count used to calculate clone fractions
+         */
+        public void setFractionsTotalCount(long totalCount) {
+            if (current != 0)
+                throw new IllegalStateException("Some clones were already read.");
+            this.parent = new CloneSet(totalCount, genes, alignedFeatures, assemblingFeatures);
+            this.parent.versionInfo = versionInfo;
+        }
+
+        @Override
+        public synchronized Clone take() {
+            if (current == numberOfClones)
+                return null;
+            Clone clone = input.readObject(Clone.class);
+            if (parent != null)
+                clone.setParentCloneSet(parent);
+            ++current;
+            return clone;
+        }
+
+        @Override
+        public double getProgress() {
+            return numberOfClones == 0 ? 1.0 : (1.0 * current) / numberOfClones;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return current == numberOfClones;
+        }
+
+        @Override
+        public void close() {
+            input.close();
+        }
     }
 
     private static class GT2GFAdapter implements HasFeatureToAlign {
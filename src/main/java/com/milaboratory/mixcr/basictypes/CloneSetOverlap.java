@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.core.sequence.NucleotideSequence;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import io.repseq.core.GeneType;
+import io.repseq.core.VDJCGeneId;
+import io.repseq.core.VDJCLibraryRegistry;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Calculates overlap of several clone sets.
+ *
+ * <p>Each clone is represented by a key containing its clonal sequences (and, optionally, ids of its best V, J and C
+ * genes). Keys are looked up by 64-bit hash and confirmed by exact comparison, so memory used by this class is
+ * proportional to the number of unique keys and the total number of occurrences of keys in clone sets, and does not
+ * depend on the size of clone objects. Clone sets are streamed from files (see {@link CloneSetIO.CloneSetReader})
+ * and each file is read exactly once.</p>
+ */
+public final class CloneSetOverlap {
+    private static final int NO_ENTRY = -1;
+    private static final GeneType[] VJC = {GeneType.Variable, GeneType.Joining, GeneType.Constant};
+    private static final char[] VJC_LETTERS = {'v', 'j', 'c'};
+    final boolean useV, useJ, useC;
+    // Sample information
+    final List<String> sampleNames = new ArrayList<>();
+    final TLongArrayList sampleClones = new TLongArrayList(), sampleReads = new TLongArrayList();
+    // key hash -> id of the last added key with this hash
+    final TLongIntHashMap keyIds = new TLongIntHashMap(16, 0.5f, 0L, NO_ENTRY);
+    // key id -> key, previous key with the same hash (hash collisions are resolved by exact comparison of keys)
+    final List<CloneKey> keys = new ArrayList<>();
+    final TIntArrayList sameHashKey = new TIntArrayList();
+    // key id -> first occurrence
+    final TIntArrayList firstOccurrence = new TIntArrayList();
+    // Occurrences (linked lists for each key, latest sample first)
+    final TIntArrayList occurrenceSample = new TIntArrayList(), occurrenceNext = new TIntArrayList();
+    final TLongArrayList occurrenceReads = new TLongArrayList();
+
+    public CloneSetOverlap(boolean useV, boolean useJ, boolean useC) {
+        this.useV = useV;
+        this.useJ = useJ;
+        this.useC = useC;
+    }
+
+    /**
+     * Reads clone set and returns keys of its clones.
+     *
+     * @throws IllegalArgumentException if clone set contains several clones with the same key
+     */
+    public SampleKeys readKeys(String file) throws IOException {
+        try (CloneSetIO.CloneSetReader reader = new CloneSetIO.CloneSetReader(file, VDJCLibraryRegistry.getDefault())) {
+            SampleKeys keys = new SampleKeys(reader.getNumberOfClones());
+            // key -> best V, J and C genes of the clone
+            HashMap<CloneKey, VDJCGeneId[]> seen = new HashMap<>(reader.getNumberOfClones());
+            Clone clone;
+            while ((clone = reader.take()) != null) {
+                CloneKey key = key(clone);
+                VDJCGeneId[] genes = new VDJCGeneId[VJC.length];
+                for (int i = 0; i < VJC.length; i++)
+                    genes[i] = bestGene(clone, VJC[i]);
+                VDJCGeneId[] previous = seen.put(key, genes);
+                if (previous != null)
+                    throw new IllegalArgumentException(duplicateKeyError(file, previous, genes));
+                keys.add(key, clone.getCount());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Message for clones with the same key; suggests option adding the gene which differs between clones to the key
+     */
+    private static String duplicateKeyError(String file, VDJCGeneId[] genes1, VDJCGeneId[] genes2) {
+        char letter = 'X';
+        for (int i = 0; i < VJC.length; i++)
+            if (!Objects.equals(genes1[i], genes2[i]))
+                letter = VJC_LETTERS[i];
+        String error = "Error: clones with the same key present in " + file + ".";
+        if (letter != 'X')
+            error += " Seems that clones were assembled using -OseparateBy" + Character.toUpperCase(letter) +
+                    "=true option, please add -" + letter + " option to this command.";
+        return error;
+    }
+
+    /**
+     * Adds clone set to the overlap.
+     */
+    public void add(String sampleName, SampleKeys keys) {
+        int sample = sampleNames.size();
+        sampleNames.add(sampleName);
+        sampleClones.add(keys.keys.size());
+        long reads = 0;
+        for (int i = 0; i < keys.keys.size(); i++) {
+            long count = keys.counts.get(i);
+            reads += count;
+            int keyId = keyId(keys.keys.get(i));
+            int occurrence = occurrenceSample.size();
+            occurrenceSample.add(sample);
+            occurrenceReads.add(count);
+            occurrenceNext.add(firstOccurrence.get(keyId));
+            firstOccurrence.set(keyId, occurrence);
+        }
+        sampleReads.add(reads);
+    }
+
+    /**
+     * Reads clone sets from files and adds them to the overlap in the order of files. Files are decoded in parallel.
+     */
+    public void addAll(List<String> files, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), READER_THREAD_FACTORY);
+        try {
+            ArrayDeque<Future<SampleKeys>> pending = new ArrayDeque<>();
+            int next = 0, added = 0;
+            while (added < files.size()) {
+                while (next < files.size() && pending.size() < Math.max(1, threads)) {
+                    final String file = files.get(next++);
+                    pending.add(executor.submit(new Callable<SampleKeys>() {
+                        @Override
+                        public SampleKeys call() throws Exception {
+                            return readKeys(file);
+                        }
+                    }));
+                }
+                SampleKeys keys;
+                try {
+                    keys = pending.poll().get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+                add(files.get(added++), keys);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns id of the key, adding new key if it is not yet present
+     */
+    private int keyId(CloneKey key) {
+        int last = keyIds.get(key.hash);
+        for (int keyId = last; keyId != NO_ENTRY; keyId = sameHashKey.get(keyId))
+            if (keys.get(keyId).equals(key))
+                return keyId;
+        int keyId = keys.size();
+        keys.add(key);
+        sameHashKey.add(last);
+        keyIds.put(key.hash, keyId);
+        firstOccurrence.add(NO_ENTRY);
+        return keyId;
+    }
+
+    public int getNumberOfSamples() {
+        return sampleNames.size();
+    }
+
+    public String getSampleName(int sample) {
+        return sampleNames.get(sample);
+    }
+
+    public long getNumberOfClones(int sample) {
+        return sampleClones.get(sample);
+    }
+
+    public long getNumberOfReads(int sample) {
+        return sampleReads.get(sample);
+    }
+
+    /**
+     * Returns number of unique keys in all clone sets.
+     */
+    public int getNumberOfKeys() {
+        return firstOccurrence.size();
+    }
+
+    /**
+     * Calculates pairwise and N-way overlap statistics in a single pass over all keys.
+     */
+    public Statistics calculate() {
+        int n = getNumberOfSamples();
+        Statistics stat = new Statistics(n);
+        int[] samples = new int[n];
+        long[] reads = new long[n];
+        for (int keyId = 0; keyId < firstOccurrence.size(); ++keyId) {
+            int m = 0;
+            long keyReads = 0;
+            for (int o = firstOccurrence.get(keyId); o != NO_ENTRY; o = occurrenceNext.get(o)) {
+                samples[m] = occurrenceSample.get(o);
+                reads[m] = occurrenceReads.get(o);
+                keyReads += reads[m];
+                ++m;
+            }
+            stat.keysByOccurrence[m]++;
+            stat.readsByOccurrence[m] += keyReads;
+            if (m == 1) {
+                stat.uniqueClones[samples[0]]++;
+                stat.uniqueReads[samples[0]] += reads[0];
+            }
+            for (int i = 0; i < m; ++i)
+                for (int j = 0; j < m; ++j) {
+                    if (i == j)
+                        continue;
+                    stat.sharedClones[samples[i]][samples[j]]++;
+                    stat.sharedReads[samples[i]][samples[j]] += reads[i];
+                }
+        }
+        return stat;
+    }
+
+    private CloneKey key(Clone clone) {
+        NucleotideSequence[] sequences = new NucleotideSequence[clone.numberOfTargets()];
+        long h = 0;
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = clone.getTarget(i).getSequence();
+            h = mix(h, VDJCAlignmentsFeatureIndex.hash(sequences[i]));
+        }
+        VDJCGeneId[] genes = new VDJCGeneId[]{
+                useV ? bestGene(clone, GeneType.Variable) : null,
+                useJ ? bestGene(clone, GeneType.Joining) : null,
+                useC ? bestGene(clone, GeneType.Constant) : null
+        };
+        for (VDJCGeneId gene : genes)
+            h = mix(h, gene == null ? 0 : gene.hashCode());
+        return new CloneKey(sequences, genes, h);
+    }
+
+    private static VDJCGeneId bestGene(Clone clone, GeneType geneType) {
+        VDJCHit hit = clone.getBestHit(geneType);
+        return hit == null ? null : hit.getGene().getId();
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Clone key: clonal sequences and ids of best genes used in comparison; 64-bit hash is used for lookup, while
+     * equality is exact
+     */
+    static final class CloneKey {
+        final NucleotideSequence[] sequences;
+        // Best V, J and C genes (null if gene is not used in comparison or clone has no hits)
+        final VDJCGeneId[] genes;
+        final long hash;
+
+        CloneKey(NucleotideSequence[] sequences, VDJCGeneId[] genes, long hash) {
+            this.sequences = sequences;
+            this.genes = genes;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CloneKey)) return false;
+            CloneKey that = (CloneKey) o;
+            return hash == that.hash && Arrays.equals(sequences, that.sequences) && Arrays.equals(genes, that.genes);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    /**
+     * Keys of clones from a single clone set
+     */
+    public static final class SampleKeys {
+        final List<CloneKey> keys;
+        final TLongArrayList counts;
+
+        SampleKeys(int capacity) {
+            this.keys = new ArrayList<>(capacity);
+            this.counts = new TLongArrayList(capacity);
+        }
+
+        void add(CloneKey key, long count) {
+            keys.add(key);
+            counts.add(count);
+        }
+    }
+
+    public static final class Statistics {
+        /**
+         * sharedClones[i][j] - number of clones of sample i present in sample j
+         */
+        public final long[][] sharedClones;
+        /**
+         * sharedReads[i][j] - number of reads of sample i in clones present in sample j
+         */
+        public final long[][] sharedReads;
+        /**
+         * Number of clones (reads) of the sample not present in any other sample
+         */
+        public final long[] uniqueClones, uniqueReads;
+        /**
+         * keysByOccurrence[k] - number of clonotypes present in exactly k samples; readsByOccurrence[k] - total
+         * number of reads in such clonotypes (in all samples)
+         */
+        public final long[] keysByOccurrence, readsByOccurrence;
+
+        Statistics(int n) {
+            this.sharedClones = new long[n][n];
+            this.sharedReads = new long[n][n];
+            this.uniqueClones = new long[n];
+            this.uniqueReads = new long[n];
+            this.keysByOccurrence = new long[n + 1];
+            this.readsByOccurrence = new long[n + 1];
+        }
+    }
+
+    private static final ThreadFactory READER_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CloneSetReader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+}
@@ -49,6 +49,15 @@ public class IOUtil {
         for (VDJCGene gene : genes)
             output.writeObject(gene.getId());
 
+        registerGeneReferences(output, genes, featuresToAlign);
+    }
+
+    /**
+     * Puts genes and sequences of their features to align to the list of known references of the stream, the same
+     * way as {@link #writeGeneReferences(PrimitivO, List, HasFeatureToAlign)} does, but without writing gene ids.
+     */
+    public static void registerGeneReferences(PrimitivO output, List<VDJCGene> genes,
+                                              HasFeatureToAlign featuresToAlign) {
         // Putting genes references and feature sequences to be serialized/deserialized as references
         for (VDJCGene gene : genes) {
             output.putKnownReference(gene);
@@ -78,6 +87,18 @@ public class IOUtil {
             genes.add(gene);
         }
 
+        registerGeneReferences(input, genes, featuresToAlign);
+
+        return genes;
+    }
+
+    /**
+     * Puts genes and sequences of their features to align to the list of known references of the stream, the same
+     * way as {@link #readGeneReferences(PrimitivI, VDJCLibraryRegistry, HasFeatureToAlign)} does, but without
+     * reading gene ids.
+     */
+    public static void registerGeneReferences(PrimitivI input, List<VDJCGene> genes,
+                                              HasFeatureToAlign featuresToAlign) {
         // Putting genes references and feature sequences to be serialized/deserialized as references
         for (VDJCGene gene : genes) {
             input.putKnownReference(gene);
@@ -92,8 +113,6 @@ public class IOUtil {
                 input.putKnownReference(featureSequence);
             }
         }
-
-        return genes;
     }
 
     public static InputStream createIS(String file) throws IOException {
@@ -28,58 +28,95 @@
  */
 package com.milaboratory.mixcr.basictypes;
 
+import cc.redberry.pipe.OutputPortCloseable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import io.repseq.core.VDJCGene;
 import io.repseq.core.VDJCLibraryRegistry;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
 
+import static com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter.MAGIC_LENGTH;
+
+/**
+ * Provides random access to alignments stored in .vdjca file using block index from the file footer.
+ *
+ * <p>Blocks are read from the file under lock, while decoding is performed in the calling thread, so several threads
+ * can decode different blocks concurrently. Alignments requested with {@link #get(long)} are taken from a bounded LRU
+ * cache of decoded blocks (see {@link #setCacheSize(int)}), so random access to a limited set of blocks does not
+ * decode the same blocks again and again.</p>
+ */
 public class RandomAccessVDJCAReader implements AutoCloseable {
-    final long[] index;
+    /**
+     * Default number of decoded blocks cached by {@link #get(long)}
+     */
+    public static final int DEFAULT_CACHE_SIZE = 16;
     final RandomAccessFile raf;
-    final VDJCAlignmentsReader innerReader;
-    int currentIndex = 0;
+    final String magic;
+    final VDJCABlockCodec codec;
+    final long numberOfReads, numberOfAlignments;
+    // Block index
+    final long[] blockOffsets, blockFirstIndices;
+    final int[] blockSizes;
+    // Decoded blocks used by get(...)
+    volatile Cache<Integer, VDJCAlignments[]> blockCache = createBlockCache(DEFAULT_CACHE_SIZE);
 
-    public RandomAccessVDJCAReader(File file, long[] index) {
-        this(file, index, VDJCLibraryRegistry.getDefault());
+    public RandomAccessVDJCAReader(File file) {
+        this(file, VDJCLibraryRegistry.getDefault());
     }
 
-    public RandomAccessVDJCAReader(File file, long[] index, VDJCLibraryRegistry registry) {
-        try {
-            this.raf = new RandomAccessFile(file, "rw");
-            this.index = index;
-            this.innerReader = new VDJCAlignmentsReader(raf, registry);
-            this.innerReader.init();
-        } catch (FileNotFoundException e) {
-            throw new IllegalArgumentException(e);
-        }
+    public RandomAccessVDJCAReader(String file) {
+        this(new File(file), VDJCLibraryRegistry.getDefault());
     }
 
-    public RandomAccessVDJCAReader(String file, long[] index) {
-        this(file, index, VDJCLibraryRegistry.getDefault());
+    public RandomAccessVDJCAReader(String file, VDJCLibraryRegistry registry) {
+        this(new File(file), registry);
     }
 
-    public RandomAccessVDJCAReader(String file, long[] index, VDJCLibraryRegistry registry) {
+    public RandomAccessVDJCAReader(File file, VDJCLibraryRegistry registry) {
         try {
-            this.raf = new RandomAccessFile(file, "rw");
-            this.index = index;
-            this.innerReader = new VDJCAlignmentsReader(raf, registry);
-            this.innerReader.init();
-        } catch (FileNotFoundException e) {
+            this.raf = new RandomAccessFile(file, "r");
+
+            // Reading header
+            byte[] magic = new byte[MAGIC_LENGTH];
+            raf.readFully(magic);
+            this.magic = VDJCAlignmentsReader.checkMagic(magic);
+            byte[] header = new byte[raf.readInt()];
+            raf.readFully(header);
+            this.codec = VDJCABlockCodec.readHeader(header, registry);
+
+            // Reading footer
+            raf.seek(raf.length() - 8);
+            raf.seek(raf.readLong());
+            this.numberOfReads = raf.readLong();
+            this.numberOfAlignments = raf.readLong();
+            int numberOfBlocks = raf.readInt();
+            this.blockOffsets = new long[numberOfBlocks];
+            this.blockFirstIndices = new long[numberOfBlocks];
+            this.blockSizes = new int[numberOfBlocks];
+            for (int i = 0; i < numberOfBlocks; i++) {
+                blockOffsets[i] = raf.readLong();
+                blockFirstIndices[i] = raf.readLong();
+                blockSizes[i] = raf.readInt();
+            }
+        } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
     public VDJCAlignerParameters getParameters() {
-        return innerReader.getParameters();
+        return codec.parameters;
     }
 
     public List<VDJCGene> getUsedGenes() {
-        return innerReader.getUsedGenes();
+        return codec.genes;
     }
 
     /**
@@ -88,7 +125,7 @@ public class RandomAccessVDJCAReader implements AutoCloseable {
      * @return information about version of MiXCR which produced this file
      */
     public String getVersionInfo() {
-        return innerReader.getVersionInfo();
+        return codec.versionInfo;
     }
 
     /**
@@ -97,24 +134,202 @@ public class RandomAccessVDJCAReader implements AutoCloseable {
      * @return magic bytes of this file
      */
     public String getMagic() {
-        return innerReader.getMagic();
+        return magic;
     }
 
-    public synchronized VDJCAlignments get(int ind) {
+    /**
+     * Returns total number of reads processed to produce this file.
+     */
+    public long getNumberOfReads() {
+        return numberOfReads;
+    }
+
+    /**
+     * Returns total number of alignments stored in this file.
+     */
+    public long getNumberOfAlignments() {
+        return numberOfAlignments;
+    }
+
+    public int getNumberOfBlocks() {
+        return blockOffsets.length;
+    }
+
+    /**
+     * Returns id of the block containing alignment with specified index.
+     */
+    public int getBlockId(long alignmentIndex) {
+        if (alignmentIndex < 0 || alignmentIndex >= numberOfAlignments)
+            throw new IndexOutOfBoundsException("" + alignmentIndex);
+        int blockId = Arrays.binarySearch(blockFirstIndices, alignmentIndex);
+        return blockId >= 0 ? blockId : -2 - blockId;
+    }
+
+    /**
+     * Returns index of the first alignment in the block.
+     */
+    public long getBlockFirstIndex(int blockId) {
+        return blockFirstIndices[blockId];
+    }
+
+    /**
+     * Returns number of alignments in the block.
+     */
+    public int getBlockSize(int blockId) {
+        return blockSizes[blockId];
+    }
+
+    /**
+     * Reads and decodes all alignments from the block with specified id. Can be executed concurrently from several
+     * threads.
+     */
+    public VDJCAlignments[] getBlock(int blockId) {
+        return codec.decodeBlock(getRawBlock(blockId));
+    }
+
+    /**
+     * Reads serialized block without decoding it.
+     */
+    VDJCABlockCodec.RawBlock getRawBlock(int blockId) {
+        synchronized (raf) {
+            try {
+                raf.seek(blockOffsets[blockId]);
+                if (raf.readInt() != blockSizes[blockId])
+                    throw new RuntimeException("Wrong format.");
+                byte[] data = new byte[raf.readInt()];
+                long readIdOffset = raf.readLong();
+                raf.readFully(data);
+                return new VDJCABlockCodec.RawBlock(data, blockSizes[blockId], blockFirstIndices[blockId], readIdOffset);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Sets maximal number of decoded blocks cached by {@link #get(long)} (previously cached blocks are dropped).
+     *
+     * @param cacheSize number of blocks
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize <= 0)
+            throw new IllegalArgumentException("Cache size must be positive.");
+        this.blockCache = createBlockCache(cacheSize);
+    }
+
+    private static Cache<Integer, VDJCAlignments[]> createBlockCache(int cacheSize) {
+        return CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * Returns alignment with specified index. Can be executed concurrently from several threads; concurrent requests
+     * of the same block decode it only once.
+     */
+    public VDJCAlignments get(long ind) {
+        final int blockId = getBlockId(ind);
+        VDJCAlignments[] block;
         try {
-            if (ind != currentIndex)
-                raf.seek(index[ind]);
-            VDJCAlignments alignment = innerReader.take();
-            currentIndex = ind + 1;
-            alignment.setAlignmentsIndex(ind);
-            return alignment;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            block = blockCache.get(blockId, new Callable<VDJCAlignments[]>() {
+                @Override
+                public VDJCAlignments[] call() throws Exception {
+                    return getBlock(blockId);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
+        return block[(int) (ind - blockFirstIndices[blockId])];
+    }
+
+    /**
+     * Creates port returning alignments with specified indices in ascending order of indices. Only blocks containing
+     * requested alignments are read from the file; up to {@code readAhead} of them are read and decoded in background
+     * threads ahead of consumption.
+     *
+     * @param indices   indices of alignments to read (array is not modified)
+     * @param readAhead number of blocks to prefetch
+     * @return port of alignments
+     */
+    public OutputPortCloseable<VDJCAlignments> createPort(long[] indices, int readAhead) {
+        return new SortedAlignmentsPort(indices, readAhead);
     }
 
     @Override
     public void close() throws Exception {
         raf.close();
     }
+
+    private final class SortedAlignmentsPort implements OutputPortCloseable<VDJCAlignments> {
+        final long[] indices;
+        final int[] blockIds;
+        final int readAhead;
+        final ExecutorService executor;
+        final ArrayDeque<Future<VDJCAlignments[]>> prefetched = new ArrayDeque<>();
+        int pointer = 0, nextBlock = 0;
+        int currentBlockId = -1;
+        VDJCAlignments[] currentBlock;
+
+        SortedAlignmentsPort(long[] indices, int readAhead) {
+            this.indices = indices.clone();
+            Arrays.sort(this.indices);
+            int[] blockIds = new int[this.indices.length];
+            int count = 0;
+            for (long index : this.indices) {
+                int blockId = getBlockId(index);
+                if (count == 0 || blockIds[count - 1] != blockId)
+                    blockIds[count++] = blockId;
+            }
+            this.blockIds = Arrays.copyOf(blockIds, count);
+            this.readAhead = Math.max(1, readAhead);
+            this.executor = Executors.newFixedThreadPool(
+                    Math.min(this.readAhead, Runtime.getRuntime().availableProcessors()), PREFETCH_THREAD_FACTORY);
+        }
+
+        private void submit() {
+            while (prefetched.size() < readAhead && nextBlock < blockIds.length) {
+                final int blockId = blockIds[nextBlock++];
+                prefetched.add(executor.submit(new Callable<VDJCAlignments[]>() {
+                    @Override
+                    public VDJCAlignments[] call() throws Exception {
+                        return getBlock(blockId);
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public synchronized VDJCAlignments take() {
+            if (pointer == indices.length) {
+                close();
+                return null;
+            }
+            long index = indices[pointer++];
+            int blockId = getBlockId(index);
+            if (blockId != currentBlockId) {
+                submit();
+                try {
+                    currentBlock = prefetched.poll().get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+                currentBlockId = blockId;
+                submit();
+            }
+            return currentBlock[(int) (index - blockFirstIndices[blockId])];
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final ThreadFactory PREFETCH_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VDJCAPrefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.core.io.CompressionType;
+import com.milaboratory.mixcr.util.MiXCRVersionInfo;
+import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import io.repseq.core.GeneFeature;
+import io.repseq.core.GeneType;
+import io.repseq.core.VDJCGene;
+import io.repseq.core.VDJCLibraryRegistry;
+
+import java.io.*;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Header information and block encoding / decoding routines of the block-structured .vdjca format.
+ *
+ * <p>Each block is serialized with its own {@link PrimitivO} (and compressed separately if compression is enabled),
+ * so any block can be decoded without reading preceding part of the file. Instances of this class are immutable and
+ * can be used to decode several blocks concurrently.</p>
+ */
+final class VDJCABlockCodec {
+    static final int BLOCK_BUFFER_SIZE = 65536;
+    final String versionInfo;
+    final VDJCAlignerParameters parameters;
+    final List<VDJCGene> genes;
+    final CompressionType compression;
+    final int alignmentsInBlock;
+
+    VDJCABlockCodec(String versionInfo, VDJCAlignerParameters parameters, List<VDJCGene> genes,
+                    CompressionType compression, int alignmentsInBlock) {
+        this.versionInfo = versionInfo;
+        this.parameters = parameters;
+        this.genes = genes;
+        this.compression = compression;
+        this.alignmentsInBlock = alignmentsInBlock;
+    }
+
+    VDJCABlockCodec(VDJCAlignerParameters parameters, List<VDJCGene> genes,
+                    CompressionType compression, int alignmentsInBlock) {
+        this(MiXCRVersionInfo.get().getVersionString(MiXCRVersionInfo.OutputType.ToFile),
+                parameters, genes, compression, alignmentsInBlock);
+    }
+
+    /**
+     * Serializes header (everything except magic bytes and header size).
+     */
+    byte[] writeHeader() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrimitivO output = new PrimitivO(bos);
+
+        // Writing version information
+        output.writeUTF(versionInfo);
+
+        // Writing block format information
+        output.writeUTF(compression.name());
+        output.writeInt(alignmentsInBlock);
+
+        // Writing parameters
+        output.writeObject(parameters);
+
+        IOUtil.writeGeneReferences(output, genes, parameters);
+
+        // Writing features to align (used to check consistency on read)
+        for (GeneType gt : GeneType.VDJC_REFERENCE)
+            output.writeObject(parameters.getFeatureToAlign(gt));
+
+        output.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserializes header written by {@link #writeHeader()}.
+     */
+    static VDJCABlockCodec readHeader(byte[] header, VDJCLibraryRegistry registry) {
+        PrimitivI input = new PrimitivI(new ByteArrayInputStream(header));
+
+        String versionInfo = input.readUTF();
+
+        CompressionType compression = CompressionType.valueOf(input.readUTF());
+        int alignmentsInBlock = input.readInt();
+
+        VDJCAlignerParameters parameters = input.readObject(VDJCAlignerParameters.class);
+
+        List<VDJCGene> genes = IOUtil.readGeneReferences(input, registry, parameters);
+
+        for (GeneType gt : GeneType.VDJC_REFERENCE)
+            if (!Objects.equals(input.readObject(GeneFeature.class), parameters.getFeatureToAlign(gt)))
+                throw new RuntimeException("Wrong format.");
+
+        return new VDJCABlockCodec(versionInfo, parameters, genes, compression, alignmentsInBlock);
+    }
+
+    /**
+     * Creates primitivO stream to serialize a single block into.
+     */
+    PrimitivO createBlockOutput(OutputStream os) throws IOException {
+        PrimitivO output = new PrimitivO(compression == CompressionType.None
+                ? os
+                : compression.createOutputStream(os, BLOCK_BUFFER_SIZE));
+        IOUtil.registerGeneReferences(output, genes, parameters);
+        // Registering links to features to align
+        for (GeneType gt : GeneType.VDJC_REFERENCE) {
+            GeneFeature feature = parameters.getFeatureToAlign(gt);
+            if (feature != null)
+                output.putKnownReference(feature);
+        }
+        return output;
+    }
+
+    /**
+     * Returns true if blocks encoded by the other codec can be decoded by this one (and vice versa), i.e. raw blocks
+     * can be copied between files without re-encoding.
+     */
+    boolean isBlockCompatible(VDJCABlockCodec other) {
+        if (compression != other.compression || !parameters.equals(other.parameters)
+                || genes.size() != other.genes.size())
+            return false;
+        for (int i = 0; i < genes.size(); i++)
+            if (!genes.get(i).getId().equals(other.genes.get(i).getId()))
+                return false;
+        return true;
+    }
+
+    /**
+     * Decodes a single block.
+     *
+     * @param block raw block
+     * @return decoded alignments with alignment indices set
+     */
+    VDJCAlignments[] decodeBlock(RawBlock block) {
+        try {
+            InputStream is = new ByteArrayInputStream(block.data);
+            if (compression != CompressionType.None)
+                is = compression.createInputStream(is, BLOCK_BUFFER_SIZE);
+            PrimitivI input = new PrimitivI(is);
+            IOUtil.registerGeneReferences(input, genes, parameters);
+            // Registering links to features to align
+            for (GeneType gt : GeneType.VDJC_REFERENCE) {
+                GeneFeature feature = parameters.getFeatureToAlign(gt);
+                if (feature != null)
+                    input.putKnownReference(feature);
+            }
+            VDJCAlignments[] result = new VDJCAlignments[block.count];
+            for (int i = 0; i < block.count; i++) {
+                VDJCAlignments alignments = input.readObject(VDJCAlignments.class);
+                if (block.readIdOffset == 0)
+                    alignments.setAlignmentsIndex(block.firstIndex + i);
+                else
+                    alignments = new VDJCAlignments(block.readIdOffset + alignments.getReadId(),
+                            block.firstIndex + i, alignments);
+                result[i] = alignments;
+            }
+            return result;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Serialized block as stored in the file.
+     */
+    static final class RawBlock {
+        final byte[] data;
+        final int count;
+        final long firstIndex;
+        /**
+         * Value added to read ids of all alignments of the block (non-zero for blocks copied by merge)
+         */
+        final long readIdOffset;
+
+        RawBlock(byte[] data, int count, long firstIndex, long readIdOffset) {
+            this.data = data;
+            this.count = count;
+            this.firstIndex = firstIndex;
+            this.readIdOffset = readIdOffset;
+        }
+    }
+}
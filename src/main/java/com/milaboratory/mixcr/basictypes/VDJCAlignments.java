@@ -48,6 +48,7 @@ public final class VDJCAlignments extends VDJCObject {
         this.readId = readId;
         this.alignmentsIndex = alignmentsIndex;
         this.targetDescriptions = alignments.targetDescriptions;
+        this.originalSequences = alignments.originalSequences;
         this.originalDescriptions = alignments.originalDescriptions;
     }
 
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.util.TempFileManager;
+import gnu.trove.list.array.TLongArrayList;
+import io.repseq.core.GeneFeature;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sidecar index of .vdjca file, mapping hash of nucleotide sequence of a gene feature (CDR3 by default) to indices of
+ * alignments having this feature. Allows to find alignments with a given feature sequence without decoding unrelated
+ * records (see {@link RandomAccessVDJCAReader#createPort(long[], int)}).
+ *
+ * <p>File layout:</p>
+ * <pre>
+ * int MAGIC
+ * UTF encoded gene feature
+ * long numberOfAlignments (in the indexed .vdjca file), long numberOfEntries
+ * entries: long hash, long alignmentIndex (sorted by hash, then by alignment index)
+ * </pre>
+ *
+ * <p>Entries are memory-mapped, lookup is a binary search over the mapped data. As different sequences may have the
+ * same hash, alignments returned by {@link #find(NucleotideSequence)} should be checked by the caller.</p>
+ */
+public final class VDJCAlignmentsFeatureIndex implements AutoCloseable {
+    public static final int MAGIC = 0x7a8e1d03;
+    public static final String DEFAULT_EXTENSION = ".idx";
+    static final int ENTRY_SIZE = 16;
+    /**
+     * Max number of entries in a single mapped segment of the file (segment size is ~2Gb)
+     */
+    static final int MAX_SEGMENT_SIZE_ENTRIES = Integer.MAX_VALUE / ENTRY_SIZE;
+    final RandomAccessFile raf;
+    final GeneFeature feature;
+    final long numberOfAlignments, numberOfEntries;
+    final ByteBuffer[] segments;
+    final int segmentSizeEntries;
+
+    private VDJCAlignmentsFeatureIndex(RandomAccessFile raf, int segmentSizeEntries) throws IOException {
+        this.raf = raf;
+        this.segmentSizeEntries = segmentSizeEntries;
+        if (raf.readInt() != MAGIC)
+            throw new IOException("Wrong index file format.");
+        this.feature = GeneFeature.parse(raf.readUTF());
+        this.numberOfAlignments = raf.readLong();
+        this.numberOfEntries = raf.readLong();
+        long offset = raf.getFilePointer();
+        FileChannel channel = raf.getChannel();
+        this.segments = new ByteBuffer[(int) ((numberOfEntries + segmentSizeEntries - 1) / segmentSizeEntries)];
+        for (int i = 0; i < segments.length; i++) {
+            long from = (long) i * segmentSizeEntries;
+            long size = Math.min(segmentSizeEntries, numberOfEntries - from) * ENTRY_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + from * ENTRY_SIZE, size);
+        }
+    }
+
+    public static VDJCAlignmentsFeatureIndex open(String fileName) throws IOException {
+        return open(new File(fileName));
+    }
+
+    public static VDJCAlignmentsFeatureIndex open(File file) throws IOException {
+        return open(file, MAX_SEGMENT_SIZE_ENTRIES);
+    }
+
+    static VDJCAlignmentsFeatureIndex open(File file, int segmentSizeEntries) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new VDJCAlignmentsFeatureIndex(raf, segmentSizeEntries);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns default name of the index file for specified .vdjca file and gene feature.
+     */
+    public static String defaultIndexFileName(String vdjcaFileName, GeneFeature feature) {
+        return vdjcaFileName + "." + GeneFeature.encode(feature) + DEFAULT_EXTENSION;
+    }
+
+    public GeneFeature getFeature() {
+        return feature;
+    }
+
+    /**
+     * Returns number of alignments in the indexed .vdjca file (used to check that the index corresponds to the file).
+     */
+    public long getNumberOfAlignments() {
+        return numberOfAlignments;
+    }
+
+    /**
+     * Returns number of indexed alignments (alignments having the feature).
+     */
+    public long getNumberOfEntries() {
+        return numberOfEntries;
+    }
+
+    /**
+     * Returns sorted indices of alignments which feature sequence has the same hash as the specified sequence.
+     */
+    public long[] find(NucleotideSequence sequence) {
+        long hash = hash(sequence);
+        // Lower bound
+        long from = 0, to = numberOfEntries;
+        while (from < to) {
+            long mid = (from + to) >>> 1;
+            if (getHash(mid) < hash)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        TLongArrayList result = new TLongArrayList();
+        for (long i = from; i < numberOfEntries && getHash(i) == hash; ++i)
+            result.add(getAlignmentIndex(i));
+        return result.toArray();
+    }
+
+    private long getHash(long entry) {
+        return segments[(int) (entry / segmentSizeEntries)].getLong((int) (entry % segmentSizeEntries) * ENTRY_SIZE);
+    }
+
+    private long getAlignmentIndex(long entry) {
+        return segments[(int) (entry / segmentSizeEntries)].getLong((int) (entry % segmentSizeEntries) * ENTRY_SIZE + 8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * 64-bit hash of nucleotide sequence
+     */
+    public static long hash(NucleotideSequence sequence) {
+        // FNV-1a over nucleotide codes
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sequence.size(); ++i) {
+            h ^= sequence.codeAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= sequence.size();
+        // Final avalanche (from MurmurHash3)
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Builds index from alignments passed in the same order as they are written to .vdjca file. Entries are sorted in
+     * runs of limited size, which are spilled to temp files and merged on {@link #write(File)}.
+     */
+    public static final class Builder {
+        public static final int DEFAULT_RUN_SIZE = 1 << 22;
+        final GeneFeature feature;
+        final int runSize;
+        // Entries of the current run (grow on demand up to runSize)
+        final TLongArrayList hashes = new TLongArrayList(), indices = new TLongArrayList();
+        final List<File> runs = new ArrayList<>();
+        final List<Long> runSizes = new ArrayList<>();
+        long numberOfAlignments = 0, numberOfEntries = 0;
+
+        public Builder(GeneFeature feature) {
+            this(feature, DEFAULT_RUN_SIZE);
+        }
+
+        public Builder(GeneFeature feature, int runSize) {
+            this.feature = feature;
+            this.runSize = runSize;
+        }
+
+        public GeneFeature getFeature() {
+            return feature;
+        }
+
+        /**
+         * Adds next alignment; alignment index is the number of alignments added before this one.
+         */
+        public void put(VDJCAlignments alignments) {
+            NSequenceWithQuality seq = alignments.getFeature(feature);
+            if (seq == null)
+                putEmpty();
+            else
+                putHash(hash(seq.getSequence()));
+        }
+
+        /**
+         * Adds next alignment having the feature, with precalculated {@link #hash(NucleotideSequence) hash} of the
+         * feature sequence (so it can be calculated in parallel).
+         */
+        public void putHash(long featureHash) {
+            hashes.add(featureHash);
+            indices.add(numberOfAlignments++);
+            ++numberOfEntries;
+            if (hashes.size() == runSize)
+                spillRun();
+        }
+
+        /**
+         * Adds next alignment not having the feature.
+         */
+        public void putEmpty() {
+            ++numberOfAlignments;
+        }
+
+        private void spillRun() {
+            File file = TempFileManager.getTempFile();
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+                writeSortedRun(os);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            runs.add(file);
+            runSizes.add((long) hashes.size());
+            // Keeping allocated capacity for the next run
+            hashes.resetQuick();
+            indices.resetQuick();
+        }
+
+        /**
+         * Writes entries of the current run sorted by hash, then by alignment index.
+         *
+         * Entries are sorted by (high 32 bits of hash, position in run) keys, as alignment indices increase with
+         * position, then rare groups of entries with the same high 32 bits of hash are ordered by the whole hash.
+         */
+        private void writeSortedRun(DataOutput os) throws IOException {
+            final int size = hashes.size();
+            final long[] keys = new long[size];
+            for (int i = 0; i < size; ++i)
+                keys[i] = (hashes.get(i) & 0xFFFFFFFF00000000L) | i;
+            Arrays.sort(keys);
+            for (int from = 0, to; from < size; from = to) {
+                to = from + 1;
+                while (to < size && (keys[to] >>> 32) == (keys[from] >>> 32))
+                    ++to;
+                // Stable insertion sort, so equal hashes stay ordered by position
+                for (int i = from + 1; i < to; ++i)
+                    for (int j = i; j > from && hashes.get((int) keys[j]) < hashes.get((int) keys[j - 1]); --j) {
+                        long t = keys[j];
+                        keys[j] = keys[j - 1];
+                        keys[j - 1] = t;
+                    }
+                for (int i = from; i < to; ++i) {
+                    os.writeLong(hashes.get((int) keys[i]));
+                    os.writeLong(indices.get((int) keys[i]));
+                }
+            }
+        }
+
+        public void write(String fileName) throws IOException {
+            write(new File(fileName));
+        }
+
+        public void write(File file) throws IOException {
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+                os.writeInt(MAGIC);
+                os.writeUTF(GeneFeature.encode(feature));
+                os.writeLong(numberOfAlignments);
+                os.writeLong(numberOfEntries);
+
+                if (runs.isEmpty()) {
+                    writeSortedRun(os);
+                    return;
+                }
+
+                if (!hashes.isEmpty())
+                    spillRun();
+
+                PriorityQueue<RunReader> queue = new PriorityQueue<>();
+                try {
+                    for (int i = 0; i < runs.size(); i++) {
+                        RunReader reader = new RunReader(runs.get(i), runSizes.get(i));
+                        if (reader.next())
+                            queue.add(reader);
+                    }
+                    RunReader reader;
+                    while ((reader = queue.poll()) != null) {
+                        os.writeLong(reader.hash);
+                        os.writeLong(reader.index);
+                        if (reader.next())
+                            queue.add(reader);
+                    }
+                } finally {
+                    for (File run : runs)
+                        run.delete();
+                }
+            }
+        }
+    }
+
+    private static final class RunReader implements Comparable<RunReader> {
+        final DataInputStream is;
+        long remaining;
+        long hash, index;
+
+        RunReader(File file, long size) throws IOException {
+            this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            this.remaining = size;
+        }
+
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                is.close();
+                return false;
+            }
+            --remaining;
+            hash = is.readLong();
+            index = is.readLong();
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            int c = Long.compare(hash, o.hash);
+            return c != 0 ? c : Long.compare(index, o.index);
+        }
+    }
+}
@@ -29,39 +29,41 @@
 package com.milaboratory.mixcr.basictypes;
 
 import cc.redberry.pipe.OutputPortCloseable;
-import com.milaboratory.core.io.CompressionType;
+import com.milaboratory.mixcr.basictypes.VDJCABlockCodec.RawBlock;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.primitivio.PrimitivI;
-import com.milaboratory.primitivio.SerializersManager;
 import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.CountingInputStream;
-import gnu.trove.list.array.TLongArrayList;
-import io.repseq.core.GeneFeature;
-import io.repseq.core.GeneType;
 import io.repseq.core.VDJCGene;
 import io.repseq.core.VDJCLibraryRegistry;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.*;
 
 import static com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter.*;
 
 public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlignments>, CanReportProgress {
     private static final int DEFAULT_BUFFER_SIZE = 1048576; // 1 MB
-    VDJCAlignerParameters parameters;
-    List<VDJCGene> usedGenes;
+    VDJCABlockCodec codec;
     final PrimitivI input;
     final VDJCLibraryRegistry vdjcRegistry;
-    String versionInfo;
     String magic;
     long numberOfReads = -1;
     boolean closed = false;
     long counter = 0;
     final long size;
     final CountingInputStream countingInputStream;
-    final CountingInputStream indexingStream;
-    volatile TLongArrayList index = null;
+    boolean endOfBlocks = false;
+    // Current block
+    VDJCAlignments[] block;
+    int blockPointer = 0;
+    // Parallel decoding
+    int decodingThreads = 1;
+    ExecutorService decoder;
+    final ArrayDeque<Future<VDJCAlignments[]>> pendingBlocks = new ArrayDeque<>();
 
     public VDJCAlignmentsReader(String fileName) throws IOException {
         this(new File(fileName), VDJCLibraryRegistry.getDefault());
@@ -76,15 +78,9 @@ public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlign
     }
 
     public VDJCAlignmentsReader(File file, VDJCLibraryRegistry vdjcRegistry) throws IOException {
-        CompressionType ct = CompressionType.detectCompressionType(file);
+        // Compression (if any) is applied to individual blocks, so container is always read as is
         this.countingInputStream = new CountingInputStream(new FileInputStream(file));
-        if (ct == CompressionType.None)
-            this.input = new PrimitivI(indexingStream = new CountingInputStream(
-                    new BufferedInputStream(countingInputStream, DEFAULT_BUFFER_SIZE)));
-        else {
-            this.input = new PrimitivI(ct.createInputStream(countingInputStream, DEFAULT_BUFFER_SIZE));
-            indexingStream = null;
-        }
+        this.input = new PrimitivI(new BufferedInputStream(countingInputStream, DEFAULT_BUFFER_SIZE));
         this.vdjcRegistry = vdjcRegistry;
         this.size = file.length();
     }
@@ -102,8 +98,7 @@ public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlign
     }
 
     public VDJCAlignmentsReader(InputStream input, VDJCLibraryRegistry vdjcRegistry, long size) {
-        this.input = new PrimitivI(indexingStream = countingInputStream =
-                new CountingInputStream(input));
+        this.input = new PrimitivI(countingInputStream = new CountingInputStream(input));
         this.vdjcRegistry = vdjcRegistry;
         this.size = size;
     }
@@ -112,59 +107,56 @@ public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlign
         this.input = new PrimitivI(input);
         this.vdjcRegistry = vdjcRegistry;
         this.countingInputStream = null;
-        this.indexingStream = null;
         this.size = 0;
     }
 
-    public void setIndexer(TLongArrayList index) {
-        if (indexingStream == null)
-            throw new IllegalStateException("Can't index compressed file.");
-        this.index = index;
+    /**
+     * Enables multi-threaded decoding. Raw blocks are read from the stream in the calling thread and decoded by a
+     * pool of {@code threads} threads, alignments are returned in the original order. Must be invoked before the
+     * first alignment is taken.
+     *
+     * @param threads number of decoding threads; values less than 2 turn parallel decoding off
+     */
+    public synchronized void setDecodingThreads(int threads) {
+        if (block != null || closed)
+            throw new IllegalStateException("Reading already started.");
+        this.decodingThreads = threads;
     }
 
     public void init() {
-        if (usedGenes != null)
+        if (codec != null)
             return;
 
         assert MAGIC_BYTES.length == MAGIC_LENGTH;
         byte[] magic = new byte[MAGIC_LENGTH];
         input.readFully(magic);
-        String magicString = new String(magic);
-        this.magic = magicString;
+        this.magic = checkMagic(magic);
 
-        SerializersManager serializersManager = input.getSerializersManager();
+        byte[] header = new byte[input.readInt()];
+        input.readFully(header);
+        this.codec = VDJCABlockCodec.readHeader(header, vdjcRegistry);
+    }
+
+    static String checkMagic(byte[] magic) {
+        String magicString = new String(magic, StandardCharsets.US_ASCII);
         switch (magicString) {
             case MAGIC:
                 break;
             default:
-                throw new RuntimeException("Unsupported file format; .vdjca file of version " + new String(magic) + " while you are running MiXCR " + MAGIC);
-        }
-
-        versionInfo = input.readUTF();
-
-        parameters = input.readObject(VDJCAlignerParameters.class);
-
-        this.usedGenes = IOUtil.readGeneReferences(input, vdjcRegistry, parameters);
-
-        // Registering links to features to align
-        for (GeneType gt : GeneType.VDJC_REFERENCE) {
-            GeneFeature featureParams = parameters.getFeatureToAlign(gt);
-            GeneFeature featureDeserialized = input.readObject(GeneFeature.class);
-            if (!Objects.equals(featureDeserialized, featureParams))
-                throw new RuntimeException("Wrong format.");
-            if (featureDeserialized != null)
-                input.putKnownReference(featureParams);
+                throw new RuntimeException("Unsupported file format; .vdjca file of version " + magicString +
+                        " while you are running MiXCR " + MAGIC);
         }
+        return magicString;
     }
 
     public synchronized VDJCAlignerParameters getParameters() {
         init();
-        return parameters;
+        return codec.parameters;
     }
 
     public synchronized List<VDJCGene> getUsedGenes() {
         init();
-        return usedGenes;
+        return codec.genes;
     }
 
     /**
@@ -173,7 +165,7 @@ public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlign
      * @return information about version of MiXCR which produced this file
      */
     public String getVersionInfo() {
-        return versionInfo;
+        return codec == null ? null : codec.versionInfo;
     }
 
     /**
@@ -203,25 +195,76 @@ public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlign
 
     @Override
     public synchronized void close() {
-        close(false);
-    }
-
-    private void close(boolean onEnd) {
         if (closed)
             return;
 
         try {
-            // If all alignments are read
-            // footer with number of reads processed to produce this
-            // file can be read form the stream.
-            if (onEnd)
-                numberOfReads = input.readLong();
+            if (decoder != null) {
+                decoder.shutdownNow();
+                pendingBlocks.clear();
+            }
             input.close();
         } finally {
             closed = true;
         }
     }
 
+    /**
+     * Reads next raw block from the stream. When the end of blocks is reached, footer with number of reads
+     * processed to produce this file is read from the stream.
+     *
+     * @return null if there are no more blocks
+     */
+    private RawBlock nextRawBlock() {
+        if (endOfBlocks)
+            return null;
+        int count = input.readInt();
+        if (count == 0) {
+            endOfBlocks = true;
+            numberOfReads = input.readLong();
+            return null;
+        }
+        byte[] data = new byte[input.readInt()];
+        long readIdOffset = input.readLong();
+        input.readFully(data);
+        RawBlock block = new RawBlock(data, count, counter, readIdOffset);
+        counter += count;
+        return block;
+    }
+
+    private VDJCAlignments[] nextBlock() {
+        if (decodingThreads <= 1) {
+            RawBlock raw = nextRawBlock();
+            return raw == null ? null : codec.decodeBlock(raw);
+        }
+
+        if (decoder == null)
+            decoder = Executors.newFixedThreadPool(decodingThreads, DECODER_THREAD_FACTORY);
+
+        // Keeping decoding pool busy
+        RawBlock raw;
+        while (pendingBlocks.size() < 2 * decodingThreads && (raw = nextRawBlock()) != null) {
+            final RawBlock r = raw;
+            pendingBlocks.add(decoder.submit(new Callable<VDJCAlignments[]>() {
+                @Override
+                public VDJCAlignments[] call() throws Exception {
+                    return codec.decodeBlock(r);
+                }
+            }));
+        }
+
+        Future<VDJCAlignments[]> next = pendingBlocks.poll();
+        if (next == null)
+            return null;
+        try {
+            return next.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     @Override
     public synchronized VDJCAlignments take() {
         if (closed)
@@ -229,18 +272,27 @@ public final class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlign
 
         init();
 
-        if (index != null)
-            index.add(indexingStream.getBytesRead());
-
-        VDJCAlignments alignments = input.readObject(VDJCAlignments.class);
-
-        if (alignments == null) {
-            if (index != null)
-                index.removeAt(index.size() - 1);
-            close(true);
-        } else
-            alignments.setAlignmentsIndex(counter++);
+        if (block == null || blockPointer == block.length) {
+            block = nextBlock();
+            blockPointer = 0;
+            if (block == null) {
+                close();
+                return null;
+            }
+        }
 
+        VDJCAlignments alignments = block[blockPointer];
+        // Releasing reference to already returned object
+        block[blockPointer++] = null;
         return alignments;
     }
+
+    private static final ThreadFactory DECODER_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VDJCAlignmentsDecoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
 }
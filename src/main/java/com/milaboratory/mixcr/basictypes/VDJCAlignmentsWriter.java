@@ -28,20 +28,39 @@
  */
 package com.milaboratory.mixcr.basictypes;
 
-import com.milaboratory.mixcr.util.MiXCRVersionInfo;
+import com.milaboratory.core.io.CompressionType;
 import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.primitivio.PrimitivO;
-import io.repseq.core.GeneFeature;
-import io.repseq.core.GeneType;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
 import io.repseq.core.VDJCGene;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+/**
+ * Writes alignments in block-structured .vdjca format.
+ *
+ * <p>File layout:</p>
+ * <pre>
+ * MAGIC (14 bytes)
+ * int headerSize, header (see {@link VDJCABlockCodec#writeHeader()})
+ * blocks: int numberOfAlignments (&gt; 0), int blockSize, long readIdOffset, block data
+ * int 0 (end of blocks)
+ * long numberOfProcessedReads, long numberOfAlignments, int numberOfBlocks,
+ * block index: long offset, long firstAlignmentIndex, int numberOfAlignments (for each block)
+ * long footerOffset (offset of numberOfProcessedReads field)
+ * </pre>
+ *
+ * <p>If output file name has compression extension (like .gz), each block is compressed separately, so the file
+ * stays seekable and blocks can be decoded independently.</p>
+ *
+ * <p>Read offset of the block is added to read ids of all alignments in the block. It is zero for blocks written by
+ * {@link #write(VDJCAlignments)} and is used to copy blocks from other files without decoding them
+ * (see {@link #writeRawBlock(RandomAccessVDJCAReader, int, long)}).</p>
+ */
 public final class VDJCAlignmentsWriter implements VDJCAlignmentsWriterI {
     static final String MAGIC_V3 = "MiXCR.VDJC.V03";
     static final String MAGIC_V4 = "MiXCR.VDJC.V04";
@@ -50,10 +69,27 @@ public final class VDJCAlignmentsWriter implements VDJCAlignmentsWriterI {
     static final String MAGIC_V7 = "MiXCR.VDJC.V07";
     static final String MAGIC_V8 = "MiXCR.VDJC.V08";
     static final String MAGIC_V9 = "MiXCR.VDJC.V09";
-    static final String MAGIC = MAGIC_V9;
+    static final String MAGIC_V10 = "MiXCR.VDJC.V10";
+    static final String MAGIC_V11 = "MiXCR.VDJC.V11";
+    static final String MAGIC = MAGIC_V11;
     static final int MAGIC_LENGTH = 14;
     static final byte[] MAGIC_BYTES = MAGIC.getBytes(StandardCharsets.US_ASCII);
-    final PrimitivO output;
+    public static final int DEFAULT_ALIGNMENTS_IN_BLOCK = 1024;
+    final DataOutputStream output;
+    final CompressionType compression;
+    final int alignmentsInBlock;
+    // Position in the output stream
+    long position = 0;
+    VDJCABlockCodec codec;
+    // Current block
+    final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream();
+    PrimitivO blockOutput;
+    int alignmentsInCurrentBlock = 0;
+    // Block index
+    final TLongArrayList blockOffsets = new TLongArrayList(),
+            blockFirstIndices = new TLongArrayList();
+    final TIntArrayList blockSizes = new TIntArrayList();
+    long numberOfAlignments = 0;
     long numberOfProcessedReads = -1;
     boolean header = false, closed = false;
 
@@ -62,11 +98,24 @@ public final class VDJCAlignmentsWriter implements VDJCAlignmentsWriterI {
     }
 
     public VDJCAlignmentsWriter(File file) throws IOException {
-        this(IOUtil.createOS(file));
+        this(file, DEFAULT_ALIGNMENTS_IN_BLOCK);
+    }
+
+    public VDJCAlignmentsWriter(File file, int alignmentsInBlock) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file), 65536),
+                CompressionType.detectCompressionType(file), alignmentsInBlock);
     }
 
     public VDJCAlignmentsWriter(OutputStream output) {
-        this.output = new PrimitivO(output);
+        this(output, CompressionType.None, DEFAULT_ALIGNMENTS_IN_BLOCK);
+    }
+
+    public VDJCAlignmentsWriter(OutputStream output, CompressionType compression, int alignmentsInBlock) {
+        if (alignmentsInBlock <= 0)
+            throw new IllegalArgumentException();
+        this.output = new DataOutputStream(output);
+        this.compression = compression;
+        this.alignmentsInBlock = alignmentsInBlock;
     }
 
     @Override
@@ -86,26 +135,21 @@ public final class VDJCAlignmentsWriter implements VDJCAlignmentsWriterI {
         if (header)
             throw new IllegalStateException();
 
-        // Writing magic bytes
-        assert MAGIC_BYTES.length == MAGIC_LENGTH;
-        output.write(MAGIC_BYTES);
+        codec = new VDJCABlockCodec(parameters, genes, compression, alignmentsInBlock);
 
-        // Writing version information
-        output.writeUTF(
-                MiXCRVersionInfo.get().getVersionString(
-                        MiXCRVersionInfo.OutputType.ToFile));
+        try {
+            // Writing magic bytes
+            assert MAGIC_BYTES.length == MAGIC_LENGTH;
+            output.write(MAGIC_BYTES);
+            position += MAGIC_LENGTH;
 
-        // Writing parameters
-        output.writeObject(parameters);
-
-        IOUtil.writeGeneReferences(output, genes, parameters);
-
-        // Registering links to features to align
-        for (GeneType gt : GeneType.VDJC_REFERENCE) {
-            GeneFeature feature = parameters.getFeatureToAlign(gt);
-            output.writeObject(feature);
-            if (feature != null)
-                output.putKnownReference(feature);
+            // Writing version information, parameters and gene references
+            byte[] headerBytes = codec.writeHeader();
+            output.writeInt(headerBytes.length);
+            output.write(headerBytes);
+            position += 4 + headerBytes.length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
 
         header = true;
@@ -119,16 +163,111 @@ public final class VDJCAlignmentsWriter implements VDJCAlignmentsWriterI {
         if (alignment == null)
             throw new NullPointerException();
 
-        output.writeObject(alignment);
+        try {
+            if (blockOutput == null)
+                blockOutput = codec.createBlockOutput(blockBuffer);
+
+            blockOutput.writeObject(alignment);
+
+            if (++alignmentsInCurrentBlock == alignmentsInBlock)
+                flushBlock();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (alignmentsInCurrentBlock == 0)
+            return;
+
+        // Finishing block stream (also finishes compression if enabled)
+        blockOutput.close();
+        blockOutput = null;
+
+        writeBlockHeader(alignmentsInCurrentBlock, blockBuffer.size(), 0);
+        blockBuffer.writeTo(output);
+        position += blockBuffer.size();
+
+        alignmentsInCurrentBlock = 0;
+        blockBuffer.reset();
+    }
+
+    private void writeBlockHeader(int count, int size, long readIdOffset) throws IOException {
+        blockOffsets.add(position);
+        blockFirstIndices.add(numberOfAlignments);
+        blockSizes.add(count);
+
+        output.writeInt(count);
+        output.writeInt(size);
+        output.writeLong(readIdOffset);
+        position += 16;
+
+        numberOfAlignments += count;
+    }
+
+    /**
+     * Returns true if blocks of the source file can be copied to this file by {@link #writeRawBlock(RandomAccessVDJCAReader,
+     * int, long)}, i.e. both files have the same aligner parameters, gene references and compression.
+     */
+    public boolean isBlockCompatible(RandomAccessVDJCAReader source) {
+        if (!header)
+            throw new IllegalStateException();
+        return codec.isBlockCompatible(source.codec);
+    }
+
+    /**
+     * Copies block from the source file without decoding it. Alignments from the block get positions following
+     * already written alignments, and their read ids are shifted by the specified offset.
+     *
+     * @param source       source file
+     * @param blockId      id of the block in the source file
+     * @param readIdOffset value to add to read ids of alignments from the block
+     */
+    public void writeRawBlock(RandomAccessVDJCAReader source, int blockId, long readIdOffset) {
+        if (!isBlockCompatible(source))
+            throw new IllegalArgumentException("Incompatible source file.");
+
+        try {
+            // Alignments written by write(...) must precede alignments from the copied block
+            flushBlock();
+
+            VDJCABlockCodec.RawBlock block = source.getRawBlock(blockId);
+            writeBlockHeader(block.count, block.data.length, block.readIdOffset + readIdOffset);
+            output.write(block.data);
+            position += block.data.length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void close() {
         if (!closed) {
-            output.writeObject(null);
-            output.writeLong(numberOfProcessedReads);
-            output.close();
-            closed = true;
+            try {
+                if (header)
+                    flushBlock();
+
+                // End of blocks
+                output.writeInt(0);
+                position += 4;
+
+                // Footer
+                long footerOffset = position;
+                output.writeLong(numberOfProcessedReads);
+                output.writeLong(numberOfAlignments);
+                output.writeInt(blockOffsets.size());
+                for (int i = 0; i < blockOffsets.size(); i++) {
+                    output.writeLong(blockOffsets.get(i));
+                    output.writeLong(blockFirstIndices.get(i));
+                    output.writeInt(blockSizes.get(i));
+                }
+                output.writeLong(footerOffset);
+                output.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                closed = true;
+            }
         }
     }
 }
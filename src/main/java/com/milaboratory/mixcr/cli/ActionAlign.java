@@ -30,6 +30,7 @@ package com.milaboratory.mixcr.cli;
 
 import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
 import cc.redberry.pipe.blocks.ParallelProcessor;
 import cc.redberry.pipe.util.Chunk;
 import cc.redberry.pipe.util.CountLimitingOutputPort;
@@ -39,6 +40,7 @@ import com.beust.jcommander.DynamicParameter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.cli.Action;
 import com.milaboratory.cli.ActionHelper;
@@ -57,8 +59,13 @@ import com.milaboratory.core.io.sequence.fastq.SingleFastqWriter;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsFeatureIndex;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.mixcr.util.QueueOccupancyMeter;
+import com.milaboratory.mixcr.util.StageTimings;
+import com.milaboratory.mixcr.vdjaligners.AlignerStage;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
 import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignmentResult;
@@ -74,6 +81,8 @@ import static cc.redberry.pipe.CUtils.chunked;
 import static cc.redberry.pipe.CUtils.unchunked;
 
 public class ActionAlign implements Action {
+    private static final int INPUT_BUFFER_SIZE = 16;
+    private static final int TIMING_SAMPLING_RATE = 16;
     private final AlignParameters actionParameters = new AlignParameters();
 
     @Override
@@ -98,9 +107,8 @@ public class ActionAlign implements Action {
         }
 
         // Creating aligner
-        VDJCAligner aligner = VDJCAligner.createAligner(alignerParameters,
+        final VDJCAligner aligner = VDJCAligner.createAligner(alignerParameters,
                 actionParameters.isInputPaired(), !actionParameters.getNoMerge());
-
         // Detect if automatic featureToAlign correction is required
         int totalV = 0, totalVErrors = 0, hasVRegion = 0;
         GeneFeature correctingFeature = alignerParameters.getVAlignerParameters().getGeneFeatureToAlign().hasReversedRegions() ?
@@ -167,11 +175,26 @@ public class ActionAlign implements Action {
             throw new ProcessException("No J genes to align. Aborting execution. See warnings for more info " +
                     "(turn warnings by adding -w option).");
 
-        AlignerReport report = new AlignerReport();
+        DAlignmentCache dCache = actionParameters.dAlignmentCache.open();
+        aligner.setDAlignmentCache(dCache);
+
+        AlignerReport report = new AlignerReport(dCache);
         aligner.setEventsListener(report);
 
+        // Per-stage timing (disabled by default)
+        final StageTimings<AlignerStage> timings = actionParameters.getReportPerformance()
+                ? new StageTimings<>(AlignerStage.class, TIMING_SAMPLING_RATE)
+                : null;
+        final QueueOccupancyMeter inputQueue = new QueueOccupancyMeter(), outputQueue = new QueueOccupancyMeter();
+        aligner.setTimings(timings);
+
         ChainUsageStats chainsStatistics = new ChainUsageStats();
 
+        VDJCAlignmentsFeatureIndex.Builder indexBuilder = actionParameters.getWriteIndex()
+                && !actionParameters.getOutputName().equals(".")
+                ? new VDJCAlignmentsFeatureIndex.Builder(GeneFeature.CDR3)
+                : null;
+
         try (SequenceReaderCloseable<? extends SequenceRead> reader = actionParameters.createReader();
 
              VDJCAlignmentsWriter writer = actionParameters.getOutputName().equals(".") ? null : new VDJCAlignmentsWriter(actionParameters.getOutputName());
@@ -183,7 +206,7 @@ public class ActionAlign implements Action {
                      : new SingleFastqWriter(actionParameters.failedReadsR1));
         ) {
             if (writer != null) writer.header(aligner);
-            OutputPort<? extends SequenceRead> sReads = reader;
+            OutputPort<? extends SequenceRead> sReads = timings == null ? reader : timings.timed(reader, AlignerStage.Reading);
             CanReportProgress progress = (CanReportProgress) reader;
             if (actionParameters.limit != 0) {
                 sReads = new CountLimitingOutputPort<>(sReads, actionParameters.limit);
@@ -198,16 +221,37 @@ public class ActionAlign implements Action {
             final PairedEndReadsLayout readsLayout = alignerParameters.getReadsLayout();
 
             SmartProgressReporter.startProgressReport("Alignment", progress);
-            OutputPort<Chunk<? extends SequenceRead>> mainInputReads = CUtils.buffered((OutputPort) chunked(sReads, 64), 16);
-            OutputPort<VDJCAlignmentResult> alignments = unchunked(new ParallelProcessor(mainInputReads, chunked(aligner), actionParameters.threads));
-            for (VDJCAlignmentResult result : CUtils.it(
-                    new OrderedOutputPort<>(alignments,
-                            new Indexer<VDJCAlignmentResult>() {
-                                @Override
-                                public long getIndex(VDJCAlignmentResult o) {
-                                    return o.read.getId();
-                                }
-                            }))) {
+            OutputPort<Chunk<? extends SequenceRead>> mainInputReads = (OutputPort) chunked(sReads, 64);
+            Processor<SequenceRead, VDJCAlignmentResult> readsProcessor = aligner;
+            if (indexBuilder != null) {
+                // Hash of the indexed feature is calculated in parallel with alignment
+                final GeneFeature indexedFeature = indexBuilder.getFeature();
+                readsProcessor = new Processor<SequenceRead, VDJCAlignmentResult>() {
+                    @Override
+                    public VDJCAlignmentResult process(SequenceRead input) {
+                        return aligner.process(input).withFeatureHash(indexedFeature);
+                    }
+                };
+            }
+            Processor<Chunk<? extends SequenceRead>, Chunk<VDJCAlignmentResult>> alignerProcessor = (Processor) chunked(readsProcessor);
+            if (timings != null) {
+                mainInputReads = inputQueue.consumer(CUtils.buffered(inputQueue.producer(mainInputReads), INPUT_BUFFER_SIZE));
+                alignerProcessor = outputQueue.producer(alignerProcessor);
+            } else
+                mainInputReads = CUtils.buffered(mainInputReads, INPUT_BUFFER_SIZE);
+            OutputPort<Chunk<VDJCAlignmentResult>> alignedChunks = new ParallelProcessor<>(mainInputReads, alignerProcessor, actionParameters.threads);
+            if (timings != null)
+                alignedChunks = outputQueue.consumer(alignedChunks);
+            OutputPort<VDJCAlignmentResult> alignments = new OrderedOutputPort<>(unchunked(alignedChunks),
+                    new Indexer<VDJCAlignmentResult>() {
+                        @Override
+                        public long getIndex(VDJCAlignmentResult o) {
+                            return o.read.getId();
+                        }
+                    });
+            if (timings != null)
+                alignments = timings.timed(alignments, AlignerStage.OrderedOutput);
+            for (VDJCAlignmentResult result : CUtils.it(alignments)) {
                 VDJCAlignments alignment = result.alignment;
                 SequenceRead read = result.read;
                 if (alignment == null) {
@@ -233,22 +277,42 @@ public class ActionAlign implements Action {
                     if (actionParameters.getSaveOriginalReads())
                         alignment.setOriginalSequences(extractSequences(read));
 
+                    long start = timings == null ? 0 : timings.start(AlignerStage.Writing);
                     writer.write(alignment);
+                    if (indexBuilder != null)
+                        if (result.featureHash != null)
+                            indexBuilder.putHash(result.featureHash);
+                        else
+                            indexBuilder.putEmpty();
+                    if (timings != null)
+                        timings.stop(AlignerStage.Writing, start);
                 }
             }
             if (writer != null)
                 writer.setNumberOfProcessedReads(reader.getNumberOfReads());
+        } finally {
+            // Saving D alignments cache (if persistent)
+            actionParameters.dAlignmentCache.close(dCache);
         }
 
+        if (indexBuilder != null)
+            indexBuilder.write(VDJCAlignmentsFeatureIndex.defaultIndexFileName(actionParameters.getOutputName(),
+                    GeneFeature.CDR3));
+
         long time = System.currentTimeMillis() - beginTimestamp;
 
+        ReportWriter[] reportWriters = timings == null
+                ? new ReportWriter[]{report, chainsStatistics}
+                : new ReportWriter[]{report, chainsStatistics,
+                new AlignerPerformanceReport(timings, inputQueue, INPUT_BUFFER_SIZE, outputQueue)};
+
         // Writing report to stout
         System.out.println("============= Report ==============");
-        Util.writeReportToStdout(time, report, chainsStatistics);
+        Util.writeReportToStdout(time, reportWriters);
 
         if (actionParameters.report != null)
             Util.writeReport(actionParameters.getInputForReport(), actionParameters.getOutputName(),
-                    helper.getCommandLineArguments(), actionParameters.report, time, report, chainsStatistics);
+                    helper.getCommandLineArguments(), actionParameters.report, time, reportWriters);
     }
 
     public static String[] extractDescriptions(SequenceRead r) {
@@ -283,6 +347,9 @@ public class ActionAlign implements Action {
         @DynamicParameter(names = "-O", description = "Overrides default parameter values.")
         public Map<String, String> overrides = new HashMap<>();
 
+        @ParametersDelegate
+        public DAlignmentCacheParameters dAlignmentCache = new DAlignmentCacheParameters();
+
         @Parameter(description = "Specifies segments library for alignment",
                 names = {"-b", "--library"})
         public String library = "default";
@@ -338,6 +405,14 @@ public class ActionAlign implements Action {
                 names = {"-g", "--save-reads"})
         public Boolean saveOriginalReads;
 
+        @Parameter(description = "Write CDR3 index of alignments next to the output file (see indexAlignments).",
+                names = {"--write-index"})
+        public Boolean writeIndex;
+
+        @Parameter(description = "Collect per-stage timing statistics and add performance section to the report.",
+                names = {"--report-performance"})
+        public Boolean reportPerformance;
+
         @Parameter(description = "Write not aligned reads (R1).",
                 names = {"--not-aligned-R1"})
         public String failedReadsR1 = null;
@@ -397,6 +472,14 @@ public class ActionAlign implements Action {
             return Util.parseLoci(chains);
         }
 
+        public boolean getReportPerformance() {
+            return reportPerformance != null && reportPerformance;
+        }
+
+        public boolean getWriteIndex() {
+            return writeIndex != null && writeIndex;
+        }
+
         public boolean getWriteAllResults() {
             return writeAllResults != null && writeAllResults;
         }
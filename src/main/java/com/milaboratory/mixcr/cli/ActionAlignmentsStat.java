@@ -29,22 +29,22 @@
 package com.milaboratory.mixcr.cli;
 
 import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
 import cc.redberry.pipe.VoidProcessor;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.cli.Action;
 import com.milaboratory.cli.ActionHelper;
 import com.milaboratory.cli.ActionParameters;
 import com.milaboratory.cli.HiddenAction;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
+import com.milaboratory.mixcr.info.AlignmentInfo;
 import com.milaboratory.mixcr.info.AlignmentInfoCollector;
-import com.milaboratory.mixcr.info.GeneFeatureCoverageCollector;
-import com.milaboratory.mixcr.info.ReferencePointCoverageCollector;
+import com.milaboratory.mixcr.info.AlignmentInfoCollectors;
 import com.milaboratory.util.SmartProgressReporter;
-import io.repseq.core.GeneFeature;
-import io.repseq.core.ReferencePoint;
 
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
@@ -52,55 +52,41 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
-import static io.repseq.core.GeneFeature.*;
-import static io.repseq.core.ReferencePoint.*;
-
 @HiddenAction
 public class ActionAlignmentsStat implements Action {
     final AParameters actionParameters = new AParameters();
 
     @Override
     public void go(ActionHelper helper) throws Exception {
-
-        long[] geneFeatureCounters = new long[targetFeatures.length];
-        AlignmentInfoCollector[] collectors = new AlignmentInfoCollector[targetFeatures.length + targetReferencePoints.length];
-
-        int i = 0;
-
-        for (GeneFeature targetFeature : targetFeatures)
-            collectors[i++] = new GeneFeatureCoverageCollector(targetFeature);
-
-        for (ReferencePoint targetReferencePoint : targetReferencePoints)
-            collectors[i++] = new ReferencePointCoverageCollector(targetReferencePoint, 40, 40);
-
-        final Collector collector = new Collector(collectors);
+        List<AlignmentInfoCollector<?>> collectors = new ArrayList<>();
+        for (String name : actionParameters.getCollectorNames())
+            collectors.addAll(AlignmentInfoCollectors.create(name));
 
         try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(actionParameters.getInputFileName());
              PrintStream output = actionParameters.getOutputFileName().equals("-") ? System.out :
                      new PrintStream(new BufferedOutputStream(new FileOutputStream(actionParameters.getOutputFileName()), 32768))
         ) {
+            reader.setDecodingThreads(actionParameters.threads);
             SmartProgressReporter.startProgressReport("Analysis", reader);
-            CUtils.processAllInParallel(reader, collector, Math.min(4, Runtime.getRuntime().availableProcessors()));
-            collector.end();
+            collect(reader, collectors, actionParameters.threads);
 
             if (output == System.out)
                 output.println();
 
-            collector.write(output);
+            for (AlignmentInfoCollector<?> collector : collectors)
+                collector.writeResult(output);
         }
     }
 
-    private static final GeneFeature[] targetFeatures = {
-            V5UTR,
-            new GeneFeature(L1Begin, -20, 0),
-            L1, VIntron, L2, FR1, CDR1, FR2, CDR2, FR3, CDR3, FR4,
-            new GeneFeature(FR4, 0, -3)
-    };
-
-    private static final ReferencePoint[] targetReferencePoints = {
-            L1Begin, L1End, L2Begin, FR1Begin, CDR1Begin, FR2Begin, CDR2Begin, FR3Begin, CDR3Begin,
-            FR4Begin, FR4End
-    };
+    /**
+     * Feeds all alignments to collectors using several threads, collectors are finished after that.
+     */
+    static void collect(OutputPort<VDJCAlignments> alignments, List<AlignmentInfoCollector<?>> collectors,
+                        int threads) {
+        Collector collector = new Collector(collectors);
+        CUtils.processAllInParallel(CUtils.buffered(alignments, 1024), collector, threads);
+        collector.end();
+    }
 
     @Override
     public String command() {
@@ -117,6 +103,22 @@ public class ActionAlignmentsStat implements Action {
         @Parameter(description = "input_file.vdjca [output.txt]", variableArity = true)
         public List<String> parameters = new ArrayList<>();
 
+        @Parameter(description = "Processing threads",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(description = "Comma-separated list of statistics to collect (default: coverage).",
+                names = {"-c", "--collectors"})
+        public String collectors = AlignmentInfoCollectors.DEFAULT;
+
+        public List<String> getCollectorNames() {
+            List<String> names = new ArrayList<>();
+            for (String name : collectors.split(","))
+                if (!name.trim().isEmpty())
+                    names.add(name.trim());
+            return names;
+        }
+
         public String getInputFileName() {
             return parameters.get(0);
         }
@@ -129,31 +131,64 @@ public class ActionAlignmentsStat implements Action {
         public void validate() {
             if (parameters.size() == 0 || parameters.size() > 2)
                 throw new ParameterException("Wrong number of parameters.");
+            for (String name : getCollectorNames())
+                if (!AlignmentInfoCollectors.getNames().contains(name))
+                    throw new ParameterException("Unknown collector: " + name + "; available: " +
+                            AlignmentInfoCollectors.getNames());
             super.validate();
         }
     }
 
+    /**
+     * Feeds alignments to thread-local accumulators; accumulators are merged into collectors in {@link #end()}.
+     */
+    @SuppressWarnings("unchecked")
     private static class Collector implements VoidProcessor<VDJCAlignments> {
         final AlignmentInfoCollector[] collectors;
-
-        public Collector(AlignmentInfoCollector... collectors) {
-            this.collectors = collectors;
+        final List<ThreadState> states = new ArrayList<>();
+        final ThreadLocal<ThreadState> state = new ThreadLocal<ThreadState>() {
+            @Override
+            protected ThreadState initialValue() {
+                ThreadState s = new ThreadState(collectors);
+                synchronized (states) {
+                    states.add(s);
+                }
+                return s;
+            }
+        };
+
+        public Collector(List<AlignmentInfoCollector<?>> collectors) {
+            this.collectors = collectors.toArray(new AlignmentInfoCollector[collectors.size()]);
         }
 
         @Override
         public void process(VDJCAlignments input) {
-            for (AlignmentInfoCollector collector : collectors)
-                collector.put(input);
+            ThreadState s = state.get();
+            s.info.set(input);
+            for (AlignmentInfoCollector.Accumulator accumulator : s.accumulators)
+                accumulator.put(s.info);
         }
 
         public void end() {
+            synchronized (states) {
+                for (ThreadState s : states)
+                    for (int i = 0; i < collectors.length; ++i)
+                        collectors[i].merge(s.accumulators[i]);
+                states.clear();
+            }
             for (AlignmentInfoCollector collector : collectors)
                 collector.end();
         }
+    }
 
-        public void write(PrintStream writer) {
-            for (AlignmentInfoCollector collector : collectors)
-                collector.writeResult(writer);
+    private static final class ThreadState {
+        final AlignmentInfo info = new AlignmentInfo();
+        final AlignmentInfoCollector.Accumulator[] accumulators;
+
+        ThreadState(AlignmentInfoCollector[] collectors) {
+            this.accumulators = new AlignmentInfoCollector.Accumulator[collectors.length];
+            for (int i = 0; i < collectors.length; ++i)
+                this.accumulators[i] = collectors[i].createAccumulator();
         }
     }
 }
@@ -33,6 +33,7 @@ import com.beust.jcommander.DynamicParameter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.cli.Action;
 import com.milaboratory.cli.ActionHelper;
@@ -42,6 +43,7 @@ import com.milaboratory.mixcr.basictypes.Clone;
 import com.milaboratory.mixcr.basictypes.CloneSet;
 import com.milaboratory.mixcr.basictypes.CloneSetIO;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.primitivio.PipeWriter;
 import com.milaboratory.util.SmartProgressReporter;
@@ -76,7 +78,8 @@ public class ActionAssemble implements Action {
 
         AlignmentsProvider alignmentsProvider = AlignmentsProvider.Util.createProvider(
                 actionParameters.getInputFileName(),
-                VDJCLibraryRegistry.getDefault());
+                VDJCLibraryRegistry.getDefault(),
+                actionParameters.threads);
 
         CloneAssemblerParameters assemblerParameters = actionParameters.getCloneAssemblerParameters();
 
@@ -101,10 +104,13 @@ public class ActionAssemble implements Action {
         }
 
         // Performing assembly
+        DAlignmentCache dCache = actionParameters.dAlignmentCache.open();
         try (CloneAssembler assembler = new CloneAssembler(assemblerParameters,
                 actionParameters.readsToClonesMapping != null, genes)) {
+            assembler.setDAlignmentCache(dCache);
+
             // Creating event listener to collect run statistics
-            CloneAssemblerReport report = new CloneAssemblerReport();
+            CloneAssemblerReport report = new CloneAssemblerReport(dCache);
             assembler.setListener(report);
 
             // Running assembler
@@ -151,7 +157,10 @@ public class ActionAssemble implements Action {
             // Writing Alignment to clone index file
             if (actionParameters.readsToClonesMapping != null)
                 AlignmentsToClonesMappingContainer.writeMapping(assembler.getAssembledReadsPort(), cloneSet.size(),
-                        actionParameters.readsToClonesMapping);
+                        actionParameters.readsToClonesMapping, report.getAlignmentsInClones(), actionParameters.threads);
+        } finally {
+            // Saving D alignments cache (if persistent)
+            actionParameters.dAlignmentCache.close(dCache);
         }
     }
 
@@ -193,6 +202,9 @@ public class ActionAssemble implements Action {
         @DynamicParameter(names = "-O", description = "Overrides default parameter values.")
         private Map<String, String> overrides = new HashMap<>();
 
+        @ParametersDelegate
+        public DAlignmentCacheParameters dAlignmentCache = new DAlignmentCacheParameters();
+
         public String getInputFileName() {
             return parameters.get(0);
         }
@@ -4,15 +4,20 @@ import com.beust.jcommander.DynamicParameter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.cli.Action;
 import com.milaboratory.cli.ActionHelper;
 import com.milaboratory.cli.ActionParameters;
 import com.milaboratory.cli.ActionParametersWithOutput;
+import com.milaboratory.mixcr.basictypes.RandomAccessVDJCAReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.partialassembler.PartialAlignmentsAssembler;
 import com.milaboratory.mixcr.partialassembler.PartialAlignmentsAssemblerParameters;
+import com.milaboratory.mixcr.util.TempFileManager;
 import com.milaboratory.util.SmartProgressReporter;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -40,28 +45,91 @@ public final class ActionAssemblePartialAlignments implements Action {
         }
 
         long start = System.currentTimeMillis();
-        try (PartialAlignmentsAssembler assembler = new PartialAlignmentsAssembler(assemblerParameters, parameters.getOutputFileName(),
-                parameters.getWritePartial(), parameters.getOverlappedOnly())) {
-            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(parameters.getInputFileName())) {
-                SmartProgressReporter.startProgressReport("Building index", reader);
-                assembler.buildLeftPartsIndex(reader);
-            }
-            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(parameters.getInputFileName())) {
-                SmartProgressReporter.startProgressReport("Searching for overlaps", reader);
-                assembler.searchOverlaps(reader);
+        final int rounds = parameters.rounds;
+        // Output of all rounds except the last one is written to temp spill files,
+        // which are inputs of the next rounds
+        final String[] outputs = new String[rounds];
+        for (int round = 0; round < rounds - 1; ++round)
+            outputs[round] = TempFileManager.getTempFile().getAbsolutePath();
+        outputs[rounds - 1] = parameters.getOutputFileName();
+
+        final PartialAlignmentsAssembler[] assemblers = new PartialAlignmentsAssembler[rounds];
+        int closed = 0;
+        try {
+            assemblers[0] = createAssembler(assemblerParameters, outputs[0], rounds == 1);
+            for (int round = 0; round < rounds; ++round) {
+                final String input = round == 0 ? parameters.getInputFileName() : outputs[round - 1];
+                final String roundSuffix = rounds == 1 ? "" : " (round " + (round + 1) + ")";
+                final PartialAlignmentsAssembler assembler = assemblers[round];
+
+                // Left parts are read on demand, so only compact index is kept in memory
+                try (RandomAccessVDJCAReader leftPartsSource = new RandomAccessVDJCAReader(input)) {
+                    leftPartsSource.setCacheSize(parameters.leftPartsCacheSize);
+                    if (round == 0)
+                        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(input)) {
+                            SmartProgressReporter.startProgressReport("Building index", reader);
+                            assembler.buildLeftPartsIndex(reader, leftPartsSource);
+                        }
+                    else
+                        // Index was already built from the output of previous round
+                        assembler.setLeftPartsSource(leftPartsSource);
+
+                    if (round + 1 < rounds) {
+                        assemblers[round + 1] = createAssembler(assemblerParameters, outputs[round + 1], round + 2 == rounds);
+                        assemblers[round + 1].buildLeftPartsIndexFrom(assembler, false);
+                    }
+
+                    try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(input)) {
+                        SmartProgressReporter.startProgressReport("Searching for overlaps" + roundSuffix, reader);
+                        assembler.searchOverlaps(reader, parameters.threads);
+                    }
+                } finally {
+                    ++closed;
+                    assembler.close();
+                }
+
+                // Spill file of previous round is not needed anymore
+                if (round > 0)
+                    new File(input).delete();
             }
+        } finally {
+            for (int round = closed; round < rounds; ++round)
+                if (assemblers[round] != null)
+                    assemblers[round].close();
+            for (int round = 0; round < rounds - 1; ++round)
+                new File(outputs[round]).delete();
+        }
 
-            if (parameters.report != null)
-                Util.writeReport(parameters.getInputFileName(), parameters.getOutputFileName(),
-                        helper.getCommandLineArguments(), parameters.report, System.currentTimeMillis() - start, assembler
-                );
+        final ReportWriter[] reports = new ReportWriter[rounds];
+        for (int round = 0; round < rounds; ++round) {
+            final int r = round;
+            reports[round] = new ReportWriter() {
+                @Override
+                public void writeReport(ReportHelper helper) {
+                    if (rounds > 1)
+                        helper.writeField("Overlap round", r + 1);
+                    assemblers[r].writeReport(helper);
+                }
+            };
+        }
 
-            long time = System.currentTimeMillis() - beginTimestamp;
+        if (parameters.report != null)
+            Util.writeReport(parameters.getInputFileName(), parameters.getOutputFileName(),
+                    helper.getCommandLineArguments(), parameters.report, System.currentTimeMillis() - start, reports
+            );
 
-            // Writing report to stout
-            System.out.println("============= Report ==============");
-            Util.writeReportToStdout(time, assembler);
-        }
+        long time = System.currentTimeMillis() - beginTimestamp;
+
+        // Writing report to stout
+        System.out.println("============= Report ==============");
+        Util.writeReportToStdout(time, reports);
+    }
+
+    private PartialAlignmentsAssembler createAssembler(PartialAlignmentsAssemblerParameters assemblerParameters,
+                                                       String output, boolean lastRound) throws IOException {
+        // All partial alignments are passed to the next round
+        return new PartialAlignmentsAssembler(assemblerParameters, output,
+                !lastRound || parameters.getWritePartial(), lastRound && parameters.getOverlappedOnly());
     }
 
     @Override
@@ -94,6 +162,20 @@ public final class ActionAssemblePartialAlignments implements Action {
                 names = {"-p", "--write-partial"})
         public Boolean writePartial;
 
+        @Parameter(description = "Processing threads",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(description = "Number of overlap rounds (partial alignments left after each round are passed to " +
+                "the next one; the same as running assemblePartial -p several times).",
+                names = {"--rounds"}, validateWith = PositiveInteger.class)
+        public int rounds = 1;
+
+        @Parameter(description = "Number of decoded blocks of left part alignments kept in memory (left parts are " +
+                "read from the input on demand, so together with compact index of left parts it bounds used heap).",
+                names = {"--left-parts-cache"}, validateWith = PositiveInteger.class)
+        public int leftPartsCacheSize = RandomAccessVDJCAReader.DEFAULT_CACHE_SIZE;
+
         public String getInputFileName() {
             return parameters.get(0);
         }
@@ -35,16 +35,9 @@ import com.milaboratory.cli.Action;
 import com.milaboratory.cli.ActionHelper;
 import com.milaboratory.cli.ActionParameters;
 import com.milaboratory.cli.ActionParametersWithOutput;
-import com.milaboratory.core.sequence.NucleotideSequence;
-import com.milaboratory.mixcr.basictypes.Clone;
-import com.milaboratory.mixcr.basictypes.CloneSet;
-import com.milaboratory.mixcr.basictypes.CloneSetIO;
-import com.milaboratory.mixcr.basictypes.IOUtil;
-import io.repseq.core.GeneType;
-import io.repseq.core.VDJCGeneId;
+import com.milaboratory.mixcr.basictypes.CloneSetOverlap;
 
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.*;
 
@@ -53,72 +46,20 @@ public class ActionClonesDiff implements Action {
 
     @Override
     public void go(ActionHelper helper) throws Exception {
-        try (InputStream is1 = IOUtil.createIS(params.get1());
-             InputStream is2 = IOUtil.createIS(params.get2());
-             PrintStream report = params.report().equals(".") ? System.out : new PrintStream(new FileOutputStream(params.report()))) {
-
-            CloneSet cs1 = CloneSetIO.read(is1);
-            CloneSet cs2 = CloneSetIO.read(is2);
-
-            HashMap<CKey, CRec> recs = new HashMap<>();
-
-            populate(recs, cs1, 0);
-            populate(recs, cs2, 1);
-
-            int newClones1 = 0, newClones2 = 0;
-            long newClones1Reads = 0, newClones2Reads = 0;
-
-            for (CRec cRec : recs.values()) {
-                if (cRec.clones[0] == null) {
-                    newClones2++;
-                    newClones2Reads += cRec.clones[1].getCount();
-                }
-
-                if (cRec.clones[1] == null) {
-                    newClones1++;
-                    newClones1Reads += cRec.clones[0].getCount();
-                }
+        try (PrintStream report = params.report().equals(".") ? System.out : new PrintStream(new FileOutputStream(params.report()))) {
+            CloneSetOverlap overlap = new CloneSetOverlap(params.useV(), params.useJ(), params.useC());
+            try {
+                overlap.addAll(Arrays.asList(params.get1(), params.get2()), 2);
+            } catch (IllegalArgumentException e) {
+                throw new ParameterException(e.getMessage());
             }
+            CloneSetOverlap.Statistics stat = overlap.calculate();
 
-            report.println("Unique clones in cloneset 1: " + newClones1 + " (" + Util.PERCENT_FORMAT.format(100.0 * newClones1 / cs1.size()) + "%)");
-            report.println("Reads in unique clones in cloneset 1: " + newClones1Reads + " (" + Util.PERCENT_FORMAT.format(100.0 * newClones1Reads / cs1.getTotalCount()) + "%)");
-
-            report.println("Unique clones in cloneset 2: " + newClones2 + " (" + Util.PERCENT_FORMAT.format(100.0 * newClones2 / cs2.size()) + "%)");
-            report.println("Reads in unique clones in cloneset 2: " + newClones2Reads + " (" + Util.PERCENT_FORMAT.format(100.0 * newClones2Reads / cs2.getTotalCount()) + "%)");
-        }
-    }
-
-    private void populate(Map<CKey, CRec> recs, CloneSet cs, int i) {
-        for (Clone clone : cs) {
-            CKey key = getKey(clone);
-            CRec cRec = recs.get(key);
-            if (cRec == null)
-                recs.put(key, cRec = new CRec());
-
-            if (cRec.clones[i] != null) {
-                String error = "";
-                char letter = 'X';
-                if (!Objects.equals(
-                        getBestGene(cRec.clones[i], GeneType.Variable),
-                        getBestGene(clone, GeneType.Variable)))
-                    letter = 'v';
-                if (!Objects.equals(
-                        getBestGene(cRec.clones[i], GeneType.Joining),
-                        getBestGene(clone, GeneType.Joining)))
-                    letter = 'j';
-                if (!Objects.equals(
-                        getBestGene(cRec.clones[i], GeneType.Constant),
-                        getBestGene(clone, GeneType.Constant)))
-                    letter = 'c';
-
-                if (letter != 'X')
-                    error = "Error: clones with the same key present in one of the clonesets. Seems that clones were assembled " +
-                            "using -OseparateBy" + Character.toUpperCase(letter) + "=true option, please add -" + letter + " option to this command.";
-
-                throw new ParameterException(error);
+            for (int i = 0; i < 2; i++) {
+                long clones = overlap.getNumberOfClones(i), reads = overlap.getNumberOfReads(i);
+                report.println("Unique clones in cloneset " + (i + 1) + ": " + stat.uniqueClones[i] + " (" + Util.PERCENT_FORMAT.format(100.0 * stat.uniqueClones[i] / clones) + "%)");
+                report.println("Reads in unique clones in cloneset " + (i + 1) + ": " + stat.uniqueReads[i] + " (" + Util.PERCENT_FORMAT.format(100.0 * stat.uniqueReads[i] / reads) + "%)");
             }
-
-            cRec.clones[i] = clone;
         }
     }
 
@@ -132,64 +73,6 @@ public class ActionClonesDiff implements Action {
         return params;
     }
 
-    private VDJCGeneId getBestGene(Clone clone, GeneType geneType) {
-        return clone.getBestHit(geneType) == null ? null : clone.getBestHit(geneType).getGene().getId();
-    }
-
-    private CKey getKey(Clone clone) {
-        final NucleotideSequence[] clonalSequence = new NucleotideSequence[clone.numberOfTargets()];
-        for (int i = 0; i < clonalSequence.length; i++)
-            clonalSequence[i] = clone.getTarget(i).getSequence();
-
-        final VDJCGeneId v = params.useV() ? getBestGene(clone, GeneType.Variable) : null;
-
-        final VDJCGeneId j = params.useJ() ? getBestGene(clone, GeneType.Joining) : null;
-
-        final VDJCGeneId c = params.useC() ? getBestGene(clone, GeneType.Constant) : null;
-
-        return new CKey(clonalSequence, v, j, c);
-    }
-
-    private static final class CRec {
-        final Clone[] clones = new Clone[2];
-    }
-
-    private static final class CKey {
-        final NucleotideSequence[] clonalSequence;
-        final VDJCGeneId v, j, c;
-
-        public CKey(NucleotideSequence[] clonalSequence, VDJCGeneId v, VDJCGeneId j, VDJCGeneId c) {
-            this.clonalSequence = clonalSequence;
-            this.v = v;
-            this.j = j;
-            this.c = c;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof CKey)) return false;
-
-            CKey cKey = (CKey) o;
-
-            // Probably incorrect - comparing Object[] arrays with Arrays.equals
-            if (!Arrays.equals(clonalSequence, cKey.clonalSequence)) return false;
-            if (v != null ? !v.equals(cKey.v) : cKey.v != null) return false;
-            if (j != null ? !j.equals(cKey.j) : cKey.j != null) return false;
-            return c != null ? c.equals(cKey.c) : cKey.c == null;
-
-        }
-
-        @Override
-        public int hashCode() {
-            int result = Arrays.hashCode(clonalSequence);
-            result = 31 * result + (v != null ? v.hashCode() : 0);
-            result = 31 * result + (j != null ? j.hashCode() : 0);
-            result = 31 * result + (c != null ? c.hashCode() : 0);
-            return result;
-        }
-    }
-
     @Parameters(commandDescription = "Calculates the difference between two .clns files")
     public static class DiffParameters extends ActionParametersWithOutput {
         @Parameter(description = "input1.clns input2.clns [report]")
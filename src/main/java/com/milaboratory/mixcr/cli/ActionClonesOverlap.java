@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
+import com.milaboratory.cli.Action;
+import com.milaboratory.cli.ActionHelper;
+import com.milaboratory.cli.ActionParameters;
+import com.milaboratory.cli.ActionParametersWithOutput;
+import com.milaboratory.mixcr.basictypes.CloneSetOverlap;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Calculates overlap statistics for several .clns files (see {@link CloneSetOverlap}).
+ */
+public final class ActionClonesOverlap implements Action {
+    public final OverlapParameters params = new OverlapParameters();
+
+    @Override
+    public void go(ActionHelper helper) throws Exception {
+        CloneSetOverlap overlap = new CloneSetOverlap(params.useV(), params.useJ(), params.useC());
+        try {
+            overlap.addAll(params.getInputFiles(), params.threads);
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(e.getMessage());
+        }
+        CloneSetOverlap.Statistics stat = overlap.calculate();
+        int n = overlap.getNumberOfSamples();
+
+        try (PrintStream out = new PrintStream(new FileOutputStream(params.getSamplesFileName()))) {
+            out.println("sample\tclones\treads\tuniqueClones\tuniqueReads\tfractionOfUniqueClones\tfractionOfUniqueReads");
+            for (int i = 0; i < n; i++)
+                out.println(overlap.getSampleName(i) + "\t" +
+                        overlap.getNumberOfClones(i) + "\t" + overlap.getNumberOfReads(i) + "\t" +
+                        stat.uniqueClones[i] + "\t" + stat.uniqueReads[i] + "\t" +
+                        fraction(stat.uniqueClones[i], overlap.getNumberOfClones(i)) + "\t" +
+                        fraction(stat.uniqueReads[i], overlap.getNumberOfReads(i)));
+        }
+
+        try (PrintStream out = new PrintStream(new FileOutputStream(params.getPairwiseFileName()))) {
+            out.println("sample1\tsample2\tsharedClones\tsharedReads1\tsharedReads2\tfractionOfReads1\tfractionOfReads2");
+            for (int i = 0; i < n; i++)
+                for (int j = i + 1; j < n; j++)
+                    out.println(overlap.getSampleName(i) + "\t" + overlap.getSampleName(j) + "\t" +
+                            stat.sharedClones[i][j] + "\t" +
+                            stat.sharedReads[i][j] + "\t" + stat.sharedReads[j][i] + "\t" +
+                            fraction(stat.sharedReads[i][j], overlap.getNumberOfReads(i)) + "\t" +
+                            fraction(stat.sharedReads[j][i], overlap.getNumberOfReads(j)));
+        }
+
+        try (PrintStream out = new PrintStream(new FileOutputStream(params.getOccurrenceFileName()))) {
+            out.println("numberOfSamples\tclonotypes\treads");
+            for (int k = 1; k <= n; k++)
+                out.println(k + "\t" + stat.keysByOccurrence[k] + "\t" + stat.readsByOccurrence[k]);
+        }
+
+        System.out.println("Unique clonotypes in " + n + " clonesets: " + overlap.getNumberOfKeys());
+        System.out.println("Clonotypes present in all clonesets: " + stat.keysByOccurrence[n]);
+    }
+
+    private static double fraction(long value, long total) {
+        return total == 0 ? 0.0 : 1.0 * value / total;
+    }
+
+    @Override
+    public String command() {
+        return "clonesOverlap";
+    }
+
+    @Override
+    public ActionParameters params() {
+        return params;
+    }
+
+    @Parameters(commandDescription = "Calculates pairwise and N-way overlap of several .clns files")
+    public static final class OverlapParameters extends ActionParametersWithOutput {
+        @Parameter(description = "input1.clns input2.clns ... output_prefix", variableArity = true)
+        public List<String> parameters = new ArrayList<>();
+
+        @Parameter(names = {"-v"}, description = "Use V gene in clone comparison (include it as a clone key along " +
+                "with a clone sequence).")
+        public Boolean v;
+
+        @Parameter(names = {"-j"}, description = "Use J gene in clone comparison (include it as a clone key along " +
+                "with a clone sequence).")
+        public Boolean j;
+
+        @Parameter(names = {"-c"}, description = "Use C gene in clone comparison (include it as a clone key along " +
+                "with a clone sequence).")
+        public Boolean c;
+
+        @Parameter(description = "Number of clonesets decoded in parallel",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        public boolean useV() {
+            return v != null && v;
+        }
+
+        public boolean useJ() {
+            return j != null && j;
+        }
+
+        public boolean useC() {
+            return c != null && c;
+        }
+
+        public List<String> getInputFiles() {
+            return parameters.subList(0, parameters.size() - 1);
+        }
+
+        String getOutputPrefix() {
+            return parameters.get(parameters.size() - 1);
+        }
+
+        String getSamplesFileName() {
+            return getOutputPrefix() + ".samples.tsv";
+        }
+
+        String getPairwiseFileName() {
+            return getOutputPrefix() + ".pairwise.tsv";
+        }
+
+        String getOccurrenceFileName() {
+            return getOutputPrefix() + ".occurrence.tsv";
+        }
+
+        @Override
+        protected List<String> getOutputFiles() {
+            return Arrays.asList(getSamplesFileName(), getPairwiseFileName(), getOccurrenceFileName());
+        }
+
+        @Override
+        public void validate() {
+            if (parameters.size() < 3)
+                throw new ParameterException("Wrong number of parameters.");
+            super.validate();
+        }
+    }
+}
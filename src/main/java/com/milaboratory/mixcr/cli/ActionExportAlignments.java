@@ -30,6 +30,10 @@ package com.milaboratory.mixcr.cli;
 
 import cc.redberry.pipe.OutputPort;
 import cc.redberry.pipe.blocks.FilteringPort;
+import cc.redberry.pipe.util.CountLimitingOutputPort;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.export.InfoWriter;
@@ -40,7 +44,7 @@ import java.util.List;
 
 public class ActionExportAlignments extends ActionExport<VDJCAlignments> {
     public ActionExportAlignments() {
-        super(new ActionExportParameters<VDJCAlignments>(), VDJCAlignments.class);
+        super(new AlignmentsExportParameters(), VDJCAlignments.class);
     }
 
     @Override
@@ -50,14 +54,10 @@ public class ActionExportAlignments extends ActionExport<VDJCAlignments> {
             SmartProgressReporter.startProgressReport("Exporting alignments", reader, System.err);
             writer.attachInfoProviders((List) parameters.exporters);
             writer.ensureHeader();
-            VDJCAlignments alignments;
-            long count = 0;
-            long limit = parameters.getLimit();
             OutputPort<VDJCAlignments> alignmentsPort = new FilteringPort<>(reader, parameters.getFilter());
-            while ((alignments = alignmentsPort.take()) != null && count < limit) {
-                writer.put(alignments);
-                ++count;
-            }
+            if (parameters.getLimit() != Long.MAX_VALUE)
+                alignmentsPort = new CountLimitingOutputPort<>(alignmentsPort, parameters.getLimit());
+            writer.putAll(alignmentsPort, parameters.getThreads());
         }
     }
 
@@ -65,4 +65,16 @@ public class ActionExportAlignments extends ActionExport<VDJCAlignments> {
     public String command() {
         return "exportAlignments";
     }
+
+    @Parameters(commandDescription = "Export alignments to tab-delimited text file")
+    public static class AlignmentsExportParameters extends ActionExportParameters<VDJCAlignments> {
+        @Parameter(description = "Processing threads",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Override
+        public int getThreads() {
+            return threads;
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package com.milaboratory.mixcr.cli;
 
 import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPortCloseable;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
@@ -17,12 +18,14 @@ import com.milaboratory.core.io.sequence.fastq.SingleFastqWriter;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.mixcr.assembler.AlignmentsToClonesMappingContainer;
 import com.milaboratory.mixcr.assembler.ReadToCloneMapping;
+import com.milaboratory.mixcr.basictypes.RandomAccessVDJCAReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
 
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -30,6 +33,10 @@ import java.util.List;
  * @author Stanislav Poslavsky
  */
 public final class ActionExportCloneReads implements Action {
+    /**
+     * Number of .vdjca blocks read and decoded ahead of export
+     */
+    private static final int READ_AHEAD_BLOCKS = 4;
     private final ExtractCloneParameters parameters = new ExtractCloneParameters();
 
     @Override
@@ -49,12 +56,13 @@ public final class ActionExportCloneReads implements Action {
             throw new IllegalArgumentException(msg);
         }
 
-        try (AlignmentsToClonesMappingContainer index = AlignmentsToClonesMappingContainer.open(parameters.getIndexFile())) {
+        try (AlignmentsToClonesMappingContainer index = AlignmentsToClonesMappingContainer.open(parameters.getIndexFile());
+             RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(parameters.getAlignmentsFile())) {
             int[] cloneIds = parameters.getCloneIds();
             if (cloneIds.length == 1) //byClones
-                writeSingle(index, cloneIds[0]);
+                writeSingle(index, reader, cloneIds[0]);
             else
-                writeMany(index, cloneIds);
+                writeMany(index, reader, cloneIds);
         }
     }
 
@@ -65,65 +73,45 @@ public final class ActionExportCloneReads implements Action {
         }
     }
 
-    public void writeMany(AlignmentsToClonesMappingContainer index, int[] cloneIds)
+    public void writeMany(AlignmentsToClonesMappingContainer index, RandomAccessVDJCAReader reader, int[] cloneIds)
             throws Exception {
-        TIntObjectHashMap<SequenceWriter> writers = new TIntObjectHashMap<>(cloneIds.length);
+        // alignment id -> clone id for all requested clones
+        TLongIntHashMap alignmentToClone = new TLongIntHashMap();
         for (int cloneId : cloneIds)
-            writers.put(cloneId, null);
+            for (ReadToCloneMapping mapping : CUtils.it(index.createPortForClone(cloneId)))
+                alignmentToClone.put(mapping.getAlignmentsId(), cloneId);
 
-        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(parameters.getAlignmentsFile())) {
-            Iterator<ReadToCloneMapping> mappingIterator = CUtils.it(index.createPortByClones()).iterator();
-            Iterator<VDJCAlignments> vdjcaIterator = new CUtils.OPIterator<>(reader);
-
-            for (; mappingIterator.hasNext() && vdjcaIterator.hasNext(); ) {
-                //mapping = mappingIterator.next();
-                ReadToCloneMapping mapping = mappingIterator.next();
-                if (!writers.containsKey(mapping.getCloneIndex()))
-                    continue;
-                VDJCAlignments vdjca = vdjcaIterator.next();
-                while (vdjca.getAlignmentsIndex() < mapping.getAlignmentsId()
-                        && vdjcaIterator.hasNext())
-                    vdjca = vdjcaIterator.next();
-
-                assert vdjca.getAlignmentsIndex() == mapping.getAlignmentsId();
-
-                SequenceWriter writer = writers.get(mapping.getCloneIndex());
+        TIntObjectHashMap<SequenceWriter> writers = new TIntObjectHashMap<>(cloneIds.length);
+        try (OutputPortCloseable<VDJCAlignments> alignments = reader.createPort(alignmentToClone.keys(), READ_AHEAD_BLOCKS)) {
+            for (VDJCAlignments vdjca : CUtils.it(alignments)) {
+                int cloneId = alignmentToClone.get(vdjca.getAlignmentsIndex());
+                SequenceWriter writer = writers.get(cloneId);
                 if (writer == null)
-                    writers.put(mapping.getCloneIndex(), writer = createWriter(vdjca.getOriginalSequences().length == 2,
-                            createFileName(parameters.getOutputFileName(), mapping.getCloneIndex())));
+                    writers.put(cloneId, writer = createWriter(vdjca.getOriginalSequences().length == 2,
+                            createFileName(parameters.getOutputFileName(), cloneId)));
                 writer.write(createRead(vdjca.getOriginalSequences(), vdjca.getOriginalDescriptions()));
             }
-
+        } finally {
             for (SequenceWriter writer : writers.valueCollection())
-                if (writer != null)
-                    writer.close();
+                writer.close();
         }
     }
 
-
-    public void writeSingle(AlignmentsToClonesMappingContainer index, int cloneId)
+    public void writeSingle(AlignmentsToClonesMappingContainer index, RandomAccessVDJCAReader reader, int cloneId)
             throws Exception {
-        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(parameters.getAlignmentsFile())) {
-            Iterator<ReadToCloneMapping> mappingIterator = CUtils.it(index.createPortForClone(cloneId)).iterator();
-            Iterator<VDJCAlignments> vdjcaIterator = new CUtils.OPIterator<>(reader);
-
-            SequenceWriter writer = null;
-            for (; mappingIterator.hasNext() && vdjcaIterator.hasNext(); ) {
-                //mapping = mappingIterator.next();
-                VDJCAlignments vdjca = vdjcaIterator.next();
-                ReadToCloneMapping mapping = mappingIterator.next();
-                while (vdjca.getAlignmentsIndex() < mapping.getAlignmentsId()
-                        && vdjcaIterator.hasNext())
-                    vdjca = vdjcaIterator.next();
-
-                if (vdjca.getAlignmentsIndex() != mapping.getAlignmentsId())
-                    continue;
+        TLongArrayList alignmentIds = new TLongArrayList();
+        for (ReadToCloneMapping mapping : CUtils.it(index.createPortForClone(cloneId)))
+            alignmentIds.add(mapping.getAlignmentsId());
 
+        SequenceWriter writer = null;
+        try (OutputPortCloseable<VDJCAlignments> alignments = reader.createPort(alignmentIds.toArray(), READ_AHEAD_BLOCKS)) {
+            for (VDJCAlignments vdjca : CUtils.it(alignments)) {
                 if (writer == null)
                     writer = createWriter(vdjca.getOriginalSequences().length == 2,
                             createFileName(parameters.getOutputFileName(), cloneId));
                 writer.write(createRead(vdjca.getOriginalSequences(), vdjca.getOriginalDescriptions()));
             }
+        } finally {
             if (writer != null)
                 writer.close();
         }
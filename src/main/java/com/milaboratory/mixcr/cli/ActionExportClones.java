@@ -28,23 +28,24 @@
  */
 package com.milaboratory.mixcr.cli;
 
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
 import cc.redberry.primitives.Filter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.core.sequence.AminoAcidSequence;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.TranslationParameters;
 import com.milaboratory.mixcr.basictypes.Clone;
-import com.milaboratory.mixcr.basictypes.CloneSet;
 import com.milaboratory.mixcr.basictypes.CloneSetIO;
-import com.milaboratory.mixcr.basictypes.IOUtil;
 import com.milaboratory.mixcr.export.InfoWriter;
 import com.milaboratory.util.CanReportProgressAndStage;
 import com.milaboratory.util.SmartProgressReporter;
 import io.repseq.core.GeneFeature;
 import io.repseq.core.VDJCLibraryRegistry;
 
-import java.io.InputStream;
+import java.io.IOException;
 import java.util.List;
 
 public class ActionExportClones extends ActionExport<Clone> {
@@ -55,28 +56,36 @@ public class ActionExportClones extends ActionExport<Clone> {
     @Override
     public void go0() throws Exception {
         CloneExportParameters parameters = (CloneExportParameters) this.parameters;
-        try(InputStream inputStream = IOUtil.createIS(parameters.getInputFile());
-            InfoWriter<Clone> writer = new InfoWriter<>(parameters.getOutputFile())) {
-            CloneSet set = CloneSetIO.read(inputStream, VDJCLibraryRegistry.getDefault());
-
-            set = CloneSet.transform(set, parameters.getFilter());
+        Filter<Clone> filter = parameters.getFilter();
+        try (CloneSetIO.CloneSetReader reader = new CloneSetIO.CloneSetReader(parameters.getInputFile(), VDJCLibraryRegistry.getDefault());
+             InfoWriter<Clone> writer = new InfoWriter<>(parameters.getOutputFile())) {
+            // Fractions are recalculated for the filtered clone set (even the default chains filter drops clones
+            // without V/J/C hits); total count for the default filter is stored in the file header, for other
+            // filters (or files from older versions) it is calculated by an additional streaming pass over the file
+            long totalCount = parameters.hasDefaultFilter() ? reader.getTotalCountWithVJCHits() : -1;
+            if (totalCount == -1)
+                totalCount = calculateTotalCount(parameters.getInputFile(), filter);
+            reader.setFractionsTotalCount(totalCount);
 
             writer.attachInfoProviders((List) parameters.exporters);
             writer.ensureHeader();
-            long limit = parameters.getLimit();
-            for (int i = 0; i < set.size(); i++) {
-                if (set.get(i).getFraction() < parameters.minFraction ||
-                        set.get(i).getCount() < parameters.minCount) {
-                    limit = i;
-                    break;
-                }
-            }
-            ExportClones exportClones = new ExportClones(set, writer, limit);
+            ExportClones exportClones = new ExportClones(reader, filter, writer, parameters.getLimit(),
+                    parameters.minFraction, parameters.minCount, parameters.getThreads());
             SmartProgressReporter.startProgressReport(exportClones, System.err);
             exportClones.run();
         }
     }
 
+    static long calculateTotalCount(String file, Filter<Clone> filter) throws IOException {
+        long totalCount = 0;
+        try (CloneSetIO.CloneSetReader reader = new CloneSetIO.CloneSetReader(file, VDJCLibraryRegistry.getDefault())) {
+            for (Clone clone : CUtils.it(reader))
+                if (filter.accept(clone))
+                    totalCount += clone.getCount();
+        }
+        return totalCount;
+    }
+
     @Override
     public String command() {
         return "exportClones";
@@ -116,17 +125,25 @@ public class ActionExportClones extends ActionExport<Clone> {
 
     public static final class ExportClones implements CanReportProgressAndStage {
         final static String stage = "Exporting clones";
-        final CloneSet clones;
+        final CloneSetIO.CloneSetReader reader;
+        final Filter<Clone> filter;
         final InfoWriter<Clone> writer;
-        final long size;
-        volatile long current = 0;
         final long limit;
-
-        private ExportClones(CloneSet clones, InfoWriter<Clone> writer, long limit) {
-            this.clones = clones;
+        final float minFraction;
+        final long minCount;
+        final int threads;
+        long current = 0;
+        volatile boolean finished = false;
+
+        private ExportClones(CloneSetIO.CloneSetReader reader, Filter<Clone> filter, InfoWriter<Clone> writer,
+                             long limit, float minFraction, long minCount, int threads) {
+            this.reader = reader;
+            this.filter = filter;
             this.writer = writer;
-            this.size = clones.size();
             this.limit = limit;
+            this.minFraction = minFraction;
+            this.minCount = minCount;
+            this.threads = threads;
         }
 
         @Override
@@ -136,21 +153,35 @@ public class ActionExportClones extends ActionExport<Clone> {
 
         @Override
         public double getProgress() {
-            return (1.0 * current) / size;
+            return finished ? 1.0 : reader.getProgress();
         }
 
         @Override
         public boolean isFinished() {
-            return current == size;
+            return finished;
         }
 
         void run() {
-            for (Clone clone : clones.getClones()) {
-                if (current == limit)
-                    break;
-                writer.put(clone);
-                ++current;
-            }
+            writer.putAll(new OutputPort<Clone>() {
+                @Override
+                public synchronized Clone take() {
+                    if (finished || current == limit)
+                        return null;
+                    Clone clone;
+                    while ((clone = reader.take()) != null) {
+                        if (!filter.accept(clone))
+                            continue;
+                        // clones are sorted by count, so no more clones will pass the thresholds
+                        if (clone.getFraction() < minFraction || clone.getCount() < minCount)
+                            break;
+                        ++current;
+                        return clone;
+                    }
+                    finished = true;
+                    return null;
+                }
+            }, threads);
+            finished = true;
         }
     }
 
@@ -172,6 +203,15 @@ public class ActionExportClones extends ActionExport<Clone> {
                 names = {"-m", "--minimal-clone-count"})
         public long minCount = 0;
 
+        @Parameter(description = "Processing threads",
+                names = {"--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        @Override
+        public int getThreads() {
+            return threads;
+        }
+
         public boolean getFilterOutOfFrames() {
             return filterOutOfFrames != null && filterOutOfFrames;
         }
@@ -180,6 +220,13 @@ public class ActionExportClones extends ActionExport<Clone> {
             return filterStops != null && filterStops;
         }
 
+        /**
+         * Returns true if only clones without V/J/C hits are filtered out (see {@link CloneSetIO#hasVJCHit})
+         */
+        public boolean hasDefaultFilter() {
+            return !getFilterOutOfFrames() && !getFilterStops() && isAllChains();
+        }
+
         @Override
         public Filter<Clone> getFilter() {
             final Filter<Clone> superFilter = super.getFilter();
@@ -71,6 +71,13 @@ public class ActionExportParameters<T extends VDJCObject> extends ActionParamete
         return limit == null ? Long.MAX_VALUE : limit;
     }
 
+    /**
+     * Number of threads used to format exported records; overridden by actions supporting parallel export
+     */
+    public int getThreads() {
+        return 1;
+    }
+
     @Override
     protected List<String> getOutputFiles() {
         return files.subList(1, 2);
@@ -98,6 +105,13 @@ public class ActionExportParameters<T extends VDJCObject> extends ActionParamete
         return Util.parseLoci(chains);
     }
 
+    /**
+     * Returns true if export is not limited to specific chains (the default)
+     */
+    public boolean isAllChains() {
+        return Chains.ALL.equals(Util.parseLoci(chains_legacy == null ? chains : chains_legacy));
+    }
+
     @SuppressWarnings("unchecked")
     public Filter<T> getFilter() {
         List<Filter<T>> filters = new ArrayList<>();
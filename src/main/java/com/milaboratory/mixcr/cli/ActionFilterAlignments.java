@@ -1,6 +1,14 @@
 package com.milaboratory.mixcr.cli;
 
 import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.Processor;
+import cc.redberry.pipe.blocks.ParallelProcessor;
+import cc.redberry.pipe.util.Chunk;
+import cc.redberry.pipe.util.CountLimitingOutputPort;
+import cc.redberry.pipe.util.Indexer;
+import cc.redberry.pipe.util.OrderedOutputPort;
 import cc.redberry.primitives.Filter;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -11,20 +19,30 @@ import com.milaboratory.cli.ActionParameters;
 import com.milaboratory.cli.ActionParametersWithOutput;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.basictypes.RandomAccessVDJCAReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsFeatureIndex;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriterI;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.SmartProgressReporter;
+import com.milaboratory.util.TimeUtils;
 import io.repseq.core.Chains;
 import io.repseq.core.GeneFeature;
 import io.repseq.core.GeneType;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import static cc.redberry.pipe.CUtils.chunked;
+import static cc.redberry.pipe.CUtils.unchunked;
+
 /**
  * @author Dmitry Bolotin
  * @author Stanislav Poslavsky
@@ -34,21 +52,114 @@ public final class ActionFilterAlignments implements Action {
 
     @Override
     public void go(ActionHelper helper) throws Exception {
+        if (parameters.cdr3Equals != null) {
+            File indexFile = new File(VDJCAlignmentsFeatureIndex.defaultIndexFileName(parameters.getInputFileName(),
+                    GeneFeature.CDR3));
+            if (indexFile.exists() && indexFile.lastModified() >= new File(parameters.getInputFileName()).lastModified()
+                    && filterWithIndex(indexFile))
+                return;
+        }
+
         try (VDJCAlignmentsReader reader = parameters.getInput();
              VDJCAlignmentsWriter writer = parameters.getOutput()) {
             writer.header(reader.getParameters(), reader.getUsedGenes());
-            SmartProgressReporter.startProgressReport("Filtering", reader);
-            int total = 0, passed = 0;
+            // Decoding of input blocks is performed in background
+            reader.setDecodingThreads(parameters.threads);
+
+            OutputPort<VDJCAlignments> input = reader;
+            CanReportProgress progress = reader;
+            if (parameters.limit != 0) {
+                input = new CountLimitingOutputPort<>(input, parameters.limit);
+                progress = SmartProgressReporter.extractProgress((CountLimitingOutputPort<?>) input);
+            }
+            SmartProgressReporter.startProgressReport("Filtering", progress);
+
+            long beginTimestamp = System.currentTimeMillis();
+            long[] counts = filter(input, parameters.getFilter(), parameters.threads, writer);
+            long total = counts[0], passed = counts[1];
+            long time = System.currentTimeMillis() - beginTimestamp;
+
+            // Number of reads is unknown if input was not read till the end
+            writer.setNumberOfProcessedReads(parameters.limit == 0 || total < parameters.limit
+                    ? reader.getNumberOfReads()
+                    : -1);
+            System.out.printf("Written %s alignments (%s alignments considered in total)\n", passed, total);
+            System.out.printf("Filtering time: %s (%.0f alignments/s)\n", TimeUtils.nanoTimeToString(time * 1000_000),
+                    1000.0 * total / Math.max(time, 1));
+        }
+    }
+
+    /**
+     * Filters alignments in several threads, preserving order of input alignments in the output.
+     *
+     * @return number of processed alignments and number of alignments written to the output
+     */
+    @SuppressWarnings("unchecked")
+    static long[] filter(OutputPort<VDJCAlignments> input, final Filter<VDJCAlignments> filter, int threads,
+                         VDJCAlignmentsWriterI writer) {
+        OutputPort<Chunk<VDJCAlignments>> chunks = CUtils.buffered(chunked(input, 64), 16);
+        OutputPort<FilteredAlignment> filtered = unchunked(new ParallelProcessor(chunks,
+                chunked(new Processor<VDJCAlignments, FilteredAlignment>() {
+                    @Override
+                    public FilteredAlignment process(VDJCAlignments input) {
+                        return new FilteredAlignment(input, filter.accept(input));
+                    }
+                }), threads));
+
+        long total = 0, passed = 0;
+        for (FilteredAlignment al : CUtils.it(new OrderedOutputPort<>(filtered, FILTERED_INDEXER))) {
+            ++total;
+            if (al.accepted) {
+                writer.write(al.alignment);
+                ++passed;
+            }
+        }
+        return new long[]{total, passed};
+    }
+
+    /**
+     * Reads only alignments with matching CDR3 hash using sidecar CDR3 index.
+     *
+     * @return false if index does not correspond to the input file
+     */
+    private boolean filterWithIndex(File indexFile) throws Exception {
+        try (VDJCAlignmentsFeatureIndex index = VDJCAlignmentsFeatureIndex.open(indexFile);
+             RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(parameters.getInputFileName())) {
+            if (!GeneFeature.CDR3.equals(index.getFeature())
+                    || index.getNumberOfAlignments() != reader.getNumberOfAlignments())
+                return false;
+
+            long beginTimestamp = System.currentTimeMillis();
+            long[] candidates = index.find(parameters.getCdr3Equals());
+            if (parameters.limit != 0) {
+                // Indices are sorted
+                int size = 0;
+                while (size < candidates.length && candidates[size] < parameters.limit)
+                    ++size;
+                candidates = Arrays.copyOf(candidates, size);
+            }
+
+            long total = 0, passed = 0;
             final AlignmentsFilter filter = parameters.getFilter();
-            for (VDJCAlignments al : CUtils.it(CUtils.buffered(reader, 2048))) {
-                ++total;
-                if (filter.accept(al)) {
-                    writer.write(al);
-                    ++passed;
+            try (VDJCAlignmentsWriter writer = parameters.getOutput();
+                 OutputPortCloseable<VDJCAlignments> alignments = reader.createPort(candidates, parameters.threads)) {
+                writer.header(reader.getParameters(), reader.getUsedGenes());
+                for (VDJCAlignments al : CUtils.it(alignments)) {
+                    ++total;
+                    if (filter.accept(al)) {
+                        writer.write(al);
+                        ++passed;
+                    }
                 }
+                writer.setNumberOfProcessedReads(parameters.limit == 0 || parameters.limit >= reader.getNumberOfAlignments()
+                        ? reader.getNumberOfReads()
+                        : -1);
             }
-            writer.setNumberOfProcessedReads(reader.getNumberOfReads());
-            System.out.printf("Written %s alignments (%s alignments considered in total)\n", passed, total);
+            long time = System.currentTimeMillis() - beginTimestamp;
+
+            System.out.printf("Written %s alignments (%s alignments with matching CDR3 hash found in index)\n", passed, total);
+            System.out.printf("Filtering time: %s\n", TimeUtils.nanoTimeToString(time * 1000_000));
+            return true;
         }
     }
 
@@ -57,6 +168,23 @@ public final class ActionFilterAlignments implements Action {
         return "filterAlignments";
     }
 
+    private static final class FilteredAlignment {
+        final VDJCAlignments alignment;
+        final boolean accepted;
+
+        FilteredAlignment(VDJCAlignments alignment, boolean accepted) {
+            this.alignment = alignment;
+            this.accepted = accepted;
+        }
+    }
+
+    private static final Indexer<FilteredAlignment> FILTERED_INDEXER = new Indexer<FilteredAlignment>() {
+        @Override
+        public long getIndex(FilteredAlignment o) {
+            return o.alignment.getAlignmentsIndex();
+        }
+    };
+
     @Override
     public ActionParameters params() {
         return parameters;
@@ -125,6 +253,10 @@ public final class ActionFilterAlignments implements Action {
                 names = {"-n", "--limit"}, validateWith = PositiveInteger.class)
         public long limit = 0;
 
+        @Parameter(description = "Processing threads",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
         @Override
         protected List<String> getOutputFiles() {
             return Collections.singletonList(parameters.get(1));
@@ -134,8 +266,12 @@ public final class ActionFilterAlignments implements Action {
             return Util.parseLoci(chains);
         }
 
+        public String getInputFileName() {
+            return parameters.get(0);
+        }
+
         public VDJCAlignmentsReader getInput() throws IOException {
-            return new VDJCAlignmentsReader(parameters.get(0));
+            return new VDJCAlignmentsReader(getInputFileName());
         }
 
         public VDJCAlignmentsWriter getOutput() throws IOException {
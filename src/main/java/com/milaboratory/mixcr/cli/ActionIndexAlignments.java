@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import cc.redberry.pipe.CUtils;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
+import com.milaboratory.cli.Action;
+import com.milaboratory.cli.ActionHelper;
+import com.milaboratory.cli.ActionParameters;
+import com.milaboratory.cli.ActionParametersWithOutput;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsFeatureIndex;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
+import com.milaboratory.util.SmartProgressReporter;
+import io.repseq.core.GeneFeature;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds sidecar feature index for .vdjca file (see {@link VDJCAlignmentsFeatureIndex}).
+ */
+public final class ActionIndexAlignments implements Action {
+    public final IndexAlignmentsParameters parameters = new IndexAlignmentsParameters();
+
+    @Override
+    public void go(ActionHelper helper) throws Exception {
+        VDJCAlignmentsFeatureIndex.Builder builder = new VDJCAlignmentsFeatureIndex.Builder(parameters.getFeature());
+        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(parameters.getInputFileName())) {
+            reader.setDecodingThreads(parameters.threads);
+            SmartProgressReporter.startProgressReport("Indexing", reader);
+            for (VDJCAlignments al : CUtils.it(reader))
+                builder.put(al);
+        }
+        builder.write(parameters.getOutputFileName());
+    }
+
+    @Override
+    public String command() {
+        return "indexAlignments";
+    }
+
+    @Override
+    public ActionParameters params() {
+        return parameters;
+    }
+
+    @Parameters(commandDescription = "Build index of alignments by nucleotide sequence of a gene feature (used " +
+            "by filterAlignments --cdr3-equals).")
+    public static final class IndexAlignmentsParameters extends ActionParametersWithOutput {
+        @Parameter(description = "input_file.vdjca [output_file.idx]", variableArity = true)
+        public List<String> parameters = new ArrayList<>();
+
+        @Parameter(description = "Gene feature to index.",
+                names = {"-f", "--feature"})
+        public String feature = "CDR3";
+
+        @Parameter(description = "Processing threads",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        public GeneFeature getFeature() {
+            return GeneFeature.parse(feature);
+        }
+
+        public String getInputFileName() {
+            return parameters.get(0);
+        }
+
+        public String getOutputFileName() {
+            return parameters.size() == 2
+                    ? parameters.get(1)
+                    : VDJCAlignmentsFeatureIndex.defaultIndexFileName(getInputFileName(), getFeature());
+        }
+
+        @Override
+        protected List<String> getOutputFiles() {
+            return Collections.singletonList(getOutputFileName());
+        }
+
+        @Override
+        public void validate() {
+            if (parameters.size() < 1 || parameters.size() > 2)
+                throw new ParameterException("Wrong number of parameters.");
+            super.validate();
+        }
+    }
+}
@@ -28,38 +28,53 @@
  */
 package com.milaboratory.mixcr.cli;
 
-import cc.redberry.pipe.CUtils;
-import cc.redberry.pipe.OutputPort;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.milaboratory.cli.Action;
 import com.milaboratory.cli.ActionHelper;
 import com.milaboratory.cli.ActionParameters;
+import com.milaboratory.mixcr.basictypes.RandomAccessVDJCAReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
-import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
 import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.SmartProgressReporter;
 import io.repseq.core.VDJCLibraryRegistry;
 
-import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class ActionMergeAlignments implements Action {
     final MergeParameters parameters = new MergeParameters();
 
     @Override
     public void go(ActionHelper helper) throws Exception {
-        try (MultiReader reader = new MultiReader(parameters.getInputFileNames());
-             VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(parameters.getOutputFileName())) {
-            reader.initNextReader();
-            SmartProgressReporter.startProgressReport("Merging", reader);
-            writer.header(reader.currentInnerReader.getParameters(), reader.currentInnerReader.getUsedGenes());
-            for (VDJCAlignments record : CUtils.it(reader))
-                writer.write(record);
-            writer.setNumberOfProcessedReads(reader.readIdOffset.get());
+        MergeProgress progress = new MergeProgress(parameters.getInputFileNames().size());
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(parameters.getOutputFileName())) {
+            SmartProgressReporter.startProgressReport("Merging", progress);
+            long readIdOffset = 0;
+            for (String file : parameters.getInputFileNames()) {
+                try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(file, VDJCLibraryRegistry.getDefault())) {
+                    if (progress.fileId == 0)
+                        writer.header(reader.getParameters(), reader.getUsedGenes());
+
+                    if (writer.isBlockCompatible(reader))
+                        // Fast path: blocks are copied as is, only read id offset of the block is changed
+                        for (int blockId = 0; blockId < reader.getNumberOfBlocks(); ++blockId) {
+                            writer.writeRawBlock(reader, blockId, readIdOffset);
+                            progress.fileProgress = 1.0 * (blockId + 1) / reader.getNumberOfBlocks();
+                        }
+                    else
+                        // Different gene references or compression, re-encoding alignments
+                        for (int blockId = 0; blockId < reader.getNumberOfBlocks(); ++blockId) {
+                            for (VDJCAlignments record : reader.getBlock(blockId))
+                                writer.write(new VDJCAlignments(readIdOffset + record.getReadId(), -1, record));
+                            progress.fileProgress = 1.0 * (blockId + 1) / reader.getNumberOfBlocks();
+                        }
+
+                    readIdOffset += reader.getNumberOfReads();
+                }
+                progress.nextFile();
+            }
+            writer.setNumberOfProcessedReads(readIdOffset);
         }
     }
 
@@ -87,75 +102,28 @@ public class ActionMergeAlignments implements Action {
         }
     }
 
-    // Not thread-safe !
-    private static final class MultiReader implements
-            OutputPort<VDJCAlignments>, CanReportProgress, AutoCloseable {
-        final VDJCLibraryRegistry registry = VDJCLibraryRegistry.getDefault();
-        final List<String> files;
-        final AtomicInteger fileId = new AtomicInteger(0);
-        final AtomicLong recordId = new AtomicLong(), readIdOffset = new AtomicLong();
-        volatile double progress = 0.0;
-        VDJCAlignmentsReader currentInnerReader;
-
-        public MultiReader(List<String> files) {
-            this.files = files;
+    private static final class MergeProgress implements CanReportProgress {
+        final int numberOfFiles;
+        volatile int fileId = 0;
+        volatile double fileProgress = 0.0;
+
+        MergeProgress(int numberOfFiles) {
+            this.numberOfFiles = numberOfFiles;
         }
 
-        private void updateProgress() {
-            double p = 1.0 * (fileId.get() - 1) / files.size();
-            if (currentInnerReader != null)
-                p += currentInnerReader.getProgress() / files.size();
-            this.progress = p;
+        void nextFile() {
+            fileProgress = 0.0;
+            ++fileId;
         }
 
         @Override
         public double getProgress() {
-            return progress;
+            return (fileId + fileProgress) / numberOfFiles;
         }
 
         @Override
         public boolean isFinished() {
-            return fileId.get() > files.size();
-        }
-
-        public boolean initNextReader() {
-            try {
-                if (currentInnerReader == null) {
-                    int idToCreate = fileId.getAndIncrement();
-                    if (idToCreate >= files.size())
-                        return false;
-                    currentInnerReader = new VDJCAlignmentsReader(files.get(idToCreate), registry);
-                }
-                return true;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        @Override
-        public VDJCAlignments take() {
-            VDJCAlignments record;
-            if (currentInnerReader == null || (record = currentInnerReader.take()) == null) {
-                if (currentInnerReader != null) {
-                    readIdOffset.addAndGet(currentInnerReader.getNumberOfReads());
-                    currentInnerReader.close();
-                    currentInnerReader = null;
-                }
-                if (!initNextReader())
-                    return null;
-                return take();
-            } else {
-                updateProgress();
-                return new VDJCAlignments(readIdOffset.get() + record.getReadId(),
-                        recordId.incrementAndGet(),
-                        record);
-            }
-        }
-
-        @Override
-        public void close() throws Exception {
-            if (currentInnerReader != null)
-                currentInnerReader.close();
+            return fileId == numberOfFiles;
         }
     }
 }
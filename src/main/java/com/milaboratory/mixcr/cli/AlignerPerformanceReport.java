@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import com.milaboratory.mixcr.util.QueueOccupancyMeter;
+import com.milaboratory.mixcr.util.StageTimings;
+import com.milaboratory.mixcr.vdjaligners.AlignerStage;
+import com.milaboratory.util.TimeUtils;
+
+/**
+ * "Performance" section of the align report: estimated time spent in each stage of the pipeline (summed over all
+ * threads) and occupancy of the buffers around the parallel aligner.
+ */
+public final class AlignerPerformanceReport implements ReportWriter {
+    final StageTimings<AlignerStage> timings;
+    final QueueOccupancyMeter inputQueue, outputQueue;
+    final int inputQueueCapacity;
+
+    public AlignerPerformanceReport(StageTimings<AlignerStage> timings,
+                                    QueueOccupancyMeter inputQueue, int inputQueueCapacity,
+                                    QueueOccupancyMeter outputQueue) {
+        this.timings = timings;
+        this.inputQueue = inputQueue;
+        this.inputQueueCapacity = inputQueueCapacity;
+        this.outputQueue = outputQueue;
+    }
+
+    @Override
+    public void writeReport(ReportHelper helper) {
+        helper.writeField("Performance", "time summed over all threads, estimated from sampled events");
+
+        long totalTime = 0;
+        for (AlignerStage stage : timings.getStages())
+            totalTime += timings.getTime(stage);
+
+        for (AlignerStage stage : timings.getStages()) {
+            long events = timings.getEvents(stage);
+            if (events == 0)
+                continue;
+            long time = timings.getTime(stage);
+            helper.writeField(stage.reportLine, TimeUtils.nanoTimeToString(time) +
+                    " (" + Util.PERCENT_FORMAT.format(100.0 * time / totalTime) + "%; " +
+                    events + " events, " + Util.PERCENT_FORMAT.format(time / 1000.0 / events) + " us/event)");
+        }
+
+        helper.writeField("Aligner input buffer occupancy (mean / max / capacity, chunks)",
+                Util.PERCENT_FORMAT.format(inputQueue.getMeanOccupancy()) + " / " +
+                        inputQueue.getMaxOccupancy() + " / " + inputQueueCapacity);
+        helper.writeField("Aligner output buffer occupancy (mean / max, chunks)",
+                Util.PERCENT_FORMAT.format(outputQueue.getMeanOccupancy()) + " / " +
+                        outputQueue.getMaxOccupancy());
+    }
+}
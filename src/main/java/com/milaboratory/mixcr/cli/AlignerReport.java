@@ -30,6 +30,7 @@ package com.milaboratory.mixcr.cli;
 
 import com.milaboratory.core.io.sequence.SequenceRead;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerEventListener;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignmentFailCause;
 
@@ -42,8 +43,17 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
     private final AtomicLong chimeras = new AtomicLong(0);
     private final AtomicLong alignedOverlap = new AtomicLong(0);
     private final AtomicLong nonAlignedOverlap = new AtomicLong(0);
+    private final DAlignmentCache dCache;
+    // D alignment cache statistics before alignment (cache may be shared with other stages)
+    private final DAlignmentCache.Stats dCacheStatsAtStart;
 
     public AlignerReport() {
+        this(DAlignmentCache.getDefault());
+    }
+
+    public AlignerReport(DAlignmentCache dCache) {
+        this.dCache = dCache;
+        this.dCacheStatsAtStart = dCache.getStats();
     }
 
     public long getFails(VDJCAlignmentFailCause cause) {
@@ -74,6 +84,10 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
         return nonAlignedOverlap.get();
     }
 
+    public DAlignmentCache.Stats getDAlignmentCacheStats() {
+        return dCache.getStats().minus(dCacheStatsAtStart);
+    }
+
     @Override
     public void onFailedAlignment(SequenceRead read, VDJCAlignmentFailCause cause) {
         fails.incrementAndGet(cause.ordinal());
@@ -113,6 +127,10 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
         helper.writePercentAndAbsoluteField("Overlapped", alignedOverlap.get() + nonAlignedOverlap.get(), total);
         helper.writePercentAndAbsoluteField("Overlapped and aligned", alignedOverlap.get(), total);
         helper.writePercentAndAbsoluteField("Overlapped and not aligned", nonAlignedOverlap.get(), total);
+
+        DAlignmentCache.Stats dCacheStats = getDAlignmentCacheStats();
+        if (dCacheStats.getRequests() != 0)
+            helper.writePercentAndAbsoluteField("D alignment cache hits", dCacheStats.hits, dCacheStats.getRequests());
     }
 
     public long getTotal() {
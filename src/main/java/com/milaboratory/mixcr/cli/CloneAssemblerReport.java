@@ -31,6 +31,7 @@ package com.milaboratory.mixcr.cli;
 import com.milaboratory.mixcr.assembler.CloneAccumulator;
 import com.milaboratory.mixcr.assembler.CloneAssemblerListener;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
 
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -51,6 +52,18 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
     final AtomicInteger clonesPreClustered = new AtomicInteger();
     final AtomicLong readsPreClustered = new AtomicLong();
     final AtomicLong readsClustered = new AtomicLong();
+    final DAlignmentCache dCache;
+    // D alignment cache statistics before assembly (cache may be shared with other stages)
+    final DAlignmentCache.Stats dCacheStatsAtStart;
+
+    public CloneAssemblerReport() {
+        this(DAlignmentCache.getDefault());
+    }
+
+    public CloneAssemblerReport(DAlignmentCache dCache) {
+        this.dCache = dCache;
+        this.dCacheStatsAtStart = dCache.getStats();
+    }
 
     public long getTotalReads() {
         return totalReads;
@@ -108,6 +121,10 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
         return readsDroppedWithClones.get();
     }
 
+    public DAlignmentCache.Stats getDAlignmentCacheStats() {
+        return dCache.getStats().minus(dCacheStatsAtStart);
+    }
+
     @Override
     public void onNewCloneCreated(CloneAccumulator accumulator) {
         clonesCreated.incrementAndGet();
@@ -206,5 +223,9 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
                 .writeField("Clonotypes eliminated by PCR error correction", clonesClustered.get())
                 .writeField("Clonotypes dropped as low quality", clonesDropped.get())
                 .writeField("Clonotypes pre-clustered due to the similar VJC-lists", clonesPreClustered.get());
+
+        DAlignmentCache.Stats dCacheStats = getDAlignmentCacheStats();
+        if (dCacheStats.getRequests() != 0)
+            helper.writePercentAndAbsoluteField("D alignment cache hits", dCacheStats.hits, dCacheStats.getRequests());
     }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.validators.PositiveInteger;
+import com.milaboratory.mixcr.vdjaligners.DAlignmentCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line options of D alignments cache (shared by align and assemble actions).
+ */
+public final class DAlignmentCacheParameters {
+    @Parameter(description = "Maximal number of cached D alignments.",
+            names = {"--d-cache-size"}, validateWith = PositiveInteger.class)
+    public int size = DAlignmentCache.DEFAULT_SIZE;
+
+    @Parameter(description = "D alignments cache eviction policy (LRU, Soft or None).",
+            names = {"--d-cache-eviction"})
+    public DAlignmentCache.EvictionPolicy evictionPolicy = DAlignmentCache.EvictionPolicy.LRU;
+
+    @Parameter(description = "File to persist D alignments cache in between runs on the same library " +
+            "(loaded on start and saved on finish).",
+            names = {"--d-cache-file"})
+    public String file;
+
+    /**
+     * Creates cache loaded from the file (if specified and exists); must be closed with {@link
+     * #close(DAlignmentCache)} to save it to the file.
+     */
+    public DAlignmentCache open() {
+        File f = file == null ? null : new File(file);
+        DAlignmentCache cache = new DAlignmentCache(size, evictionPolicy, f);
+        if (f != null && f.exists())
+            try {
+                cache.load(f);
+            } catch (IOException | RuntimeException e) {
+                // Cache file is only an optimization
+                System.out.println("WARNING: can't load D alignments cache from " + file + ": " + e.getMessage());
+            }
+        return cache;
+    }
+
+    /**
+     * Saves cache to the file (if specified)
+     */
+    public void close(DAlignmentCache cache) {
+        try {
+            cache.close();
+        } catch (IOException e) {
+            System.out.println("WARNING: can't save D alignments cache to " + file + ": " + e.getMessage());
+        }
+    }
+}
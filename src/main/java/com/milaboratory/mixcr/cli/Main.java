@@ -88,7 +88,9 @@ public class Main {
                 new ActionAssemblePartialAlignments(),
                 new ActionExportReads(),
                 new ActionClonesDiff(),
-                new ActionFilterAlignments());
+                new ActionClonesOverlap(),
+                new ActionFilterAlignments(),
+                new ActionIndexAlignments());
 
         // Adding version info callback
         main.setVersionInfoCallback(new Runnable() {
@@ -29,7 +29,6 @@
 package com.milaboratory.mixcr.export;
 
 import cc.redberry.pipe.CUtils;
-import cc.redberry.pipe.OutputPort;
 import com.milaboratory.core.alignment.Alignment;
 import com.milaboratory.core.mutations.Mutations;
 import com.milaboratory.core.mutations.MutationsUtil;
@@ -55,7 +54,6 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 
 import static com.milaboratory.mixcr.assembler.ReadToCloneMapping.MappingType.Dropped;
@@ -735,18 +733,13 @@ public final class FieldExtractors {
             implements FieldExtractor<VDJCAlignments>, Closeable {
         private final OutputMode outputMode;
         private final AlignmentsToClonesMappingContainer container;
-        private final OutputPort<ReadToCloneMapping> byAls;
         private final boolean printMapping;
-        private final Iterator<ReadToCloneMapping> mappingIterator;
-        private ReadToCloneMapping currentMapping = null;
 
         public AlignmentToCloneExtractor(OutputMode outputMode, String indexFile, boolean printMapping) {
             try {
                 this.outputMode = outputMode;
                 this.printMapping = printMapping;
                 this.container = AlignmentsToClonesMappingContainer.open(indexFile);
-                this.byAls = this.container.createPortByAlignments();
-                this.mappingIterator = CUtils.it(byAls).iterator();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -762,20 +755,13 @@ public final class FieldExtractors {
 
         @Override
         public String extractValue(VDJCAlignments object) {
-            if (currentMapping == null && mappingIterator.hasNext())
-                currentMapping = mappingIterator.next();
-
-            if (currentMapping == null)
-                throw new IllegalArgumentException("Wrong number of records in index.");
-
-            while (currentMapping.getAlignmentsId() < object.getAlignmentsIndex() && mappingIterator.hasNext())
-                currentMapping = mappingIterator.next();
-            if (currentMapping.getAlignmentsId() != object.getAlignmentsIndex())
+            ReadToCloneMapping mapping = container.getMappingForAlignment(object.getAlignmentsIndex());
+            if (mapping == null)
                 return printMapping ? Dropped.toString().toLowerCase() : NULL;
 
-            int cloneIndex = currentMapping.getCloneIndex();
-            ReadToCloneMapping.MappingType mt = currentMapping.getMappingType();
-            if (currentMapping.isDropped())
+            int cloneIndex = mapping.getCloneIndex();
+            ReadToCloneMapping.MappingType mt = mapping.getMappingType();
+            if (mapping.isDropped())
                 return printMapping ? mt.toString().toLowerCase() : NULL;
             return printMapping ? Integer.toString(cloneIndex) + ":" + mt.toString().toLowerCase() : Integer.toString(cloneIndex);
         }
@@ -790,14 +776,11 @@ public final class FieldExtractors {
             implements FieldExtractor<Clone>, Closeable {
         private final OutputMode outputMode;
         private final AlignmentsToClonesMappingContainer container;
-        private final Iterator<ReadToCloneMapping> mappingIterator;
-        private ReadToCloneMapping currentMapping;
 
         public CloneToReadsExtractor(OutputMode outputMode, String file) {
             try {
                 this.outputMode = outputMode;
                 this.container = AlignmentsToClonesMappingContainer.open(file);
-                this.mappingIterator = CUtils.it(this.container.createPortByClones()).iterator();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -810,24 +793,14 @@ public final class FieldExtractors {
 
         @Override
         public String extractValue(Clone clone) {
-            if (currentMapping == null && mappingIterator.hasNext())
-                currentMapping = mappingIterator.next();
-
-            if (currentMapping == null)
+            if (clone.getId() < 0 || clone.getId() >= container.getCloneCount())
                 throw new IllegalArgumentException("Wrong number of records in index.");
 
-            while (currentMapping.getCloneIndex() < clone.getId() && mappingIterator.hasNext())
-                currentMapping = mappingIterator.next();
-
             long count = 0;
             StringBuilder sb = new StringBuilder();
-            while (currentMapping.getCloneIndex() == clone.getId()) {
+            for (ReadToCloneMapping mapping : CUtils.it(container.createPortForClone(clone.getId()))) {
                 ++count;
-                assert currentMapping.getCloneIndex() == currentMapping.getCloneIndex();
-                sb.append(currentMapping.getReadId()).append(",");
-                if (!mappingIterator.hasNext())
-                    break;
-                currentMapping = mappingIterator.next();
+                sb.append(mapping.getReadId()).append(",");
             }
             //count == object.getCount() only if addReadsCountOnClustering=true
             assert count >= clone.getCount() : "Actual count: " + clone.getCount() + ", in mapping: " + count;
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.info;
+
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.basictypes.VDJCHit;
+import io.repseq.core.GeneFeature;
+import io.repseq.core.GeneType;
+
+import java.util.Arrays;
+
+/**
+ * Alignment being processed by {@link AlignmentInfoCollector}s. Caches gene features extracted from the alignment, so
+ * each feature is calculated only once regardless of the number of collectors requesting it.
+ *
+ * <p>Instances are reused for subsequent alignments and are not thread-safe.</p>
+ */
+public final class AlignmentInfo {
+    private VDJCAlignments alignments;
+    private int generation = 0;
+    private int size = 0;
+    private GeneFeature[] features = new GeneFeature[8];
+    private NSequenceWithQuality[] values = new NSequenceWithQuality[8];
+    private int[] generations = new int[8];
+
+    public void set(VDJCAlignments alignments) {
+        this.alignments = alignments;
+        ++generation;
+    }
+
+    public VDJCAlignments getAlignments() {
+        return alignments;
+    }
+
+    public VDJCHit getBestHit(GeneType geneType) {
+        return alignments.getBestHit(geneType);
+    }
+
+    public NSequenceWithQuality getFeature(GeneFeature feature) {
+        int i = indexOf(feature);
+        if (i == -1) {
+            if (size == features.length) {
+                features = Arrays.copyOf(features, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                generations = Arrays.copyOf(generations, size * 2);
+            }
+            i = size++;
+            features[i] = feature;
+            generations[i] = generation - 1;
+        }
+        if (generations[i] != generation) {
+            values[i] = alignments.getFeature(feature);
+            generations[i] = generation;
+        }
+        return values[i];
+    }
+
+    private int indexOf(GeneFeature feature) {
+        for (int i = 0; i < size; ++i)
+            if (features[i] == feature)
+                return i;
+        for (int i = 0; i < size; ++i)
+            if (features[i].equals(feature))
+                return i;
+        return -1;
+    }
+}
@@ -28,18 +28,34 @@
  */
 package com.milaboratory.mixcr.info;
 
-import com.milaboratory.mixcr.basictypes.VDJCAlignments;
-
 import java.io.PrintStream;
-import java.io.PrintWriter;
 
 /**
+ * Collector of statistics over a set of alignments.
+ *
+ * <p>Alignments are processed in several threads, each thread puts alignments to its own accumulator (see {@link
+ * #createAccumulator()}), so accumulators need no synchronization. After all alignments are processed accumulators
+ * are merged into the collector one by one, then {@link #end()} and {@link #writeResult(PrintStream)} are
+ * called.</p>
+ *
  * Created by dbolotin on 04/08/15.
  */
-public interface AlignmentInfoCollector {
-    void writeResult(PrintStream writer);
+public interface AlignmentInfoCollector<A extends AlignmentInfoCollector.Accumulator> {
+    /**
+     * Creates new accumulator, to be used from a single thread.
+     */
+    A createAccumulator();
 
-    void put(VDJCAlignments alignments);
+    /**
+     * Adds data from accumulator to this collector. Invoked from a single thread.
+     */
+    void merge(A accumulator);
 
     void end();
+
+    void writeResult(PrintStream writer);
+
+    interface Accumulator {
+        void put(AlignmentInfo alignment);
+    }
 }
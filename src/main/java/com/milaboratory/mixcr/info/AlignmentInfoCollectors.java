@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.info;
+
+import io.repseq.core.GeneFeature;
+import io.repseq.core.GeneType;
+import io.repseq.core.ReferencePoint;
+
+import java.util.*;
+
+import static io.repseq.core.GeneFeature.*;
+import static io.repseq.core.ReferencePoint.*;
+
+/**
+ * Registry of named sets of {@link AlignmentInfoCollector}s available from the alignmentsStat action. Additional
+ * sets can be registered with {@link #register(String, Factory)}.
+ */
+public final class AlignmentInfoCollectors {
+    private AlignmentInfoCollectors() {
+    }
+
+    public static final String DEFAULT = "coverage";
+
+    private static final Map<String, Factory> factories = new LinkedHashMap<>();
+
+    public interface Factory {
+        List<AlignmentInfoCollector<?>> create();
+    }
+
+    public static synchronized void register(String name, Factory factory) {
+        if (factories.containsKey(name))
+            throw new IllegalArgumentException("Collector with the same name already registered: " + name);
+        factories.put(name, factory);
+    }
+
+    public static synchronized Set<String> getNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(factories.keySet()));
+    }
+
+    public static synchronized List<AlignmentInfoCollector<?>> create(String name) {
+        Factory factory = factories.get(name);
+        if (factory == null)
+            throw new IllegalArgumentException("Unknown collector: " + name + "; available: " + factories.keySet());
+        return factory.create();
+    }
+
+    private static final GeneFeature[] targetFeatures = {
+            V5UTR,
+            new GeneFeature(L1Begin, -20, 0),
+            L1, VIntron, L2, FR1, CDR1, FR2, CDR2, FR3, CDR3, FR4,
+            new GeneFeature(FR4, 0, -3)
+    };
+
+    private static final ReferencePoint[] targetReferencePoints = {
+            L1Begin, L1End, L2Begin, FR1Begin, CDR1Begin, FR2Begin, CDR2Begin, FR3Begin, CDR3Begin,
+            FR4Begin, FR4End
+    };
+
+    static {
+        register(DEFAULT, new Factory() {
+            @Override
+            public List<AlignmentInfoCollector<?>> create() {
+                List<AlignmentInfoCollector<?>> collectors = new ArrayList<>();
+                for (GeneFeature targetFeature : targetFeatures)
+                    collectors.add(new GeneFeatureCoverageCollector(targetFeature));
+                for (ReferencePoint targetReferencePoint : targetReferencePoints)
+                    collectors.add(new ReferencePointCoverageCollector(targetReferencePoint, 40, 40));
+                return collectors;
+            }
+        });
+        register("geneUsage", new Factory() {
+            @Override
+            public List<AlignmentInfoCollector<?>> create() {
+                List<AlignmentInfoCollector<?>> collectors = new ArrayList<>();
+                for (GeneType geneType : GeneType.VDJC_REFERENCE)
+                    collectors.add(new GeneUsageCollector(geneType));
+                return collectors;
+            }
+        });
+        register("cdr3Length", new Factory() {
+            @Override
+            public List<AlignmentInfoCollector<?>> create() {
+                return Collections.<AlignmentInfoCollector<?>>singletonList(
+                        new FeatureHistogramCollector(CDR3, FeatureHistogramCollector.Property.Length, 150));
+            }
+        });
+        register("cdr3Quality", new Factory() {
+            @Override
+            public List<AlignmentInfoCollector<?>> create() {
+                return Arrays.<AlignmentInfoCollector<?>>asList(
+                        new FeatureHistogramCollector(CDR3, FeatureHistogramCollector.Property.MinQuality, 50),
+                        new FeatureHistogramCollector(CDR3, FeatureHistogramCollector.Property.MeanQuality, 50));
+            }
+        });
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.info;
+
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.mixcr.cli.Util;
+import io.repseq.core.GeneFeature;
+
+import java.io.PrintStream;
+
+/**
+ * Collects histogram of some integer property (e.g. length or quality) of a gene feature. Values greater than the
+ * threshold are counted in the last bin.
+ */
+public class FeatureHistogramCollector implements AlignmentInfoCollector<FeatureHistogramCollector.Histogram> {
+    final GeneFeature feature;
+    final Property property;
+    final long[] hist;
+    long total, notCovered;
+
+    public FeatureHistogramCollector(GeneFeature feature, Property property, int threshold) {
+        this.feature = feature;
+        this.property = property;
+        this.hist = new long[threshold + 1];
+    }
+
+    @Override
+    public Histogram createAccumulator() {
+        return new Histogram();
+    }
+
+    @Override
+    public void merge(Histogram accumulator) {
+        total += accumulator.total;
+        notCovered += accumulator.notCovered;
+        for (int i = 0; i < hist.length; ++i)
+            hist[i] += accumulator.hist[i];
+    }
+
+    @Override
+    public void end() {
+    }
+
+    @Override
+    public void writeResult(PrintStream writer) {
+        writer.println();
+        writer.println(property.title + " of " + GeneFeature.encode(feature) + ":");
+        for (int i = 0; i < hist.length; ++i)
+            if (hist[i] != 0)
+                writer.println((i == hist.length - 1 ? ">=" : "") + i + "\t" + hist[i] + "\t" +
+                        Util.PERCENT_FORMAT.format(100.0 * hist[i] / total) + "%");
+        writer.println("not covered\t" + notCovered + "\t" + Util.PERCENT_FORMAT.format(100.0 * notCovered / total) + "%");
+    }
+
+    public enum Property {
+        Length("Length") {
+            @Override
+            int get(NSequenceWithQuality feature) {
+                return feature.size();
+            }
+        },
+        MinQuality("Minimal quality") {
+            @Override
+            int get(NSequenceWithQuality feature) {
+                return feature.getQuality().minValue();
+            }
+        },
+        MeanQuality("Mean quality") {
+            @Override
+            int get(NSequenceWithQuality feature) {
+                return (int) feature.getQuality().meanValue();
+            }
+        };
+
+        final String title;
+
+        Property(String title) {
+            this.title = title;
+        }
+
+        abstract int get(NSequenceWithQuality feature);
+    }
+
+    final class Histogram implements Accumulator {
+        final long[] hist = new long[FeatureHistogramCollector.this.hist.length];
+        long total, notCovered;
+
+        @Override
+        public void put(AlignmentInfo alignment) {
+            ++total;
+            NSequenceWithQuality value = alignment.getFeature(feature);
+            if (value == null) {
+                ++notCovered;
+                return;
+            }
+            hist[Math.max(0, Math.min(hist.length - 1, property.get(value)))]++;
+        }
+    }
+}
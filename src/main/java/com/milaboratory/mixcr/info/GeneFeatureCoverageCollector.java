@@ -28,19 +28,16 @@
  */
 package com.milaboratory.mixcr.info;
 
-import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.cli.Util;
 import io.repseq.core.GeneFeature;
 
 import java.io.PrintStream;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by dbolotin on 04/08/15.
  */
-public class GeneFeatureCoverageCollector implements AlignmentInfoCollector {
-    final AtomicLong total = new AtomicLong(),
-            covered = new AtomicLong();
+public class GeneFeatureCoverageCollector implements AlignmentInfoCollector<GeneFeatureCoverageCollector.Counter> {
+    long total, covered;
     final GeneFeature feature;
 
     public GeneFeatureCoverageCollector(GeneFeature feature) {
@@ -48,19 +45,34 @@ public class GeneFeatureCoverageCollector implements AlignmentInfoCollector {
     }
 
     @Override
-    public void writeResult(PrintStream writer) {
-        writer.println("" + GeneFeature.encode(feature) + "\t" + covered.get() +
-                "\t" + Util.PERCENT_FORMAT.format(100.0 * covered.get() / total.get()) + "%");
+    public Counter createAccumulator() {
+        return new Counter();
+    }
+
+    @Override
+    public void merge(Counter accumulator) {
+        total += accumulator.total;
+        covered += accumulator.covered;
     }
 
     @Override
-    public void put(VDJCAlignments alignments) {
-        total.incrementAndGet();
-        if (alignments.getFeature(feature) != null)
-            covered.incrementAndGet();
+    public void writeResult(PrintStream writer) {
+        writer.println("" + GeneFeature.encode(feature) + "\t" + covered +
+                "\t" + Util.PERCENT_FORMAT.format(100.0 * covered / total) + "%");
     }
 
     @Override
     public void end() {
     }
+
+    final class Counter implements Accumulator {
+        long total, covered;
+
+        @Override
+        public void put(AlignmentInfo alignment) {
+            ++total;
+            if (alignment.getFeature(feature) != null)
+                ++covered;
+        }
+    }
 }
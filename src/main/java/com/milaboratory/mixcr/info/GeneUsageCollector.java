@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.info;
+
+import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.mixcr.cli.Util;
+import gnu.trove.iterator.TObjectLongIterator;
+import gnu.trove.map.hash.TObjectLongHashMap;
+import io.repseq.core.GeneType;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects usage of best-hit genes of a given type.
+ */
+public class GeneUsageCollector implements AlignmentInfoCollector<GeneUsageCollector.Counter> {
+    final GeneType geneType;
+    final TObjectLongHashMap<String> counts = new TObjectLongHashMap<>();
+    long total, notAligned;
+
+    public GeneUsageCollector(GeneType geneType) {
+        this.geneType = geneType;
+    }
+
+    @Override
+    public Counter createAccumulator() {
+        return new Counter();
+    }
+
+    @Override
+    public void merge(Counter accumulator) {
+        total += accumulator.total;
+        notAligned += accumulator.notAligned;
+        TObjectLongIterator<String> it = accumulator.counts.iterator();
+        while (it.hasNext()) {
+            it.advance();
+            counts.adjustOrPutValue(it.key(), it.value(), it.value());
+        }
+    }
+
+    @Override
+    public void end() {
+    }
+
+    @Override
+    public void writeResult(PrintStream writer) {
+        writer.println();
+        writer.println(geneType + " gene usage:");
+        List<String> genes = new ArrayList<>(counts.keySet());
+        Collections.sort(genes);
+        for (String gene : genes)
+            writer.println(gene + "\t" + counts.get(gene) + "\t" + Util.PERCENT_FORMAT.format(100.0 * counts.get(gene) / total) + "%");
+        writer.println("not aligned\t" + notAligned + "\t" + Util.PERCENT_FORMAT.format(100.0 * notAligned / total) + "%");
+    }
+
+    final class Counter implements Accumulator {
+        final TObjectLongHashMap<String> counts = new TObjectLongHashMap<>();
+        long total, notAligned;
+
+        @Override
+        public void put(AlignmentInfo alignment) {
+            ++total;
+            VDJCHit hit = alignment.getBestHit(geneType);
+            if (hit == null)
+                ++notAligned;
+            else
+                counts.adjustOrPutValue(hit.getGene().getName(), 1, 1);
+        }
+    }
+}
@@ -35,60 +35,50 @@ import com.milaboratory.mixcr.cli.Util;
 import io.repseq.core.ReferencePoint;
 
 import java.io.PrintStream;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Created by dbolotin on 04/08/15.
  */
-public class ReferencePointCoverageCollector implements AlignmentInfoCollector {
+public class ReferencePointCoverageCollector implements AlignmentInfoCollector<ReferencePointCoverageCollector.Histogram> {
     final ReferencePoint refPoint;
-    final AtomicLong totalCount = new AtomicLong();
-    final AtomicLongArray leftHist, rightHist;
+    final int leftThreshold, rightThreshold;
+    long totalCount;
+    final long[] leftHist, rightHist;
 
     public ReferencePointCoverageCollector(ReferencePoint refPoint, int leftThreshold, int rightThreshold) {
         if (refPoint.isAttachedToAlignmentBound())
             throw new IllegalArgumentException();
 
         this.refPoint = refPoint;
+        this.leftThreshold = leftThreshold;
+        this.rightThreshold = rightThreshold;
 
-        this.leftHist = new AtomicLongArray(leftThreshold);
-        this.rightHist = new AtomicLongArray(rightThreshold);
+        this.leftHist = new long[leftThreshold];
+        this.rightHist = new long[rightThreshold];
     }
 
     @Override
-    public void writeResult(PrintStream writer) {
-        writer.println();
-        writer.println("Coverage of " + refPoint + ":");
-        for (int i = leftHist.length() - 1; i > 0; --i)
-            writer.println("-" + i + "\t" + leftHist.get(i) + "\t" + Util.PERCENT_FORMAT.format(100.0 * leftHist.get(i) / totalCount.get()) + "%");
-        for (int i = 0; i < rightHist.length(); ++i)
-            writer.println(i + "\t" + rightHist.get(i) + "\t" + Util.PERCENT_FORMAT.format(100.0 * rightHist.get(i) / totalCount.get()) + "%");
+    public Histogram createAccumulator() {
+        return new Histogram();
     }
 
     @Override
-    public void put(VDJCAlignments alignments) {
-        totalCount.incrementAndGet();
-
-        VDJCHit hit = alignments.getBestHit(refPoint.getGeneType());
-
-        int left = -1, right = -1;
-        for (int i = 0; i < alignments.numberOfTargets(); ++i) {
-            int position = hit.getPosition(i, refPoint);
-            if (position == -1)
-                continue;
-            Range alignmentRange = hit.getAlignment(i).getSequence2Range();
-            left = Math.max(position - alignmentRange.getLower(), left);
-            right = Math.max(alignmentRange.getUpper() - position, right);
-        }
-
-        if (left == -1)
-            return;
+    public void merge(Histogram accumulator) {
+        totalCount += accumulator.totalCount;
+        for (int i = 0; i < leftHist.length; ++i)
+            leftHist[i] += accumulator.leftHist[i];
+        for (int i = 0; i < rightHist.length; ++i)
+            rightHist[i] += accumulator.rightHist[i];
+    }
 
-        left = Math.min(leftHist.length() - 1, left);
-        leftHist.incrementAndGet(left);
-        right = Math.min(rightHist.length() - 1, right);
-        rightHist.incrementAndGet(right);
+    @Override
+    public void writeResult(PrintStream writer) {
+        writer.println();
+        writer.println("Coverage of " + refPoint + ":");
+        for (int i = leftHist.length - 1; i > 0; --i)
+            writer.println("-" + i + "\t" + leftHist[i] + "\t" + Util.PERCENT_FORMAT.format(100.0 * leftHist[i] / totalCount) + "%");
+        for (int i = 0; i < rightHist.length; ++i)
+            writer.println(i + "\t" + rightHist[i] + "\t" + Util.PERCENT_FORMAT.format(100.0 * rightHist[i] / totalCount) + "%");
     }
 
     @Override
@@ -97,9 +87,42 @@ public class ReferencePointCoverageCollector implements AlignmentInfoCollector {
         endHist(rightHist);
     }
 
-    private static void endHist(AtomicLongArray hist) {
+    private static void endHist(long[] hist) {
         long cumulative = 0;
-        for (int i = hist.length() - 1; i >= 0; --i)
-            hist.set(i, cumulative += hist.get(i));
+        for (int i = hist.length - 1; i >= 0; --i)
+            hist[i] = cumulative += hist[i];
+    }
+
+    final class Histogram implements Accumulator {
+        long totalCount;
+        final long[] leftHist = new long[leftThreshold], rightHist = new long[rightThreshold];
+
+        @Override
+        public void put(AlignmentInfo alignment) {
+            ++totalCount;
+
+            VDJCHit hit = alignment.getBestHit(refPoint.getGeneType());
+            if (hit == null)
+                return;
+
+            VDJCAlignments alignments = alignment.getAlignments();
+            int left = -1, right = -1;
+            for (int i = 0; i < alignments.numberOfTargets(); ++i) {
+                int position = hit.getPosition(i, refPoint);
+                if (position == -1)
+                    continue;
+                Range alignmentRange = hit.getAlignment(i).getSequence2Range();
+                left = Math.max(position - alignmentRange.getLower(), left);
+                right = Math.max(alignmentRange.getUpper() - position, right);
+            }
+
+            if (left == -1)
+                return;
+
+            left = Math.min(leftHist.length - 1, left);
+            leftHist[left]++;
+            right = Math.min(rightHist.length - 1, right);
+            rightHist[right]++;
+        }
     }
 }
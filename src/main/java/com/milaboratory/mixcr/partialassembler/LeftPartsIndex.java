@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.partialassembler;
+
+import com.milaboratory.core.sequence.NucleotideSequence;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import io.repseq.core.Chains;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact index of left parts used by {@link PartialAlignmentsAssembler}.
+ *
+ * <p>Only information required to search for overlaps is stored for each left part (k-mer position, target id, chains
+ * of V hits and 2-bit packed sequence of the target) in primitive arrays. Entries with the same k-mer form a linked
+ * list in the order of addition. Left part alignments themselves are not stored.</p>
+ *
+ * <p>Index is filled from a single thread, after that all read methods can be used concurrently.</p>
+ */
+final class LeftPartsIndex {
+    private static final int NO_ENTRY = -1;
+    // k-mer -> first / last entry with this k-mer
+    private final TLongIntHashMap firstEntry = new TLongIntHashMap(16, 0.5f, -1L, NO_ENTRY);
+    private TLongIntHashMap lastEntry = new TLongIntHashMap(16, 0.5f, -1L, NO_ENTRY);
+    // Entries
+    private final TLongArrayList alignmentIds = new TLongArrayList();
+    private final TIntArrayList kMerPositions = new TIntArrayList();
+    private final TByteArrayList targetIds = new TByteArrayList();
+    private final TIntArrayList chainsIds = new TIntArrayList();
+    private final TIntArrayList nextEntry = new TIntArrayList();
+    // Offset of the sequence in packed storage (in nucleotides), -1 for sequences with wildcards
+    private final TLongArrayList sequenceOffsets = new TLongArrayList();
+    private final TIntArrayList sequenceLengths = new TIntArrayList();
+    // 2-bit packed sequences, 32 nucleotides per long
+    private final TLongArrayList packedSequences = new TLongArrayList();
+    private long packedSize = 0;
+    // Distinct chains of V hits
+    private final List<Chains> chains = new ArrayList<>();
+    private final HashMap<Chains, Integer> chainsIndex = new HashMap<>();
+    // Left parts used in overlaps
+    private final BitSet claimed = new BitSet();
+
+    /**
+     * Adds left part to index. Left parts must be added in ascending order of alignment indices.
+     */
+    void add(long kMer, long alignmentsIndex, int kMerPosition, int targetId, Chains vChains,
+             NucleotideSequence sequence) {
+        int size = alignmentIds.size();
+        if (size != 0 && alignmentIds.get(size - 1) >= alignmentsIndex)
+            throw new IllegalArgumentException("Left parts must be added in the order of alignment indices.");
+
+        alignmentIds.add(alignmentsIndex);
+        kMerPositions.add(kMerPosition);
+        targetIds.add((byte) targetId);
+        chainsIds.add(chainsId(vChains));
+        nextEntry.add(NO_ENTRY);
+        sequenceLengths.add(sequence.size());
+        sequenceOffsets.add(pack(sequence));
+
+        int last = lastEntry.get(kMer);
+        if (last == NO_ENTRY)
+            firstEntry.put(kMer, size);
+        else
+            nextEntry.set(last, size);
+        lastEntry.put(kMer, size);
+    }
+
+    /**
+     * Releases memory used only while filling the index.
+     */
+    void seal() {
+        lastEntry = null;
+        alignmentIds.trimToSize();
+        kMerPositions.trimToSize();
+        targetIds.trimToSize();
+        chainsIds.trimToSize();
+        nextEntry.trimToSize();
+        sequenceOffsets.trimToSize();
+        sequenceLengths.trimToSize();
+        packedSequences.trimToSize();
+    }
+
+    private int chainsId(Chains c) {
+        Integer id = chainsIndex.get(c);
+        if (id == null) {
+            chainsIndex.put(c, id = chains.size());
+            chains.add(c);
+        }
+        return id;
+    }
+
+    private long pack(NucleotideSequence sequence) {
+        for (int i = 0; i < sequence.size(); i++)
+            if (NucleotideSequence.ALPHABET.isWildcard(sequence.codeAt(i)))
+                return -1;
+
+        long offset = packedSize;
+        for (int i = 0; i < sequence.size(); i++, packedSize++) {
+            int word = (int) (packedSize >>> 5);
+            if (word == packedSequences.size())
+                packedSequences.add(0);
+            packedSequences.set(word, packedSequences.get(word) | ((long) sequence.codeAt(i)) << ((packedSize & 31) << 1));
+        }
+        return offset;
+    }
+
+    int size() {
+        return alignmentIds.size();
+    }
+
+    /**
+     * Returns first entry with specified k-mer, or -1 if there are no such entries
+     */
+    int first(long kMer) {
+        return firstEntry.get(kMer);
+    }
+
+    /**
+     * Returns next entry with the same k-mer, or -1 if this is the last one
+     */
+    int next(int entry) {
+        return nextEntry.get(entry);
+    }
+
+    boolean containsAlignment(long alignmentsIndex) {
+        return alignmentIds.binarySearch(alignmentsIndex) >= 0;
+    }
+
+    long getAlignmentsIndex(int entry) {
+        return alignmentIds.get(entry);
+    }
+
+    int getKMerPosition(int entry) {
+        return kMerPositions.get(entry);
+    }
+
+    int getTargetId(int entry) {
+        return targetIds.get(entry);
+    }
+
+    Chains getVChains(int entry) {
+        return chains.get(chainsIds.get(entry));
+    }
+
+    /**
+     * Returns false if sequence of the target contains wildcards and was not stored in the index
+     */
+    boolean hasSequence(int entry) {
+        return sequenceOffsets.get(entry) != -1;
+    }
+
+    int getSequenceLength(int entry) {
+        return sequenceLengths.get(entry);
+    }
+
+    byte codeAt(int entry, int position) {
+        long p = sequenceOffsets.get(entry) + position;
+        return (byte) ((packedSequences.get((int) (p >>> 5)) >>> ((p & 31) << 1)) & 3);
+    }
+
+    synchronized boolean claim(int entry) {
+        if (claimed.get(entry))
+            return false;
+        claimed.set(entry);
+        return true;
+    }
+
+    synchronized boolean isClaimed(int entry) {
+        return claimed.get(entry);
+    }
+}
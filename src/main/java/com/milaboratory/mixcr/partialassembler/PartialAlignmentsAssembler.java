@@ -29,8 +29,14 @@
 package com.milaboratory.mixcr.partialassembler;
 
 import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
+import cc.redberry.pipe.blocks.ParallelProcessor;
+import cc.redberry.pipe.util.Indexer;
+import cc.redberry.pipe.util.OrderedOutputPort;
 import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.basictypes.RandomAccessVDJCAReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
@@ -38,20 +44,34 @@ import com.milaboratory.mixcr.basictypes.VDJCPartitionedSequence;
 import com.milaboratory.mixcr.cli.ReportHelper;
 import com.milaboratory.mixcr.cli.ReportWriter;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongObjectHashMap;
-import gnu.trove.set.hash.TLongHashSet;
 import io.repseq.core.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static cc.redberry.pipe.CUtils.chunked;
+import static cc.redberry.pipe.CUtils.unchunked;
 import static com.milaboratory.mixcr.vdjaligners.VDJCAlignerWithMerge.getMMDescr;
 
 public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
-    final TLongObjectHashMap<List<KMerInfo>> kToIndexLeft = new TLongObjectHashMap<>();
-    final TLongHashSet leftPartsIds = new TLongHashSet();
+    final LeftPartsIndex leftIndex = new LeftPartsIndex();
+    // Left part alignments, used if random access to input file is not available
+    final TLongObjectHashMap<VDJCAlignments> leftAlignments = new TLongObjectHashMap<>();
+    // Source of left part alignments
+    RandomAccessVDJCAReader leftPartsSource;
+    // If false left part alignments are read from leftPartsSource
+    boolean storeLeftAlignments = true;
+    boolean headerWritten = false;
+    // Assembler of the next overlap round, its left parts index is built from output of this assembler
+    PartialAlignmentsAssembler nextRound;
+    // Number of alignments written to output
+    long outputCounter = 0;
     final VDJCAlignmentsWriter writer;
     final int kValue;
     final int kOffset;
@@ -85,79 +105,200 @@ public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
         this(params, new VDJCAlignmentsWriter(output), writePartial, overlappedOnly);
     }
 
+    /**
+     * Builds index of left parts keeping left part alignments in memory.
+     */
     public void buildLeftPartsIndex(VDJCAlignmentsReader reader) {
-        writer.header(reader.getParameters(), reader.getUsedGenes());
+        buildLeftPartsIndex(reader, null);
+    }
+
+    /**
+     * Builds compact index of left parts. Left part alignments are not kept in memory and are read on demand from the
+     * leftPartsSource (random access reader for the same file as reader).
+     */
+    public void buildLeftPartsIndex(VDJCAlignmentsReader reader, RandomAccessVDJCAReader leftPartsSource) {
+        this.leftPartsSource = leftPartsSource;
+        this.storeLeftAlignments = leftPartsSource == null;
+        writeHeader(reader);
         for (VDJCAlignments alignment : CUtils.it(reader)) {
             if (alignment.getFeature(GeneFeature.CDR3) != null)
                 continue;
-            addLeftToIndex(alignment);
+            addLeftToIndex(alignment, alignment.getAlignmentsIndex());
         }
+        leftIndex.seal();
+    }
+
+    /**
+     * Sets this assembler as the next overlap round for previousRound. Left parts index of this assembler will be
+     * filled with alignments written by previousRound, so no separate pass over the output of previous round is
+     * needed.
+     *
+     * @param previousRound        assembler of previous round; its output is the input of this assembler
+     * @param storeLeftAlignments  if false, left part alignments are not kept in memory, and random access reader for
+     *                             the output of previous round must be set with {@link #setLeftPartsSource(RandomAccessVDJCAReader)}
+     *                             before {@link #searchOverlaps(VDJCAlignmentsReader, int)}
+     */
+    public void buildLeftPartsIndexFrom(PartialAlignmentsAssembler previousRound, boolean storeLeftAlignments) {
+        if (previousRound.outputCounter != 0)
+            throw new IllegalStateException("Previous round already started.");
+        this.storeLeftAlignments = storeLeftAlignments;
+        previousRound.nextRound = this;
+    }
+
+    public void setLeftPartsSource(RandomAccessVDJCAReader leftPartsSource) {
+        this.leftPartsSource = leftPartsSource;
+    }
+
+    private void writeHeader(VDJCAlignmentsReader reader) {
+        if (headerWritten)
+            return;
+        writer.header(reader.getParameters(), reader.getUsedGenes());
+        headerWritten = true;
+    }
+
+    private void write(VDJCAlignments alignment) {
+        writer.write(alignment);
+        if (nextRound != null && alignment.getFeature(GeneFeature.CDR3) == null)
+            nextRound.addLeftToIndex(alignment, outputCounter);
+        ++outputCounter;
+    }
+
+    private VDJCAlignments getLeftAlignments(int entry) {
+        long alignmentsIndex = leftIndex.getAlignmentsIndex(entry);
+        if (storeLeftAlignments)
+            return leftAlignments.get(alignmentsIndex);
+        VDJCAlignments alignments = leftPartsSource.get(alignmentsIndex);
+        assert alignments.getAlignmentsIndex() == alignmentsIndex;
+        return alignments;
     }
 
     public void searchOverlaps(VDJCAlignmentsReader reader) {
+        searchOverlaps(reader, 1);
+    }
+
+    /**
+     * Searches overlaps for right parts using several threads.
+     *
+     * Overlap candidates are searched for all alignments in parallel, then left parts are claimed by right parts
+     * strictly in the order of input alignments (each right part takes the best not yet claimed candidate; ties are
+     * resolved by the order of k-mer scan, so the result is exactly the same as for single-threaded processing), and
+     * finally claimed pairs are merged and aligned in parallel. Output is written in the order of input alignments.
+     */
+    @SuppressWarnings("unchecked")
+    public void searchOverlaps(VDJCAlignmentsReader reader, int threads) {
+        writeHeader(reader);
+        leftIndex.seal();
         final VDJCAlignerParameters alignerParameters = reader.getParameters();
-        PartialAlignmentsAssemblerAligner aligner = new PartialAlignmentsAssemblerAligner(alignerParameters);
+        final PartialAlignmentsAssemblerAligner aligner = new PartialAlignmentsAssemblerAligner(alignerParameters);
         targetMerger.setAlignerParameters(alignerParameters);
         for (VDJCGene gene : reader.getUsedGenes())
             aligner.addGene(gene);
+        final boolean allowChimeras = alignerParameters.isAllowChimeras();
+
+        // Searching for overlap candidates
+        OutputPort<OverlapTask> tasks = CUtils.buffered((OutputPort) chunked(new OverlapTasksPort(reader), 64), 16);
+        OutputPort<OverlapTask> searched = unchunked(new ParallelProcessor(tasks, chunked(new Processor<OverlapTask, OverlapTask>() {
+            @Override
+            public OverlapTask process(OverlapTask task) {
+                if (!leftIndex.containsAlignment(task.alignment.getAlignmentsIndex())
+                        && task.alignment.getFeature(GeneFeature.CDR3) == null)
+                    searchOverlapCandidates(task, allowChimeras);
+                return task;
+            }
+        }), threads));
+
+        // Claiming left parts (sequential) and merging (parallel)
+        OutputPort<OverlapTask> claimed = CUtils.buffered((OutputPort) chunked(new ClaimingPort(
+                new OrderedOutputPort<>(searched, TASK_INDEXER)), 64), 16);
+        OutputPort<OverlapTask> merged = unchunked(new ParallelProcessor(claimed, chunked(new Processor<OverlapTask, OverlapTask>() {
+            @Override
+            public OverlapTask process(OverlapTask task) {
+                if (task.claimed != null) {
+                    VDJCMultiRead mRead = mergeOverlap(task);
+                    final VDJCAlignments al = aligner.process(mRead).alignment;
+                    String[] descriptions = new String[mRead.numberOfReads()];
+                    for (int i = 0; i < mRead.numberOfReads(); i++)
+                        descriptions[i] = mRead.getRead(i).getDescription();
+                    al.setTargetDescriptions(descriptions);
+                    task.result = al;
+                }
+                return task;
+            }
+        }), threads));
 
-        for (VDJCAlignments alignment : CUtils.it(reader)) {
+        for (OverlapTask task : CUtils.it(new OrderedOutputPort<>(merged, TASK_INDEXER))) {
             total.incrementAndGet();
+            VDJCAlignments alignment = task.alignment;
 
-            if (leftPartsIds.contains(alignment.getAlignmentsIndex()))
+            if (leftIndex.containsAlignment(alignment.getAlignmentsIndex()))
                 continue;
 
             if (alignment.getFeature(GeneFeature.CDR3) != null) {
                 containsCDR3.incrementAndGet();
                 if (!overlappedOnly) {
                     totalWritten.incrementAndGet();
-                    writer.write(alignment);
+                    write(alignment);
                 }
                 continue;
             }
 
-            VDJCMultiRead mRead = searchOverlaps(alignment, alignerParameters.isAllowChimeras());
-            if (mRead == null) {
+            if (task.result == null) {
                 if (writePartial && !overlappedOnly) {
                     totalWritten.incrementAndGet();
                     partialAsIs.incrementAndGet();
-                    writer.write(alignment);
+                    write(alignment);
                 }
                 continue;
             }
 
-            final VDJCAlignments al = aligner.process(mRead).alignment;
-
             overlapped.incrementAndGet();
-            String[] descriptions = new String[mRead.numberOfReads()];
-            for (int i = 0; i < mRead.numberOfReads(); i++)
-                descriptions[i] = mRead.getRead(i).getDescription();
-            al.setTargetDescriptions(descriptions);
             totalWritten.incrementAndGet();
-            writer.write(al);
+            write(task.result);
         }
 
         if (writePartial && !overlappedOnly)
-            for (List<KMerInfo> kMerInfos : kToIndexLeft.valueCollection())
-                for (KMerInfo kMerInfo : kMerInfos) {
-                    totalWritten.incrementAndGet();
-                    partialAsIs.incrementAndGet();
-                    writer.write(kMerInfo.getAlignments());
-                }
+            for (VDJCAlignments alignment : CUtils.it(unclaimedLeftAlignments(threads))) {
+                totalWritten.incrementAndGet();
+                partialAsIs.incrementAndGet();
+                write(alignment);
+            }
 
         writer.setNumberOfProcessedReads(reader.getNumberOfReads() - overlapped.get());
+        if (nextRound != null)
+            nextRound.leftIndex.seal();
     }
 
-    @SuppressWarnings("unchecked")
-    private VDJCMultiRead searchOverlaps(final VDJCAlignments rightAl,
-                                         final boolean allowChimeras) {
+    /**
+     * Returns left parts not used in overlaps in ascending order of alignment indices (left parts stored in file are
+     * streamed block by block)
+     */
+    private OutputPort<VDJCAlignments> unclaimedLeftAlignments(int threads) {
+        TLongArrayList indices = new TLongArrayList();
+        for (int entry = 0; entry < leftIndex.size(); entry++)
+            if (!leftIndex.isClaimed(entry))
+                indices.add(leftIndex.getAlignmentsIndex(entry));
+        if (!storeLeftAlignments)
+            return leftPartsSource.createPort(indices.toArray(), threads);
+        List<VDJCAlignments> alignments = new ArrayList<>(indices.size());
+        for (int i = 0; i < indices.size(); i++)
+            alignments.add(leftAlignments.get(indices.get(i)));
+        return CUtils.asOutputPort(alignments);
+    }
+
+    /**
+     * Fills the list of candidate left parts for the right part (if alignment is a right part), sorted from the best
+     * to the worst candidate
+     */
+    private void searchOverlapCandidates(final OverlapTask task, final boolean allowChimeras) {
+        final VDJCAlignments rightAl = task.alignment;
         final Chains jChains = rightAl.getAllChains(GeneType.Joining);
 
         int rightTargetId = getRightPartitionedSequence(rightAl);
         if (rightTargetId == -1)
-            return null;
+            return;
 
         rightParts.incrementAndGet();
+        task.rightTargetId = rightTargetId;
 
         final VDJCPartitionedSequence rightTarget = rightAl.getPartitionedTarget(rightTargetId);
         NSequenceWithQuality rightSeqQ = rightTarget.getSequence();
@@ -168,64 +309,81 @@ public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
 
         stop -= kOffset;
 
-        int maxOverlap = -1;
-        int maxDelta = -1;
-        int maxOverlapIndexInList = -1;
-        List<KMerInfo> maxOverlapList = null;
+        List<OverlapCandidate> candidates = null;
         for (int rFrom = 0; rFrom < stop && rFrom + kValue < rightSeqQ.size(); rFrom++) {
             long kMer = kMer(rightSeqQ.getSequence(), rFrom, kValue);
-            List<KMerInfo> match = kToIndexLeft.get(kMer);
-            if (match == null)
-                continue;
-
-            out:
-            for (int i = 0; i < match.size(); i++) {
-                final VDJCAlignments leftAl = match.get(i).getAlignments();
 
+            for (int entry = leftIndex.first(kMer); entry != -1; entry = leftIndex.next(entry)) {
                 // Checking chains compatibility
-                if (!allowChimeras && !leftAl.getAllChains(GeneType.Variable).intersects(jChains))
+                if (!allowChimeras && !leftIndex.getVChains(entry).intersects(jChains))
                     continue;
 
-                final NucleotideSequence leftSeq = leftAl.getPartitionedTarget(getLeftPartitionedSequence(leftAl))
-                        .getSequence().getSequence();
-                int lFrom = match.get(i).kMerPositionFrom;
+                // Left sequence is compared with the packed copy stored in the index (leftSeq == null); only sequences
+                // with wildcards are not stored in the index, so they are taken from the left part alignments
+                final NucleotideSequence leftSeq = leftIndex.hasSequence(entry) ? null :
+                        getLeftAlignments(entry).getPartitionedTarget(leftIndex.getTargetId(entry))
+                                .getSequence().getSequence();
+                final int leftSize = leftSeq == null ? leftIndex.getSequenceLength(entry) : leftSeq.size();
+                int lFrom = leftIndex.getKMerPosition(entry);
 
                 int delta, begin = delta = lFrom - rFrom;
                 if (begin < 0)
                     begin = 0;
-                int end = leftSeq.size();
+                int end = leftSize;
                 if (end - delta >= rightSeq.size())
                     end = rightSeq.size() + delta;
 
-                for (int j = begin; j < end; j++)
-                    if (leftSeq.codeAt(j) != rightSeq.codeAt(j - delta))
-                        continue out;
+                if (!matches(entry, leftSeq, rightSeq, begin, end, delta))
+                    continue;
 
                 int overlap = end - begin;
-                if (maxOverlap < overlap) {
-                    maxOverlap = overlap;
-                    maxOverlapList = match;
-                    maxOverlapIndexInList = i;
-                    maxDelta = delta;
-                }
+                if (overlap < minimalVJJunctionOverlap)
+                    continue;
+
+                if (candidates == null)
+                    candidates = new ArrayList<>(1);
+                candidates.add(new OverlapCandidate(entry, overlap, delta));
             }
         }
 
-        if (maxOverlapList == null)
-            return null;
+        if (candidates == null)
+            return;
 
-        if (maxOverlap < minimalVJJunctionOverlap)
-            return null;
+        // Stable sort, so candidates with the same overlap are ordered as they were found during k-mer scan
+        if (candidates.size() > 1)
+            Collections.sort(candidates, CANDIDATES_COMPARATOR);
+        task.candidates = candidates;
+    }
+
+    private boolean matches(int entry, NucleotideSequence leftSeq, NucleotideSequence rightSeq,
+                            int begin, int end, int delta) {
+        if (leftSeq == null) {
+            for (int j = begin; j < end; j++)
+                if (leftIndex.codeAt(entry, j) != rightSeq.codeAt(j - delta))
+                    return false;
+        } else
+            for (int j = begin; j < end; j++)
+                if (leftSeq.codeAt(j) != rightSeq.codeAt(j - delta))
+                    return false;
+        return true;
+    }
 
-        KMerInfo left = maxOverlapList.remove(maxOverlapIndexInList);
-        VDJCAlignments leftAl = left.alignments;
+    @SuppressWarnings("unchecked")
+    private VDJCMultiRead mergeOverlap(final OverlapTask task) {
+        final VDJCAlignments rightAl = task.alignment;
+        final int rightTargetId = task.rightTargetId;
+        final OverlapCandidate candidate = task.claimed;
+        final int maxOverlap = candidate.overlap;
+        final int maxDelta = candidate.delta;
+        final int leftTargetId = leftIndex.getTargetId(candidate.entry);
+        VDJCAlignments leftAl = getLeftAlignments(candidate.entry);
 
         final long readId = rightAl.getReadId();
 
         ArrayList<AlignedTarget> leftTargets = extractAlignedTargets(leftAl, true);
         ArrayList<AlignedTarget> rightTargets = extractAlignedTargets(rightAl, false);
 
-        AlignedTarget leftCentral = leftTargets.get(left.targetId);
+        AlignedTarget leftCentral = leftTargets.get(leftTargetId);
         AlignedTarget rightCentral = rightTargets.get(rightTargetId);
 
         AlignedTarget central = targetMerger.merge(readId, leftCentral, rightCentral, maxDelta)
@@ -234,9 +392,9 @@ public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
         final List<AlignedTarget> leftDescriptors = new ArrayList<>(2),
                 rightDescriptors = new ArrayList<>(2);
 
-        for (int i = 0; i < left.targetId; ++i)
+        for (int i = 0; i < leftTargetId; ++i)
             leftDescriptors.add(leftTargets.get(i));
-        for (int i = left.targetId + 1; i < leftAl.numberOfTargets(); ++i)
+        for (int i = leftTargetId + 1; i < leftAl.numberOfTargets(); ++i)
             rightDescriptors.add(leftTargets.get(i));
         for (int i = 0; i < rightTargetId; ++i)
             leftDescriptors.add(rightTargets.get(i));
@@ -352,7 +510,7 @@ public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
         return -1;
     }
 
-    private void addLeftToIndex(VDJCAlignments alignment) {
+    private void addLeftToIndex(VDJCAlignments alignment, long alignmentsIndex) {
         int leftTargetId = getLeftPartitionedSequence(alignment);
         if (leftTargetId == -1)
             return;
@@ -372,11 +530,10 @@ public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
             return;
         }
 
-        List<KMerInfo> ids = kToIndexLeft.get(kmer);
-        if (ids == null)
-            kToIndexLeft.put(kmer, ids = new ArrayList<>(1));
-        ids.add(new KMerInfo(alignment, kFrom, leftTargetId));
-        leftPartsIds.add(alignment.getAlignmentsIndex());
+        leftIndex.add(kmer, alignmentsIndex, kFrom, leftTargetId,
+                alignment.getAllChains(GeneType.Variable), seq.getSequence());
+        if (storeLeftAlignments)
+            leftAlignments.put(alignmentsIndex, alignment);
         leftParts.incrementAndGet();
     }
 
@@ -391,19 +548,90 @@ public class PartialAlignmentsAssembler implements AutoCloseable, ReportWriter {
         return kmer;
     }
 
-    private static final class KMerInfo {
-        final VDJCAlignments alignments;
-        final int kMerPositionFrom;
-        final int targetId;
+    private static final class OverlapCandidate {
+        // Entry in left parts index
+        final int entry;
+        final int overlap;
+        final int delta;
 
-        public KMerInfo(VDJCAlignments alignments, int kMerPositionFrom, int targetId) {
-            this.alignments = alignments;
-            this.kMerPositionFrom = kMerPositionFrom;
-            this.targetId = targetId;
+        public OverlapCandidate(int entry, int overlap, int delta) {
+            this.entry = entry;
+            this.overlap = overlap;
+            this.delta = delta;
         }
+    }
 
-        public VDJCAlignments getAlignments() {
-            return alignments;
+    private static final Comparator<OverlapCandidate> CANDIDATES_COMPARATOR = new Comparator<OverlapCandidate>() {
+        @Override
+        public int compare(OverlapCandidate o1, OverlapCandidate o2) {
+            return Integer.compare(o2.overlap, o1.overlap);
+        }
+    };
+
+    private static final class OverlapTask {
+        final long index;
+        final VDJCAlignments alignment;
+        int rightTargetId = -1;
+        List<OverlapCandidate> candidates;
+        OverlapCandidate claimed;
+        VDJCAlignments result;
+
+        public OverlapTask(long index, VDJCAlignments alignment) {
+            this.index = index;
+            this.alignment = alignment;
+        }
+    }
+
+    private static final Indexer<OverlapTask> TASK_INDEXER = new Indexer<OverlapTask>() {
+        @Override
+        public long getIndex(OverlapTask o) {
+            return o.index;
+        }
+    };
+
+    /**
+     * Wraps alignments into tasks numbered in the order of input
+     */
+    private static final class OverlapTasksPort implements OutputPort<OverlapTask> {
+        final OutputPort<VDJCAlignments> input;
+        long index = 0;
+
+        public OverlapTasksPort(OutputPort<VDJCAlignments> input) {
+            this.input = input;
+        }
+
+        @Override
+        public synchronized OverlapTask take() {
+            VDJCAlignments alignment = input.take();
+            if (alignment == null)
+                return null;
+            return new OverlapTask(index++, alignment);
+        }
+    }
+
+    /**
+     * Claims left parts for right parts strictly in the order of input alignments
+     */
+    private final class ClaimingPort implements OutputPort<OverlapTask> {
+        final OutputPort<OverlapTask> input;
+
+        public ClaimingPort(OutputPort<OverlapTask> input) {
+            this.input = input;
+        }
+
+        @Override
+        public synchronized OverlapTask take() {
+            OverlapTask task = input.take();
+            if (task == null || task.candidates == null)
+                return task;
+            for (OverlapCandidate candidate : task.candidates)
+                if (leftIndex.claim(candidate.entry)) {
+                    task.claimed = candidate;
+                    break;
+                }
+            // Candidates are not needed anymore
+            task.candidates = null;
+            return task;
         }
     }
 
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.Processor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures number of objects residing in a queue (buffer) between a producer and a consumer. Producer and consumer
+ * sides are wrapped with {@link #producer(OutputPort)} / {@link #producer(Processor)} and {@link
+ * #consumer(OutputPort)}; occupancy is sampled by the consumer.
+ */
+public final class QueueOccupancyMeter {
+    private static final int SAMPLING_MASK = 0x3F;
+    private final AtomicLong produced = new AtomicLong(), consumed = new AtomicLong();
+    // Accessed only from consumer thread(s) under lock
+    private long samples, sum, max;
+
+    public <T> OutputPortCloseable<T> producer(final OutputPort<T> port) {
+        return new OutputPortCloseable<T>() {
+            @Override
+            public T take() {
+                T t = port.take();
+                if (t != null)
+                    produced.incrementAndGet();
+                return t;
+            }
+
+            @Override
+            public void close() {
+                if (port instanceof OutputPortCloseable)
+                    ((OutputPortCloseable) port).close();
+            }
+        };
+    }
+
+    public <I, O> Processor<I, O> producer(final Processor<I, O> processor) {
+        return new Processor<I, O>() {
+            @Override
+            public O process(I input) {
+                O o = processor.process(input);
+                produced.incrementAndGet();
+                return o;
+            }
+        };
+    }
+
+    public <T> OutputPortCloseable<T> consumer(final OutputPort<T> port) {
+        return new OutputPortCloseable<T>() {
+            @Override
+            public T take() {
+                T t = port.take();
+                if (t != null && (consumed.incrementAndGet() & SAMPLING_MASK) == 0)
+                    sample();
+                return t;
+            }
+
+            @Override
+            public void close() {
+                if (port instanceof OutputPortCloseable)
+                    ((OutputPortCloseable) port).close();
+            }
+        };
+    }
+
+    private synchronized void sample() {
+        // Objects taken by the consumer are already removed from the queue
+        long size = Math.max(0, produced.get() - consumed.get());
+        ++samples;
+        sum += size;
+        max = Math.max(max, size);
+    }
+
+    public synchronized double getMeanOccupancy() {
+        return samples == 0 ? 0.0 : 1.0 * sum / samples;
+    }
+
+    public synchronized long getMaxOccupancy() {
+        return max;
+    }
+}
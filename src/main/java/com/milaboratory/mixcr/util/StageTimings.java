@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.OutputPortCloseable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Low-overhead per-stage timing for multi-threaded pipelines.
+ *
+ * <p>Each thread accumulates counters in its own instance (no contention between threads). All events are counted,
+ * but {@link System#nanoTime()} is called only for one of {@code samplingRate} events of each stage in each thread;
+ * total time of a stage is estimated from sampled events.</p>
+ *
+ * <p>Usage:</p>
+ * <pre>
+ *     long start = timings.start(stage);
+ *     ...
+ *     timings.stop(stage, start);
+ * </pre>
+ *
+ * @param <S> stage enum
+ */
+public final class StageTimings<S extends Enum<S>> {
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+    private final S[] stages;
+    private final int samplingMask;
+    private final List<Counters> allCounters = new ArrayList<>();
+    private final ThreadLocal<Counters> counters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            Counters c = new Counters(stages.length);
+            synchronized (allCounters) {
+                allCounters.add(c);
+            }
+            return c;
+        }
+    };
+
+    /**
+     * @param stageClass   stage enum class
+     * @param samplingRate measure time of one of {@code samplingRate} events; must be a power of 2
+     */
+    public StageTimings(Class<S> stageClass, int samplingRate) {
+        if (samplingRate <= 0 || Integer.bitCount(samplingRate) != 1)
+            throw new IllegalArgumentException("Sampling rate must be a power of 2.");
+        this.stages = stageClass.getEnumConstants();
+        this.samplingMask = samplingRate - 1;
+    }
+
+    /**
+     * Registers start of the stage event in the current thread. Returned value must be passed to {@link
+     * #stop(Enum, long)}.
+     */
+    public long start(S stage) {
+        Counters c = counters.get();
+        if ((c.events[stage.ordinal()]++ & samplingMask) != 0)
+            return NOT_SAMPLED;
+        return System.nanoTime();
+    }
+
+    /**
+     * Registers end of the stage event in the current thread.
+     */
+    public void stop(S stage, long start) {
+        if (start == NOT_SAMPLED)
+            return;
+        long time = System.nanoTime() - start;
+        Counters c = counters.get();
+        c.sampled[stage.ordinal()]++;
+        c.time[stage.ordinal()] += time;
+    }
+
+    /**
+     * Returns port measuring time spent in {@link OutputPort#take()} of the inner port.
+     */
+    public <T> OutputPortCloseable<T> timed(final OutputPort<T> port, final S stage) {
+        return new OutputPortCloseable<T>() {
+            @Override
+            public T take() {
+                long start = start(stage);
+                T t = port.take();
+                stop(stage, start);
+                return t;
+            }
+
+            @Override
+            public void close() {
+                if (port instanceof OutputPortCloseable)
+                    ((OutputPortCloseable) port).close();
+            }
+        };
+    }
+
+    /**
+     * Number of registered events of the stage (all threads).
+     */
+    public long getEvents(S stage) {
+        long r = 0;
+        synchronized (allCounters) {
+            for (Counters c : allCounters)
+                r += c.events[stage.ordinal()];
+        }
+        return r;
+    }
+
+    /**
+     * Estimated total time of all events of the stage (all threads) in nanoseconds.
+     */
+    public long getTime(S stage) {
+        double r = 0;
+        synchronized (allCounters) {
+            for (Counters c : allCounters) {
+                int i = stage.ordinal();
+                if (c.sampled[i] != 0)
+                    r += 1.0 * c.time[i] * c.events[i] / c.sampled[i];
+            }
+        }
+        return (long) r;
+    }
+
+    public S[] getStages() {
+        return stages.clone();
+    }
+
+    private static final class Counters {
+        final long[] events, sampled, time;
+
+        Counters(int size) {
+            this.events = new long[size];
+            this.sampled = new long[size];
+            this.time = new long[size];
+        }
+    }
+}
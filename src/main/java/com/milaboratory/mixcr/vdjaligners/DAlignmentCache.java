@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.milaboratory.core.alignment.Aligner;
+import com.milaboratory.core.alignment.Alignment;
+import com.milaboratory.core.alignment.AlignmentScoring;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import com.milaboratory.util.GlobalObjectMappers;
+import io.repseq.core.GeneFeature;
+import io.repseq.core.VDJCGene;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent bounded cache of D gene alignments shared by {@link SingleDAligner} instances of a run (i.e. by the
+ * aligner and by the clone factory).
+ *
+ * <p>Entries are keyed by D-region sequence and alignment context (scoring, absolute score threshold, aligned feature
+ * and the set of D genes), and contain alignments with all genes of the context scoring at least the absolute
+ * threshold (regardless of chains and relative thresholds, so the same entry can be used by aligners with different
+ * genes order and parameters).</p>
+ *
+ * <p>Cache is passed to aligners explicitly (see {@link VDJCAligner#setDAlignmentCache(DAlignmentCache)}); aligners
+ * without explicitly set cache use in-memory {@link #getDefault() default cache}. Cache created with {@link
+ * #DAlignmentCache(int, EvictionPolicy, File)} is saved to the file on {@link #close()}, so (being loaded from the same
+ * file with {@link #load(File)}) it persists between runs on the same library.</p>
+ */
+public final class DAlignmentCache implements AutoCloseable {
+    public static final int DEFAULT_SIZE = 100_000;
+    private static final String MAGIC = "MiXCR.DCACHE.V01";
+    private static volatile DAlignmentCache defaultCache;
+
+    public enum EvictionPolicy {
+        /**
+         * Least recently used entries are evicted when cache size exceeds maximal size
+         */
+        LRU,
+        /**
+         * Entries are evicted by garbage collector in response to memory demand (maximal size is also respected)
+         */
+        Soft,
+        /**
+         * Entries are never evicted (maximal size is ignored)
+         */
+        None
+    }
+
+    final Cache<Key, PreVDJCHit[]> cache;
+    final int maximalSize;
+    final EvictionPolicy evictionPolicy;
+    // Contexts are weakly referenced: context is retained only while it is used by some aligner or by some cache
+    // entry, so the number of contexts is bounded by the number of live aligners and cache entries
+    final ConcurrentMap<String, Context> contexts = CacheBuilder.newBuilder()
+            .weakValues().<String, Context>build().asMap();
+    // File to save cache to on close (null for in-memory cache)
+    File file;
+    final StripedCounter hits = new StripedCounter(), misses = new StripedCounter();
+
+    public DAlignmentCache(int maximalSize, EvictionPolicy evictionPolicy) {
+        this(maximalSize, evictionPolicy, null);
+    }
+
+    /**
+     * Creates cache that is saved to the file on {@link #close()}; the file is not loaded (see {@link #load(File)}).
+     *
+     * @param file file to persist cache in; null for in-memory cache
+     */
+    public DAlignmentCache(int maximalSize, EvictionPolicy evictionPolicy, File file) {
+        this.file = file;
+        this.maximalSize = maximalSize;
+        this.evictionPolicy = evictionPolicy;
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors());
+        switch (evictionPolicy) {
+            case Soft:
+                builder.softValues();
+            case LRU:
+                builder.maximumSize(maximalSize);
+                break;
+        }
+        this.cache = builder.build();
+    }
+
+    /**
+     * Saves cache to the file it was created with (if any).
+     */
+    @Override
+    public void close() throws IOException {
+        File file = this.file;
+        if (file == null)
+            return;
+        this.file = null;
+        save(file);
+    }
+
+    /**
+     * Returns in-memory cache used by aligners without explicitly set cache
+     */
+    public static DAlignmentCache getDefault() {
+        DAlignmentCache c = defaultCache;
+        if (c == null)
+            synchronized (DAlignmentCache.class) {
+                if ((c = defaultCache) == null)
+                    defaultCache = c = createDefault();
+            }
+        return c;
+    }
+
+    public static synchronized void setDefault(DAlignmentCache cache) {
+        defaultCache = cache;
+    }
+
+    private static DAlignmentCache createDefault() {
+        return new DAlignmentCache(DEFAULT_SIZE, EvictionPolicy.LRU);
+    }
+
+    public int getMaximalSize() {
+        return maximalSize;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns current values of hit/miss counters
+     */
+    public Stats getStats() {
+        return new Stats(hits.get(), misses.get());
+    }
+
+    /**
+     * Returns canonical context for the given alignment settings. D genes are sorted by ids, so aligners with the
+     * same genes in different order share the same context.
+     */
+    Context getContext(AlignmentScoring<NucleotideSequence> scoring, float absoluteMinScore,
+                       GeneFeature featureToAlign, List<VDJCGene> genes) {
+        VDJCGene[] sorted = genes.toArray(new VDJCGene[genes.size()]);
+        Arrays.sort(sorted, new Comparator<VDJCGene>() {
+            @Override
+            public int compare(VDJCGene o1, VDJCGene o2) {
+                return o1.getId().compareTo(o2.getId());
+            }
+        });
+        NucleotideSequence[] sequences = new NucleotideSequence[sorted.length];
+        StringBuilder fingerprint = new StringBuilder();
+        try {
+            fingerprint.append(GlobalObjectMappers.ONE_LINE.writeValueAsString(scoring)).append('|')
+                    .append(GlobalObjectMappers.ONE_LINE.writeValueAsString(featureToAlign)).append('|')
+                    .append(absoluteMinScore);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        for (int i = 0; i < sorted.length; i++) {
+            sequences[i] = sorted[i].getFeature(featureToAlign);
+            fingerprint.append('|').append(sorted[i].getId()).append(':').append(sequences[i]);
+        }
+        Context context = new Context(fingerprint.toString(), scoring, absoluteMinScore, sorted, sequences);
+        while (true) {
+            Context previous = contexts.putIfAbsent(context.fingerprint, context);
+            if (previous == null)
+                return context;
+            if (!previous.isStub())
+                return previous;
+            // Replacing stub created while loading cache from file (keys with stub context are equal to keys
+            // with real context)
+            if (contexts.replace(context.fingerprint, previous, context))
+                return context;
+        }
+    }
+
+    /**
+     * Returns alignments of the sequence with all genes of the context, sorted by score (hit ids are indices in
+     * {@link Context#genes})
+     */
+    PreVDJCHit[] get(final Context context, final NucleotideSequence sequence) {
+        Key key = new Key(context, sequence);
+        PreVDJCHit[] result = cache.getIfPresent(key);
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        misses.increment();
+        try {
+            return cache.get(key, new Callable<PreVDJCHit[]>() {
+                @Override
+                public PreVDJCHit[] call() throws Exception {
+                    return context.align(sequence);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes all cache entries to file
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        PrimitivO output = new PrimitivO(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            output.writeUTF(MAGIC);
+            Map<Context, List<Map.Entry<Key, PreVDJCHit[]>>> byContext = new HashMap<>();
+            for (Map.Entry<Key, PreVDJCHit[]> entry : cache.asMap().entrySet()) {
+                List<Map.Entry<Key, PreVDJCHit[]>> list = byContext.get(entry.getKey().context);
+                if (list == null)
+                    byContext.put(entry.getKey().context, list = new ArrayList<>());
+                list.add(entry);
+            }
+            output.writeInt(byContext.size());
+            for (Map.Entry<Context, List<Map.Entry<Key, PreVDJCHit[]>>> e : byContext.entrySet()) {
+                output.writeUTF(e.getKey().fingerprint);
+                output.writeInt(e.getValue().size());
+                for (Map.Entry<Key, PreVDJCHit[]> entry : e.getValue()) {
+                    output.writeObject(entry.getKey().sequence);
+                    output.writeInt(entry.getValue().length);
+                    for (PreVDJCHit hit : entry.getValue()) {
+                        output.writeInt(hit.id);
+                        output.writeObject(hit.alignment);
+                    }
+                }
+            }
+        } finally {
+            output.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+
+    /**
+     * Loads cache entries from file. Entries are assigned to contexts by fingerprints, so entries saved for different
+     * libraries or alignment settings are never used.
+     */
+    public void load(File file) throws IOException {
+        PrimitivI input = new PrimitivI(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (!MAGIC.equals(input.readUTF()))
+                throw new IOException("Wrong D alignments cache file format.");
+            int numberOfContexts = input.readInt();
+            for (int i = 0; i < numberOfContexts; i++) {
+                String fingerprint = input.readUTF();
+                // Stub context, replaced by real context (with the same fingerprint) when it is requested by aligner
+                Context context = contexts.get(fingerprint);
+                if (context == null) {
+                    Context stub = new Context(fingerprint, null, 0, null, null);
+                    context = contexts.putIfAbsent(fingerprint, stub);
+                    if (context == null)
+                        context = stub;
+                }
+                int numberOfEntries = input.readInt();
+                for (int j = 0; j < numberOfEntries; j++) {
+                    NucleotideSequence sequence = input.readObject(NucleotideSequence.class);
+                    PreVDJCHit[] hits = new PreVDJCHit[input.readInt()];
+                    for (int k = 0; k < hits.length; k++) {
+                        int id = input.readInt();
+                        hits[k] = new PreVDJCHit(id, input.readObject(Alignment.class));
+                    }
+                    cache.put(new Key(context, sequence), hits);
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Hit/miss statistics
+     */
+    public static final class Stats {
+        public final long hits, misses;
+
+        public Stats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public Stats minus(Stats other) {
+            return new Stats(hits - other.hits, misses - other.misses);
+        }
+
+        public long getRequests() {
+            return hits + misses;
+        }
+    }
+
+    /**
+     * Alignment context: scoring, absolute score threshold, feature to align and D genes in canonical order
+     */
+    static final class Context {
+        final String fingerprint;
+        final AlignmentScoring<NucleotideSequence> scoring;
+        final float absoluteMinScore;
+        final VDJCGene[] genes;
+        final NucleotideSequence[] sequences;
+        // null if prefiltering is not possible for this scoring
+        final DAlignmentPrefilter prefilter;
+
+        Context(String fingerprint, AlignmentScoring<NucleotideSequence> scoring, float absoluteMinScore,
+                VDJCGene[] genes, NucleotideSequence[] sequences) {
+            this.fingerprint = fingerprint;
+            this.scoring = scoring;
+            this.absoluteMinScore = absoluteMinScore;
+            this.genes = genes;
+            this.sequences = sequences;
+            this.prefilter = genes == null ? null : DAlignmentPrefilter.create(scoring, absoluteMinScore, sequences);
+        }
+
+        PreVDJCHit[] align(NucleotideSequence sequence) {
+            return align(sequence, true);
+        }
+
+        /**
+         * @param usePrefilter use prefilter (if available) to select genes to align with
+         */
+        PreVDJCHit[] align(NucleotideSequence sequence, boolean usePrefilter) {
+            if (sequence.size() == 0)
+                return new PreVDJCHit[0];
+
+            boolean[] candidates = null;
+            if (usePrefilter && prefilter != null) {
+                candidates = new boolean[sequences.length];
+                if (prefilter.candidates(sequence, candidates) == 0)
+                    return new PreVDJCHit[0];
+            }
+
+            List<PreVDJCHit> result = new ArrayList<>();
+            Alignment<NucleotideSequence> alignment;
+            for (int i = 0; i < sequences.length; ++i) {
+                if (candidates != null && !candidates[i])
+                    continue;
+
+                alignment = Aligner.alignLocal(scoring, sequences[i], sequence);
+
+                if (alignment == null || alignment.getScore() < absoluteMinScore)
+                    continue;
+
+                result.add(new PreVDJCHit(i, alignment));
+            }
+
+            Collections.sort(result, PreVDJCHit.SCORE_COMPARATOR);
+            return result.toArray(new PreVDJCHit[result.size()]);
+        }
+
+        /**
+         * Stubs are created for contexts loaded from file and not yet requested by any aligner
+         */
+        boolean isStub() {
+            return genes == null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof Context && fingerprint.equals(((Context) o).fingerprint));
+        }
+
+        @Override
+        public int hashCode() {
+            return fingerprint.hashCode();
+        }
+    }
+
+    private static final class Key {
+        final Context context;
+        final NucleotideSequence sequence;
+
+        Key(Context context, NucleotideSequence sequence) {
+            this.context = context;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return (context == key.context || context.equals(key.context)) && sequence.equals(key.sequence);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * context.hashCode() + sequence.hashCode();
+        }
+    }
+
+    /**
+     * Counter with low contention under concurrent increments
+     */
+    static final class StripedCounter {
+        // Each counter occupies its own cache line
+        static final int STRIDE = 16;
+        final int mask = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) * 2 - 1;
+        final AtomicLongArray counters = new AtomicLongArray((mask + 1) * STRIDE);
+
+        void increment() {
+            counters.incrementAndGet(((int) Thread.currentThread().getId() & mask) * STRIDE);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < counters.length(); i += STRIDE)
+                sum += counters.get(i);
+            return sum;
+        }
+    }
+}
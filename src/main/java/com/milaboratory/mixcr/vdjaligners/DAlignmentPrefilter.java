@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.alignment.AbstractAlignmentScoring;
+import com.milaboratory.core.alignment.AffineGapAlignmentScoring;
+import com.milaboratory.core.alignment.AlignmentScoring;
+import com.milaboratory.core.alignment.LinearGapAlignmentScoring;
+import com.milaboratory.core.sequence.NucleotideSequence;
+
+/**
+ * Selects D genes that may have local alignment with the target scoring at least {@code minScore}, so full alignment
+ * (with traceback) is performed only for them. Optimal local alignment score (or its upper bound for affine scoring)
+ * is calculated in linear memory without traceback; genes with score below the threshold are skipped, so
+ * prefiltering never changes the result.
+ */
+final class DAlignmentPrefilter {
+    final NucleotideSequence[] genes;
+    final int minScore;
+    final int alphabetSize;
+    // Substitution scores: [target letter * alphabetSize + gene letter]
+    final int[] substitutions;
+    // Penalty of the first gap position and each subsequent gap position (linear scoring: equal)
+    final int gapOpen, gapExtension;
+
+    private DAlignmentPrefilter(NucleotideSequence[] genes, int minScore, int[] substitutions,
+                                int gapOpen, int gapExtension) {
+        this.genes = genes;
+        this.minScore = minScore;
+        this.alphabetSize = NucleotideSequence.ALPHABET.size();
+        this.substitutions = substitutions;
+        this.gapOpen = gapOpen;
+        this.gapExtension = gapExtension;
+    }
+
+    /**
+     * Marks genes that may have alignment with score not less than threshold
+     *
+     * @return number of marked genes
+     */
+    int candidates(NucleotideSequence sequence, boolean[] marks) {
+        int count = 0;
+        for (int i = 0; i < genes.length; i++)
+            if (marks[i] = maxScore(genes[i], sequence) >= minScore)
+                ++count;
+        return count;
+    }
+
+    /**
+     * Optimal local alignment score (Gotoh, gap of length l costs gapOpen + (l - 1) * gapExtension)
+     */
+    int maxScore(NucleotideSequence gene, NucleotideSequence target) {
+        int n = gene.size();
+        // Row of the previous target position: H - best score ending at cell, E - ending with gap in target
+        int[] h = new int[n + 1], e = new int[n + 1];
+        int best = 0;
+        for (int j = 0; j <= n; j++)
+            e[j] = Integer.MIN_VALUE / 2;
+        for (int i = 0; i < target.size(); i++) {
+            int row = target.codeAt(i) * alphabetSize;
+            int diagonal = 0, left = 0, f = Integer.MIN_VALUE / 2;
+            for (int j = 1; j <= n; j++) {
+                e[j] = Math.max(e[j] + gapExtension, h[j] + gapOpen);
+                f = Math.max(f + gapExtension, left + gapOpen);
+                int score = Math.max(0, Math.max(diagonal + substitutions[row + gene.codeAt(j - 1)],
+                        Math.max(e[j], f)));
+                diagonal = h[j];
+                h[j] = left = score;
+                if (score > best)
+                    best = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Creates prefilter, or returns null if prefiltering can't guarantee exact results for given scoring (e.g.
+     * unknown scoring type or genes with wildcards)
+     */
+    static DAlignmentPrefilter create(AlignmentScoring<NucleotideSequence> scoring, float minScore,
+                                      NucleotideSequence[] genes) {
+        if (!(scoring instanceof AbstractAlignmentScoring) || minScore <= 0)
+            return null;
+        AbstractAlignmentScoring<NucleotideSequence> s = (AbstractAlignmentScoring<NucleotideSequence>) scoring;
+
+        for (NucleotideSequence gene : genes)
+            for (int i = 0; i < gene.size(); i++)
+                if (NucleotideSequence.ALPHABET.isWildcard(gene.codeAt(i)))
+                    return null;
+
+        int gapOpen, gapExtension;
+        if (scoring instanceof LinearGapAlignmentScoring)
+            gapOpen = gapExtension = ((LinearGapAlignmentScoring<NucleotideSequence>) scoring).getGapPenalty();
+        else if (scoring instanceof AffineGapAlignmentScoring) {
+            gapOpen = ((AffineGapAlignmentScoring<NucleotideSequence>) scoring).getGapOpenPenalty();
+            gapExtension = ((AffineGapAlignmentScoring<NucleotideSequence>) scoring).getGapExtensionPenalty();
+        } else
+            return null;
+        if (gapOpen > 0 || gapExtension > 0)
+            return null;
+
+        // Target letter (may be a wildcard) x gene letter (genes are checked to be without wildcards)
+        int size = NucleotideSequence.ALPHABET.size();
+        int[] substitutions = new int[size * size];
+        for (byte a = 0; a < size; a++)
+            for (byte b = 0; b < size; b++)
+                substitutions[a * size + b] = s.getScore(a, b);
+
+        // Scores are integer, so alignment score >= minScore iff it is >= ceil(minScore)
+        return new DAlignmentPrefilter(genes, (int) Math.ceil(minScore), substitutions, gapOpen, gapExtension);
+    }
+}
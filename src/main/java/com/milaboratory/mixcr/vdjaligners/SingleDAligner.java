@@ -28,12 +28,7 @@
  */
 package com.milaboratory.mixcr.vdjaligners;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.milaboratory.core.alignment.Aligner;
 import com.milaboratory.core.alignment.Alignment;
-import com.milaboratory.core.alignment.AlignmentScoring;
 import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
 import io.repseq.core.Chains;
@@ -42,32 +37,28 @@ import io.repseq.core.VDJCGene;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 
 public final class SingleDAligner {
-    private final AlignmentScoring<NucleotideSequence> scoring;
     private final float absoluteMinScore, relativeMinScore;
     private final int maxHits;
     private final List<SequenceWithChains> sequences = new ArrayList<>();
     private final List<VDJCGene> genes;
     private final GeneFeature featureToAlign;
-
-    private final LoadingCache<NucleotideSequence, List<PreVDJCHit>> resultsCache =
-            CacheBuilder.newBuilder()
-                    .maximumSize(5000)
-                    .recordStats()
-                    .build(
-                            new CacheLoader<NucleotideSequence, List<PreVDJCHit>>() {
-                                public List<PreVDJCHit> load(NucleotideSequence key) {
-                                    return _align(key);
-                                }
-                            }
-                    );
+    private final DAlignmentCache cache;
+    private final DAlignmentCache.Context cacheContext;
+    // Index of gene in cache context -> index of gene in this aligner
+    private final int[] localIds;
 
     public SingleDAligner(DAlignerParameters parameters,
                           List<VDJCGene> genes) {
-        this.scoring = parameters.getScoring();
+        this(parameters, genes, DAlignmentCache.getDefault());
+    }
+
+    public SingleDAligner(DAlignerParameters parameters,
+                          List<VDJCGene> genes, DAlignmentCache cache) {
         this.absoluteMinScore = parameters.getAbsoluteMinScore();
         this.relativeMinScore = parameters.getRelativeMinScore();
         this.maxHits = parameters.getMaxHits();
@@ -75,6 +66,21 @@ public final class SingleDAligner {
         for (VDJCGene gene : genes)
             sequences.add(new SequenceWithChains(gene, featureToAlign));
         this.genes = new ArrayList<>(genes);
+        this.cache = cache;
+        this.cacheContext = cache.getContext(parameters.getScoring(), absoluteMinScore, featureToAlign, genes);
+        IdentityHashMap<VDJCGene, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < genes.size(); i++)
+            indices.put(genes.get(i), i);
+        this.localIds = new int[cacheContext.genes.length];
+        for (int i = 0; i < localIds.length; i++) {
+            Integer index = indices.get(cacheContext.genes[i]);
+            if (index == null)
+                // Same gene (equal id and sequence) from other instance of the library
+                for (int j = 0; j < genes.size(); j++)
+                    if (genes.get(j).getId().equals(cacheContext.genes[i].getId()))
+                        index = j;
+            localIds[i] = index;
+        }
     }
 
     List<PreVDJCHit> align0(NucleotideSequence sequence, Chains chains, int from, int to) {
@@ -83,30 +89,30 @@ public final class SingleDAligner {
 
         NucleotideSequence key = sequence.getRange(from, to);
 
-        try {
-            List<PreVDJCHit> cachedResult = resultsCache.get(key);
-            List<PreVDJCHit> result = new ArrayList<>(cachedResult.size());
-
-            PreVDJCHit h;
-            for (PreVDJCHit hit : cachedResult) {
-                //filter non-possible chains
-                if (!chains.intersects(sequences.get(hit.id).chains))
-                    continue;
-
-                result.add(h = convert(hit, from));
-
-                assert sequence.getRange(h.alignment.getSequence2Range()).equals(
-                        h.alignment
-                                .getRelativeMutations()
-                                .mutate(sequences.get(h.id).sequence
-                                        .getRange(h.alignment.getSequence1Range())));
-            }
-
-            cutToScore(result);
-            return result;
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+        // Alignments with all genes of the cache context, sorted by score
+        PreVDJCHit[] cachedResult = cache.get(cacheContext, key);
+        List<PreVDJCHit> result = new ArrayList<>(cachedResult.length);
+
+        PreVDJCHit h;
+        for (PreVDJCHit hit : cachedResult) {
+            int id = localIds[hit.id];
+            //filter non-possible chains
+            if (!chains.intersects(sequences.get(id).chains))
+                continue;
+
+            result.add(h = convert(id, hit, from));
+
+            assert sequence.getRange(h.alignment.getSequence2Range()).equals(
+                    h.alignment
+                            .getRelativeMutations()
+                            .mutate(sequences.get(h.id).sequence
+                                    .getRange(h.alignment.getSequence1Range())));
         }
+
+        // Restoring order of hits with equal scores (by gene index in this aligner)
+        Collections.sort(result, SCORE_THEN_ID);
+        cutToScore(result);
+        return result;
     }
 
     public VDJCHit[] align(NucleotideSequence sequence, Chains chains, int from, int to,
@@ -116,33 +122,22 @@ public final class SingleDAligner {
                 targetIndex, numberOfTargets);
     }
 
-    private PreVDJCHit convert(PreVDJCHit hit, int from) {
+    private static PreVDJCHit convert(int id, PreVDJCHit hit, int from) {
         Alignment<NucleotideSequence> alignment = hit.alignment;
-        return new PreVDJCHit(hit.id, new Alignment<>(alignment.getSequence1(),
+        return new PreVDJCHit(id, new Alignment<>(alignment.getSequence1(),
                 alignment.getAbsoluteMutations(),
                 alignment.getSequence1Range(),
                 alignment.getSequence2Range().move(from),
                 alignment.getScore()));
     }
 
-    private List<PreVDJCHit> _align(NucleotideSequence sequence) {
-        if (sequence.size() == 0)
-            return Collections.EMPTY_LIST;
-
-        List<PreVDJCHit> result = new ArrayList<>();
-        Alignment<NucleotideSequence> alignment;
-        for (int i = 0; i < sequences.size(); ++i) {
-            alignment = Aligner.alignLocal(scoring, sequences.get(i).sequence, sequence);
-
-            if (alignment == null || alignment.getScore() < absoluteMinScore)
-                continue;
-
-            result.add(new PreVDJCHit(i, alignment));
+    private static final Comparator<PreVDJCHit> SCORE_THEN_ID = new Comparator<PreVDJCHit>() {
+        @Override
+        public int compare(PreVDJCHit o1, PreVDJCHit o2) {
+            int c = PreVDJCHit.SCORE_COMPARATOR.compare(o1, o2);
+            return c != 0 ? c : Integer.compare(o1.id, o2.id);
         }
-
-        Collections.sort(result, PreVDJCHit.SCORE_COMPARATOR);
-        return result;
-    }
+    };
 
     private void cutToScore(List<PreVDJCHit> result) {
         if (result.isEmpty())
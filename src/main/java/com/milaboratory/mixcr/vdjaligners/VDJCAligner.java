@@ -33,6 +33,7 @@ import com.milaboratory.core.io.sequence.SequenceRead;
 import com.milaboratory.core.io.sequence.SingleRead;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.mixcr.util.StageTimings;
 import com.milaboratory.util.HashFunctions;
 import com.milaboratory.util.RandomUtil;
 import io.repseq.core.Chains;
@@ -47,6 +48,8 @@ public abstract class VDJCAligner<R extends SequenceRead> implements Processor<R
     protected final EnumMap<GeneType, List<VDJCGene>> genesToAlign = new EnumMap<>(GeneType.class);
     protected final List<VDJCGene> usedGenes = new ArrayList<>();
     protected VDJCAlignerEventListener listener = null;
+    protected StageTimings<AlignerStage> timings = null;
+    protected DAlignmentCache dAlignmentCache = DAlignmentCache.getDefault();
 
     protected VDJCAligner(VDJCAlignerParameters parameters) {
         this.parameters = parameters.clone();
@@ -80,6 +83,30 @@ public abstract class VDJCAligner<R extends SequenceRead> implements Processor<R
         this.listener = listener;
     }
 
+    /**
+     * Enables per-stage timing of alignment (null to disable). Must be set before processing.
+     */
+    public void setTimings(StageTimings<AlignerStage> timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * Sets cache of D alignments (by default {@link DAlignmentCache#getDefault()} is used). Must be set before
+     * processing.
+     */
+    public void setDAlignmentCache(DAlignmentCache dAlignmentCache) {
+        this.dAlignmentCache = dAlignmentCache;
+    }
+
+    protected final long startTiming(AlignerStage stage) {
+        return timings == null ? 0 : timings.start(stage);
+    }
+
+    protected final void stopTiming(AlignerStage stage, long start) {
+        if (timings != null)
+            timings.stop(stage, start);
+    }
+
     protected final void onFailedAlignment(SequenceRead read, VDJCAlignmentFailCause cause) {
         if (listener != null)
             listener.onFailedAlignment(read, cause);
@@ -30,6 +30,7 @@ package com.milaboratory.mixcr.vdjaligners;
 
 import cc.redberry.primitives.Filter;
 import com.milaboratory.core.alignment.batch.AlignmentHit;
+import com.milaboratory.core.alignment.batch.AlignmentResult;
 import com.milaboratory.core.alignment.batch.BatchAlignerWithBaseWithFilter;
 import com.milaboratory.core.io.sequence.SequenceRead;
 import com.milaboratory.core.sequence.NucleotideSequence;
@@ -54,6 +55,36 @@ public abstract class VDJCAlignerAbstract<R extends SequenceRead> extends VDJCAl
         super(parameters);
     }
 
+    protected final AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> alignV(NucleotideSequence sequence) {
+        long start = startTiming(AlignerStage.VAlignment);
+        AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> result = vAligner.align(sequence);
+        stopTiming(AlignerStage.VAlignment, start);
+        return result;
+    }
+
+    protected final AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> alignV(NucleotideSequence sequence,
+                                                                                       int from, int to, BitArray filter) {
+        long start = startTiming(AlignerStage.VAlignment);
+        AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> result = vAligner.align(sequence, from, to, filter);
+        stopTiming(AlignerStage.VAlignment, start);
+        return result;
+    }
+
+    protected final AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> alignJ(NucleotideSequence sequence) {
+        long start = startTiming(AlignerStage.JAlignment);
+        AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> result = jAligner.align(sequence);
+        stopTiming(AlignerStage.JAlignment, start);
+        return result;
+    }
+
+    protected final AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> alignJ(NucleotideSequence sequence,
+                                                                                       int from, int to, BitArray filter) {
+        long start = startTiming(AlignerStage.JAlignment);
+        AlignmentResult<AlignmentHit<NucleotideSequence, VDJCGene>> result = jAligner.align(sequence, from, to, filter);
+        stopTiming(AlignerStage.JAlignment, start);
+        return result;
+    }
+
     @SuppressWarnings("unchecked")
     private BatchAlignerWithBaseWithFilter<NucleotideSequence, VDJCGene, AlignmentHit<NucleotideSequence, VDJCGene>> createKAligner(GeneType geneType) {
         if (parameters.getVJCGeneAlignerParameters(geneType) != null &&
@@ -159,7 +190,7 @@ public abstract class VDJCAlignerAbstract<R extends SequenceRead> extends VDJCAl
         List<VDJCGene> dGenes = genesToAlign.get(GeneType.Diversity);
         if (dAlignerParameters != null && dGenes.size() != 0)
             singleDAligner = new SingleDAligner(dAlignerParameters,
-                    genesToAlign.get(GeneType.Diversity));
+                    genesToAlign.get(GeneType.Diversity), dAlignmentCache);
         vAligner = createKAligner(GeneType.Variable);
         jAligner = createKAligner(GeneType.Joining);
         cAligner = createKAligner(GeneType.Constant);
@@ -195,8 +195,8 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
 
     PAlignmentHelper createInitialHelper(Target target) {
         return new PAlignmentHelper(target,
-                vAligner.align(target.targets[0].getSequence()),
-                vAligner.align(target.targets[1].getSequence())
+                alignV(target.targets[0].getSequence()),
+                alignV(target.targets[1].getSequence())
         );
     }
 
@@ -440,8 +440,14 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
         /**
          * Perform final alignment of D and C genes on fully marked-up reads (with by V and J alignments).
          */
-        @SuppressWarnings("unchecked")
         void performCDAlignment() {
+            long start = startTiming(AlignerStage.DCAlignment);
+            performCDAlignment0();
+            stopTiming(AlignerStage.DCAlignment, start);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void performCDAlignment0() {
             PairedHit bestVHit = vHits.length == 0 ? null : vHits[0];
             PairedHit bestJHit = jHits.length == 0 ? null : jHits[0];
 
@@ -528,7 +534,7 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
             final NucleotideSequence targetSequence = target.targets[index].getSequence();
 
             if (vHit == null)
-                return parameters.getAllowPartialAlignments() ? jAligner.align(targetSequence) : null;
+                return parameters.getAllowPartialAlignments() ? alignJ(targetSequence) : null;
 
             BitArray filterForJ = getFilter(GeneType.Joining, vHits);
 
@@ -539,7 +545,7 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
                     || vHit.getAlignment().getSequence2Range().getTo() == targetSequence.size())
                 return null;
 
-            return jAligner.align(targetSequence,
+            return alignJ(targetSequence,
                     vHit.getAlignment().getSequence2Range().getTo(),
                     targetSequence.size(), filterForJ);
         }
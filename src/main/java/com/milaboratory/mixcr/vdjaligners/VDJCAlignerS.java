@@ -187,7 +187,7 @@ public final class VDJCAlignerS extends VDJCAlignerAbstract<SingleRead> {
 
         switch (parameters.getVJAlignmentOrder()) {
             case VThenJ:
-                vResult = vAligner.align(sequence);
+                vResult = alignV(sequence);
 
                 // If there is no results for V return
                 if (!vResult.hasHits())
@@ -195,27 +195,27 @@ public final class VDJCAlignerS extends VDJCAlignerAbstract<SingleRead> {
                             vResult, // V result is empty
                             // If -OallowPartialAlignments=true try align J gene
                             parameters.getAllowPartialAlignments() ?
-                                    jAligner.align(sequence) : null);
+                                    alignJ(sequence) : null);
 
                 // Returning result
                 return new KVJResultsForSingle(target, vResult,
-                        jAligner.align(sequence,
+                        alignJ(sequence,
                                 vResult.getBestHit().getAlignment().getSequence2Range().getTo(),
                                 sequence.size(),
                                 getFilter(GeneType.Joining, vResult.getHits())));
             case JThenV:
-                jResult = jAligner.align(sequence);
+                jResult = alignJ(sequence);
 
                 // If there is no results for J return
                 if (!jResult.hasHits())
                     return new KVJResultsForSingle(target,
                             // If -OallowPartialAlignments=true try align V gene
                             parameters.getAllowPartialAlignments() ?
-                                    vAligner.align(sequence) : null,
+                                    alignV(sequence) : null,
                             jResult); // J result is empty
 
                 // Returning result
-                return new KVJResultsForSingle(target, vAligner.align(sequence, 0,
+                return new KVJResultsForSingle(target, alignV(sequence, 0,
                         jResult.getBestHit().getAlignment().getSequence2Range().getFrom(),
                         getFilter(GeneType.Variable, jResult.getHits())),
                         jResult);
@@ -289,6 +289,12 @@ public final class VDJCAlignerS extends VDJCAlignerAbstract<SingleRead> {
         }
 
         public void alignDC() {
+            long start = startTiming(AlignerStage.DCAlignment);
+            alignDC0();
+            stopTiming(AlignerStage.DCAlignment, start);
+        }
+
+        private void alignDC0() {
             NucleotideSequence sequence = target.targets[0].getSequence();
 
             if (singleDAligner != null && hasKVAndJHits()) {
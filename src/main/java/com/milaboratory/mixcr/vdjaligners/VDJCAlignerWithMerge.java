@@ -33,6 +33,7 @@ import com.milaboratory.core.io.sequence.SingleReadImpl;
 import com.milaboratory.core.merger.MismatchOnlyPairedReadMerger;
 import com.milaboratory.core.merger.PairedReadMergingResult;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.StageTimings;
 import io.repseq.core.VDJCGene;
 
 /**
@@ -67,13 +68,29 @@ public final class VDJCAlignerWithMerge extends VDJCAligner<PairedRead> {
         super.setEventsListener(listener);
     }
 
+    @Override
+    public void setTimings(StageTimings<AlignerStage> timings) {
+        singleAligner.setTimings(timings);
+        pairedAligner.setTimings(timings);
+        super.setTimings(timings);
+    }
+
+    @Override
+    public void setDAlignmentCache(DAlignmentCache dAlignmentCache) {
+        singleAligner.setDAlignmentCache(dAlignmentCache);
+        pairedAligner.setDAlignmentCache(dAlignmentCache);
+        super.setDAlignmentCache(dAlignmentCache);
+    }
+
     @Override
     protected void init() {
     }
 
     @Override
     protected VDJCAlignmentResult<PairedRead> process0(final PairedRead read) {
+        long start = startTiming(AlignerStage.Merging);
         PairedReadMergingResult merged = merger.process(read);
+        stopTiming(AlignerStage.Merging, start);
         if (merged.isSuccessful()) {
             VDJCAlignments alignment = singleAligner.process(
                     new SingleReadImpl(read.getId(), merged.getOverlappedSequence(), "")).alignment;
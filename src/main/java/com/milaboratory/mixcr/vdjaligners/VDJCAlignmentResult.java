@@ -29,19 +29,42 @@
 package com.milaboratory.mixcr.vdjaligners;
 
 import com.milaboratory.core.io.sequence.SequenceRead;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsFeatureIndex;
+import io.repseq.core.GeneFeature;
 
 public final class VDJCAlignmentResult<R extends SequenceRead> {
     public final R read;
     public final VDJCAlignments alignment;
+    // Hash of the sequence of indexed gene feature (see VDJCAlignmentsFeatureIndex), calculated in parallel alignment
+    // stage; null if alignment has no such feature or hash was not calculated
+    public final Long featureHash;
 
     public VDJCAlignmentResult(R read, VDJCAlignments alignment) {
-        this.read = read;
-        this.alignment = alignment;
+        this(read, alignment, null);
     }
 
     public VDJCAlignmentResult(R read) {
+        this(read, null, null);
+    }
+
+    private VDJCAlignmentResult(R read, VDJCAlignments alignment, Long featureHash) {
         this.read = read;
-        this.alignment = null;
+        this.alignment = alignment;
+        this.featureHash = featureHash;
+    }
+
+    /**
+     * Returns result with calculated hash of the feature sequence (see {@link VDJCAlignmentsFeatureIndex#hash(NucleotideSequence)})
+     */
+    public VDJCAlignmentResult<R> withFeatureHash(GeneFeature feature) {
+        if (alignment == null)
+            return this;
+        NSequenceWithQuality seq = alignment.getFeature(feature);
+        if (seq == null)
+            return this;
+        return new VDJCAlignmentResult<>(read, alignment, VDJCAlignmentsFeatureIndex.hash(seq.getSequence()));
     }
 }
@@ -42,6 +42,9 @@ import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class AlignmentsToClonesMappingContainerTest {
     @Test
@@ -51,7 +54,102 @@ public class AlignmentsToClonesMappingContainerTest {
         test(20000, 2000000, 10, 20000, 1048576);
     }
 
+    @Test
+    public void testSingleSortingThread() throws Exception {
+        test(20000, 200000, 10, 20000, 17, 1);
+        test(20000, 200000, 1, 2, 1000, 1);
+    }
+
+    @Test
+    public void testExpectedRecordsCount() throws Exception {
+        int cloneCount = 10;
+        List<ReadToCloneMapping> mappings = new ArrayList<>();
+        for (int i = 0; i < 200000; i++)
+            mappings.add(new ReadToCloneMapping(i, i, i % cloneCount, false, false, false, false));
+
+        // Underestimated number of records results in several sorting chunks
+        for (long expected : new long[]{100, mappings.size()}) {
+            File tempFile = TempFileManager.getTempFile();
+            AlignmentsToClonesMappingContainer.writeMapping(CUtils.asOutputPort(mappings), cloneCount, tempFile,
+                    expected, 2);
+            try (AlignmentsToClonesMappingContainer container = AlignmentsToClonesMappingContainer.open(tempFile)) {
+                Assert.assertEquals(mappings.size(), container.getAlignmentCount());
+                for (int i = 0; i < cloneCount; i++) {
+                    long previous = -1;
+                    for (ReadToCloneMapping mapping : CUtils.it(container.createPortForClone(i))) {
+                        Assert.assertEquals(i, mapping.cloneIndex);
+                        Assert.assertTrue(previous < mapping.alignmentsId);
+                        previous = mapping.alignmentsId;
+                    }
+                    Assert.assertEquals(mappings.size() / cloneCount, container.getCloneSize(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        Well19937c rnd = RandomUtil.getThreadLocalRandom();
+
+        int cloneCount = 100;
+        List<ReadToCloneMapping> mappings = new ArrayList<>();
+        long alignmentsId = 0;
+        for (int i = 0; i < 10000; i++) {
+            int cloneId = i < cloneCount ? i : rnd.nextInt(cloneCount);
+            mappings.add(new ReadToCloneMapping(alignmentsId, alignmentsId, cloneId, false, false, false, false));
+            // Gaps in alignment ids (dropped alignments)
+            alignmentsId += 1 + rnd.nextInt(3);
+        }
+
+        File tempFile = TempFileManager.getTempFile();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            AlignmentsToClonesMappingContainer.writeMapping(CUtils.asOutputPort(mappings), cloneCount, dos, 1000);
+        }
+
+        // Small segments to check records addressing across segment boundaries
+        try (AlignmentsToClonesMappingContainer container = AlignmentsToClonesMappingContainer.open(tempFile, 333)) {
+            int[] expected = new int[(int) alignmentsId];
+            Arrays.fill(expected, -1);
+            for (ReadToCloneMapping mapping : mappings)
+                expected[(int) mapping.alignmentsId] = mapping.cloneIndex;
+
+            for (int i = 0; i < expected.length; i++) {
+                Assert.assertEquals(expected[i], container.getCloneIndexForAlignment(i));
+                ReadToCloneMapping mapping = container.getMappingForAlignment(i);
+                if (expected[i] == -1)
+                    Assert.assertNull(mapping);
+                else
+                    Assert.assertEquals(expected[i], mapping.cloneIndex);
+            }
+            Assert.assertEquals(-1, container.getCloneIndexForAlignment(-1));
+            Assert.assertEquals(-1, container.getCloneIndexForAlignment(alignmentsId));
+
+            for (int i = 0; i < 100; i++) {
+                int from = rnd.nextInt(expected.length + 10) - 5;
+                int to = from + rnd.nextInt(2000);
+                int[] actual = container.getCloneIndices(from, to);
+                for (int j = from; j < to; j++)
+                    Assert.assertEquals(j < 0 || j >= expected.length ? -1 : expected[j], actual[j - from]);
+            }
+
+            for (int i = 0; i < cloneCount; i++) {
+                long size = 0;
+                for (ReadToCloneMapping mapping : CUtils.it(container.createPortForClone(i))) {
+                    Assert.assertEquals(i, mapping.cloneIndex);
+                    ++size;
+                }
+                Assert.assertEquals(size, container.getCloneSize(i));
+            }
+        }
+    }
+
     public void test(int minRecords, int maxRecords, int minClones, int maxClones, int sortChunk) throws Exception {
+        test(minRecords, maxRecords, minClones, maxClones, sortChunk,
+                AlignmentsToClonesMappingContainer.DEFAULT_SORTING_THREADS);
+    }
+
+    public void test(int minRecords, int maxRecords, int minClones, int maxClones, int sortChunk,
+                     int sortingThreads) throws Exception {
         Well19937c rnd = RandomUtil.getThreadLocalRandom();
         RandomDataGenerator rndD = RandomUtil.getThreadLocalRandomData();
 
@@ -88,7 +186,8 @@ public class AlignmentsToClonesMappingContainerTest {
 
         File tempFile = TempFileManager.getTempFile();
         try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
-            AlignmentsToClonesMappingContainer.writeMapping(CUtils.asOutputPort(mappings), clones.length, dos, sortChunk);
+            AlignmentsToClonesMappingContainer.writeMapping(CUtils.asOutputPort(mappings), clones.length, dos, sortChunk,
+                    sortingThreads);
         }
 
         //System.out.println(tempFile.length());
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AssemblerEventLoggerTest {
+    @Test
+    public void testConcurrentEventsWithSkew() throws Exception {
+        final long count = 10 * AssemblerEventLogger.RING_BUFFER_SIZE;
+        final long delayed = 10;
+        final AssemblerEventLogger logger = new AssemblerEventLogger();
+        final AtomicLong indexGenerator = new AtomicLong();
+        final AtomicLong published = new AtomicLong();
+        final Thread[] threads = new Thread[8];
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    long index;
+                    while ((index = indexGenerator.getAndIncrement()) < count) {
+                        // One of the first events is published only after events far beyond ring buffer size,
+                        // emulating scheduling skew between threads
+                        if (index == delayed)
+                            while (published.get() < 3 * AssemblerEventLogger.RING_BUFFER_SIZE)
+                                Thread.yield();
+                        logger.newEvent(new AssemblerEvent(index, 2 * index, (int) (index % 100)));
+                        published.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        logger.end(count);
+
+        long expected = 0;
+        for (AssemblerEvent event : logger.events()) {
+            Assert.assertEquals(expected, event.alignmentsIndex);
+            Assert.assertEquals(2 * expected, event.readId);
+            Assert.assertEquals(expected % 100, event.cloneIndex);
+            ++expected;
+        }
+        Assert.assertEquals(count, expected);
+        logger.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateEvent() throws Exception {
+        AssemblerEventLogger logger = new AssemblerEventLogger();
+        try {
+            logger.newEvent(new AssemblerEvent(1, 1, 0));
+            logger.newEvent(new AssemblerEvent(1, 1, 0));
+        } finally {
+            logger.newEvent(new AssemblerEvent(0, 0, 0));
+            logger.end(2);
+            logger.close();
+        }
+    }
+}
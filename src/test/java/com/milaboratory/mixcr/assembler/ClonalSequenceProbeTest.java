@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.SequenceQuality;
+import com.milaboratory.mixcr.basictypes.ClonalSequence;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+public class ClonalSequenceProbeTest {
+    @Test
+    public void test1() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        CloneAssemblerParameters parameters = params.cloneAssemblerParameters;
+        ClonalSequenceProbe probe = new ClonalSequenceProbe(parameters);
+        HashMap<ClonalSequence, ClonalSequence> map = new HashMap<>();
+        int extracted = 0;
+        for (VDJCAlignments al : align.alignments) {
+            if (!probe.extract(al))
+                continue;
+            ++extracted;
+
+            ClonalSequence expected = probe.createClonalSequence();
+            Assert.assertEquals(expected.hashCode(), probe.hashCode());
+            Assert.assertTrue(probe.equals(expected));
+            Assert.assertEquals(expected.getConcatenated().size(), probe.length);
+            Assert.assertEquals(expected.getConcatenated().getQuality(), probe.getQuality());
+
+            int badPoints = 0;
+            for (NSequenceWithQuality p : expected) {
+                SequenceQuality q = p.getQuality();
+                for (int i = 0; i < q.size(); ++i)
+                    if (q.value(i) <= parameters.getBadQualityThreshold())
+                        ++badPoints;
+            }
+            Assert.assertEquals(badPoints, probe.badPoints);
+
+            // Lookup by probe finds previously stored clonal sequence
+            ClonalSequence stored = map.get(probe);
+            if (stored == null)
+                map.put(expected, expected);
+            else
+                Assert.assertEquals(stored, expected);
+            Assert.assertNotNull(map.get(probe));
+        }
+        Assert.assertTrue(extracted > 0);
+    }
+}
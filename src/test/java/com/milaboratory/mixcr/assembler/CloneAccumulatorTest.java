@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import com.milaboratory.core.Range;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.core.sequence.SequenceQuality;
+import com.milaboratory.core.sequence.quality.QualityAggregationType;
+import com.milaboratory.mixcr.basictypes.ClonalSequence;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import gnu.trove.iterator.TObjectFloatIterator;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import io.repseq.core.GeneType;
+import io.repseq.core.VDJCGeneId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CloneAccumulatorTest {
+    static final NucleotideSequence SEQUENCE = new NucleotideSequence("TGTGCCAGCAGTTTATCGCCGGGACTGGGAGGCTACGAGCAGTACTTC");
+
+    @Test
+    public void testConcurrentAccumulation() throws Exception {
+        List<VDJCAlignments> alignments = RunMiXCR.align(new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile())).alignments;
+
+        // Enough alignments to trigger striping of the hot accumulator
+        int total = 20 * CloneAccumulator.STRIPING_THRESHOLD;
+        CloneAccumulator expected = create(), actual = create();
+        for (int i = 0; i < total; i++)
+            expected.accumulate(clonalSequence(i), alignments.get(i % alignments.size()), i % 7 == 0);
+
+        runConcurrently(new CloneAccumulator[]{actual}, alignments, total, 8);
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testSkewedConcurrentAccumulation() throws Exception {
+        List<VDJCAlignments> alignments = RunMiXCR.align(new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile())).alignments;
+
+        int total = 40 * CloneAccumulator.STRIPING_THRESHOLD;
+        CloneAccumulator[] expected = new CloneAccumulator[16], actual = new CloneAccumulator[16];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = create();
+            actual[i] = create();
+        }
+        for (int i = 0; i < total; i++)
+            expected[skewedTarget(i, expected.length)].accumulate(clonalSequence(i),
+                    alignments.get(i % alignments.size()), i % 7 == 0);
+
+        runConcurrently(actual, alignments, total, 8);
+
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], actual[i]);
+    }
+
+    @Test
+    public void testStripedQualityAggregation() throws Exception {
+        List<VDJCAlignments> alignments = RunMiXCR.align(new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile())).alignments;
+
+        // Max and Min are aggregated by stripes, Average by batches in the main accumulator
+        int total = 20 * CloneAccumulator.STRIPING_THRESHOLD + 5;
+        for (QualityAggregationType type : new QualityAggregationType[]{QualityAggregationType.Max,
+                QualityAggregationType.Min, QualityAggregationType.Average}) {
+            CloneAccumulator unstriped = create(type, Integer.MAX_VALUE), striped = create(type);
+            for (int i = 0; i < total; i++)
+                unstriped.accumulate(clonalSequence(i), alignments.get(i % alignments.size()), i % 7 == 0);
+
+            runConcurrently(new CloneAccumulator[]{striped}, alignments, total, 8);
+
+            assertEquals(unstriped, striped);
+        }
+    }
+
+    /**
+     * About 30% of all alignments go to the first accumulator
+     */
+    static int skewedTarget(int i, int numberOfAccumulators) {
+        return i % 10 < 3 ? 0 : 1 + (i * 31) % (numberOfAccumulators - 1);
+    }
+
+    static void runConcurrently(final CloneAccumulator[] accs, final List<VDJCAlignments> alignments,
+                                final int total, int threads) throws InterruptedException {
+        final AtomicInteger counter = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            ts[t] = new Thread() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = counter.getAndIncrement()) < total)
+                        accs[accs.length == 1 ? 0 : skewedTarget(i, accs.length)].accumulate(clonalSequence(i),
+                                alignments.get(i % alignments.size()), i % 7 == 0);
+                }
+            };
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+    }
+
+    static CloneAccumulator create() {
+        return create(QualityAggregationType.Average);
+    }
+
+    static CloneAccumulator create(QualityAggregationType type) {
+        return new CloneAccumulator(clonalSequence(0), new Range[0], type);
+    }
+
+    static CloneAccumulator create(QualityAggregationType type, int stripingThreshold) {
+        return new CloneAccumulator(clonalSequence(0), new Range[0], type, -1, stripingThreshold);
+    }
+
+    /**
+     * Quality differs between positions; maximal and minimal values of each position occur only once, after
+     * accumulation becomes striped
+     */
+    static ClonalSequence clonalSequence(int i) {
+        byte[] quality = new byte[SEQUENCE.size()];
+        for (int p = 0; p < quality.length; p++)
+            if (i == 2 * CloneAccumulator.STRIPING_THRESHOLD + 3 * p)
+                quality[p] = 39;
+            else if (i == 3 * CloneAccumulator.STRIPING_THRESHOLD + 5 * p)
+                quality[p] = 2;
+            else
+                quality[p] = (byte) (10 + (i * 7 + p * 13) % 20);
+        return new ClonalSequence(new NSequenceWithQuality[]{
+                new NSequenceWithQuality(SEQUENCE, new SequenceQuality(quality))});
+    }
+
+    static void assertEquals(CloneAccumulator expected, CloneAccumulator actual) {
+        expected.mergePartials();
+        actual.mergePartials();
+        Assert.assertEquals(expected.getCoreCount(), actual.getCoreCount());
+        Assert.assertEquals(expected.getMappedCount(), actual.getMappedCount());
+        for (GeneType geneType : GeneType.VJC_REFERENCE) {
+            TObjectFloatHashMap<VDJCGeneId> e = expected.geneScores.get(geneType),
+                    a = actual.geneScores.get(geneType);
+            if (e == null) {
+                Assert.assertNull(a);
+                continue;
+            }
+            Assert.assertEquals(e.size(), a.size());
+            TObjectFloatIterator<VDJCGeneId> it = e.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                Assert.assertEquals(it.value(), a.get(it.key()), Math.abs(it.value()) * 1E-4);
+            }
+        }
+        expected.rebuildClonalSequence();
+        actual.rebuildClonalSequence();
+        Assert.assertEquals(expected.getSequence().getConcatenated(), actual.getSequence().getConcatenated());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.VoidProcessor;
+import com.milaboratory.mixcr.basictypes.Clone;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CloneAssemblerTest {
+    @Test
+    public void testConcurrentCloneCreation() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+        final RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        // Same alignments are assembled several times, so event logging (and hence mapping) must be turned off
+        CloneAssemblerParameters assemblerParameters = params.cloneAssemblerParameters.clone();
+        assemblerParameters.setMaxBadPointsPercent(0.0);
+
+        int nThreads = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+        for (int round = 0; round < 10; round++) {
+            final CreatedClonesListener listener = new CreatedClonesListener();
+            try (CloneAssembler assembler = new CloneAssembler(assemblerParameters, false, align.usedGenes)) {
+                assembler.setListener(listener);
+
+                // All threads feed the same alignments in the same order, so they create the same clonotypes
+                // at the same moment
+                final CyclicBarrier barrier = new CyclicBarrier(nThreads);
+                final AtomicReference<Throwable> error = new AtomicReference<>();
+                Thread[] threads = new Thread[nThreads];
+                for (int i = 0; i < nThreads; i++) {
+                    final VoidProcessor<VDJCAlignments> initialAssembler = assembler.getInitialAssembler();
+                    threads[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                barrier.await();
+                                for (VDJCAlignments al : align.alignments)
+                                    initialAssembler.process(al);
+                            } catch (Throwable t) {
+                                error.compareAndSet(null, t);
+                            }
+                        }
+                    };
+                    threads[i].start();
+                }
+                for (Thread thread : threads)
+                    thread.join();
+
+                if (error.get() != null)
+                    throw new AssertionError(error.get());
+
+                Assert.assertFalse(listener.created.isEmpty());
+                Assert.assertEquals(assembler.cloneIndexGenerator.get(), listener.created.size());
+                TIntHashSet indices = new TIntHashSet();
+                long added = 0;
+                for (CloneAccumulator acc : listener.created) {
+                    int index = acc.getCloneIndex();
+                    Assert.assertTrue(index >= 1 && index <= listener.created.size());
+                    Assert.assertTrue(indices.add(index));
+                    acc.mergePartials();
+                    added += acc.getCoreCount();
+                }
+                Assert.assertEquals(listener.added.size(), added);
+                for (int index : listener.added)
+                    Assert.assertTrue(indices.contains(index));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelClustering() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        CloneAssemblerParameters assemblerParameters = params.cloneAssemblerParameters.clone();
+        assemblerParameters.setMaxBadPointsPercent(0.0);
+
+        try (CloneAssembler sequential = new CloneAssembler(assemblerParameters, false, align.usedGenes);
+             CloneAssembler parallel = new CloneAssembler(assemblerParameters, false, align.usedGenes)) {
+            for (CloneAssembler assembler : new CloneAssembler[]{sequential, parallel}) {
+                VoidProcessor<VDJCAlignments> initialAssembler = assembler.getInitialAssembler();
+                for (VDJCAlignments al : align.alignments)
+                    initialAssembler.process(al);
+                Assert.assertFalse(assembler.beginMapping());
+                assembler.preClustering();
+            }
+
+            sequential.runClustering(1);
+            // Small tasks, so that clonotypes are actually split between several parallel tasks
+            parallel.runClustering(4, 4);
+
+            Assert.assertEquals(sequential.getIdMapping(), parallel.getIdMapping());
+            List<CloneAccumulator> expected = sequential.getClusteredClonesAccumulators(),
+                    actual = parallel.getClusteredClonesAccumulators();
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).getCloneIndex(), actual.get(i).getCloneIndex());
+                Assert.assertEquals(expected.get(i).getSequence(), actual.get(i).getSequence());
+                Assert.assertEquals(expected.get(i).getCount(), actual.get(i).getCount());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelClonesBuilding() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        CloneAssemblerParameters assemblerParameters = params.cloneAssemblerParameters.clone();
+        assemblerParameters.setMaxBadPointsPercent(0.0);
+
+        try (CloneAssembler sequential = new CloneAssembler(assemblerParameters, false, align.usedGenes);
+             CloneAssembler parallel = new CloneAssembler(assemblerParameters, false, align.usedGenes)) {
+            for (CloneAssembler assembler : new CloneAssembler[]{sequential, parallel}) {
+                VoidProcessor<VDJCAlignments> initialAssembler = assembler.getInitialAssembler();
+                for (VDJCAlignments al : align.alignments)
+                    initialAssembler.process(al);
+                Assert.assertFalse(assembler.beginMapping());
+                assembler.preClustering();
+                assembler.runClustering(1);
+            }
+
+            sequential.buildClones(1);
+            parallel.buildClones(4);
+
+            List<Clone> expected = sequential.getCloneSet().getClones(),
+                    actual = parallel.getCloneSet().getClones();
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++)
+                Assert.assertEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    private static final class CreatedClonesListener implements CloneAssemblerListener {
+        final List<CloneAccumulator> created = Collections.synchronizedList(new ArrayList<CloneAccumulator>());
+        final List<Integer> added = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void onNewCloneCreated(CloneAccumulator accumulator) {
+            created.add(accumulator);
+        }
+
+        @Override
+        public void onFailedToExtractTarget(VDJCAlignments alignments) {
+        }
+
+        @Override
+        public void onTooManyLowQualityPoints(VDJCAlignments alignments) {
+        }
+
+        @Override
+        public void onAlignmentDeferred(VDJCAlignments alignments) {
+        }
+
+        @Override
+        public void onAlignmentAddedToClone(VDJCAlignments alignments, CloneAccumulator accumulator) {
+            added.add(accumulator.getCloneIndex());
+        }
+
+        @Override
+        public void onNoCandidateFoundForDeferredAlignment(VDJCAlignments alignments) {
+        }
+
+        @Override
+        public void onDeferredAlignmentMappedToClone(VDJCAlignments alignments, CloneAccumulator accumulator) {
+        }
+
+        @Override
+        public void onClustered(CloneAccumulator majorClone, CloneAccumulator minorClone, boolean countAdded) {
+        }
+
+        @Override
+        public void onPreClustered(CloneAccumulator majorClone, CloneAccumulator minorClone) {
+        }
+
+        @Override
+        public void onCloneDropped(CloneAccumulator clone) {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPortCloseable;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeferredAlignmentsSpillTest {
+    @Test
+    public void testSpillAndReplay() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        List<VDJCAlignments> spilled = new ArrayList<>();
+        try (DeferredAlignmentsSpill spill = new DeferredAlignmentsSpill(align.usedGenes)) {
+            // Spilling every third alignment, as only part of alignments is deferred by assembler
+            for (int i = 0; i < align.alignments.size(); i += 3) {
+                VDJCAlignments al = align.alignments.get(i);
+                al.setAlignmentsIndex(i);
+                spill.write(al);
+                spilled.add(al);
+            }
+            spill.end();
+            Assert.assertEquals(spilled.size(), spill.size());
+
+            // Spill can be replayed several times
+            for (int pass = 0; pass < 2; ++pass) {
+                int i = 0;
+                try (OutputPortCloseable<DeferredAlignmentsSpill.DeferredAlignment> port = spill.createPort()) {
+                    for (DeferredAlignmentsSpill.DeferredAlignment deferred : CUtils.it(port)) {
+                        Assert.assertEquals(i, deferred.ordinal);
+                        VDJCAlignments expected = spilled.get(i++);
+                        Assert.assertEquals(expected.getAlignmentsIndex(), deferred.alignments.getAlignmentsIndex());
+                        Assert.assertEquals(expected, deferred.alignments);
+                    }
+                }
+                Assert.assertEquals(spilled.size(), i);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.core.sequence.NucleotideSequence;
+import io.repseq.core.VDJCGeneId;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CloneSetOverlapTest {
+    static CloneSetOverlap.SampleKeys keys(long... hashesAndCounts) {
+        CloneSetOverlap.SampleKeys keys = new CloneSetOverlap.SampleKeys(hashesAndCounts.length / 2);
+        for (int i = 0; i < hashesAndCounts.length; i += 2)
+            keys.add(key(Long.toString(hashesAndCounts[i], 4).replace('0', 'A').replace('1', 'C')
+                    .replace('2', 'G').replace('3', 'T'), hashesAndCounts[i]), hashesAndCounts[i + 1]);
+        return keys;
+    }
+
+    static CloneSetOverlap.CloneKey key(String sequence, long hash) {
+        return new CloneSetOverlap.CloneKey(new NucleotideSequence[]{new NucleotideSequence(sequence)},
+                new VDJCGeneId[3], hash);
+    }
+
+    @Test
+    public void test1() throws Exception {
+        CloneSetOverlap overlap = new CloneSetOverlap(false, false, false);
+        overlap.add("s0", keys(1, 10, 2, 20, 3, 30));
+        overlap.add("s1", keys(2, 5, 3, 7, 4, 11));
+        overlap.add("s2", keys(3, 1, 5, 2));
+
+        Assert.assertEquals(5, overlap.getNumberOfKeys());
+        Assert.assertEquals(60, overlap.getNumberOfReads(0));
+        Assert.assertEquals(2, overlap.getNumberOfClones(2));
+
+        CloneSetOverlap.Statistics stat = overlap.calculate();
+
+        Assert.assertArrayEquals(new long[]{1, 1, 1}, stat.uniqueClones);
+        Assert.assertArrayEquals(new long[]{10, 11, 2}, stat.uniqueReads);
+
+        Assert.assertEquals(2, stat.sharedClones[0][1]);
+        Assert.assertEquals(2, stat.sharedClones[1][0]);
+        Assert.assertEquals(1, stat.sharedClones[0][2]);
+        Assert.assertEquals(50, stat.sharedReads[0][1]);
+        Assert.assertEquals(12, stat.sharedReads[1][0]);
+        Assert.assertEquals(30, stat.sharedReads[0][2]);
+        Assert.assertEquals(1, stat.sharedReads[2][0]);
+
+        Assert.assertArrayEquals(new long[]{0, 3, 1, 1}, stat.keysByOccurrence);
+        Assert.assertArrayEquals(new long[]{0, 23, 25, 38}, stat.readsByOccurrence);
+    }
+
+    @Test
+    public void testHashCollision() throws Exception {
+        CloneSetOverlap overlap = new CloneSetOverlap(false, false, false);
+        CloneSetOverlap.SampleKeys keys0 = new CloneSetOverlap.SampleKeys(2);
+        keys0.add(key("ACGT", 1), 10);
+        keys0.add(key("TTTT", 2), 20);
+        CloneSetOverlap.SampleKeys keys1 = new CloneSetOverlap.SampleKeys(2);
+        // Different clonal sequence with the same hash
+        keys1.add(key("GGGG", 1), 5);
+        keys1.add(key("TTTT", 2), 7);
+        overlap.add("s0", keys0);
+        overlap.add("s1", keys1);
+
+        Assert.assertEquals(3, overlap.getNumberOfKeys());
+        CloneSetOverlap.Statistics stat = overlap.calculate();
+        Assert.assertEquals(1, stat.sharedClones[0][1]);
+        Assert.assertEquals(20, stat.sharedReads[0][1]);
+        Assert.assertArrayEquals(new long[]{1, 1}, stat.uniqueClones);
+        Assert.assertArrayEquals(new long[]{10, 5}, stat.uniqueReads);
+    }
+}
@@ -28,13 +28,15 @@
  */
 package com.milaboratory.mixcr.basictypes;
 
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPortCloseable;
 import com.milaboratory.mixcr.util.RunMiXCR;
 import com.milaboratory.util.TempFileManager;
-import gnu.trove.list.array.TLongArrayList;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class RandomAccessVDJCAReaderTest {
@@ -47,30 +49,85 @@ public class RandomAccessVDJCAReaderTest {
         RunMiXCR.AlignResult align = RunMiXCR.align(params);
 
         File file = TempFileManager.getTempFile();
-        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file)) {
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file, 16)) {
             writer.header(align.aligner);
             for (VDJCAlignments alignment : align.alignments)
                 writer.write(alignment);
         }
 
-        TLongArrayList index = new TLongArrayList();
-
         try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file)) {
-            reader.setIndexer(index);
             int i = 0;
             VDJCAlignments alignments;
             while ((alignments = reader.take()) != null)
                 Assert.assertEquals(align.alignments.get(i++), alignments);
         }
 
-        try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(file, index.toArray())) {
+        try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(file)) {
             Assert.assertEquals(align.parameters.alignerParameters, reader.getParameters());
+            Assert.assertEquals(align.alignments.size(), reader.getNumberOfAlignments());
+            Assert.assertTrue(reader.getNumberOfBlocks() > 1);
             for (int i = 0; i < 1000; i++) {
                 int ind = ThreadLocalRandom.current().nextInt(align.alignments.size());
                 VDJCAlignments alignment = reader.get(ind);
                 Assert.assertEquals(alignment, align.alignments.get(ind));
+                Assert.assertEquals(ind, alignment.getAlignmentsIndex());
             }
         }
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCompressed() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File file = new File(TempFileManager.getTempFile().getAbsolutePath() + ".gz");
+        file.deleteOnExit();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file, 16)) {
+            writer.header(align.aligner);
+            for (VDJCAlignments alignment : align.alignments)
+                writer.write(alignment);
+        }
+
+        try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(file)) {
+            for (int i = align.alignments.size() - 1; i >= 0; --i)
+                Assert.assertEquals(align.alignments.get(i), reader.get(i));
+        }
+    }
+
+    @Test
+    public void testSortedPort() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File file = TempFileManager.getTempFile();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file, 16)) {
+            writer.header(align.aligner);
+            for (VDJCAlignments alignment : align.alignments)
+                writer.write(alignment);
+        }
+
+        long[] indices = new long[100];
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = ThreadLocalRandom.current().nextInt(align.alignments.size());
+        long[] sorted = indices.clone();
+        Arrays.sort(sorted);
+
+        try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(file);
+             OutputPortCloseable<VDJCAlignments> port = reader.createPort(indices, 3)) {
+            int i = 0;
+            for (VDJCAlignments alignment : CUtils.it(port)) {
+                Assert.assertEquals(sorted[i], alignment.getAlignmentsIndex());
+                Assert.assertEquals(align.alignments.get((int) sorted[i]), alignment);
+                ++i;
+            }
+            Assert.assertEquals(indices.length, i);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPortCloseable;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import com.milaboratory.util.TempFileManager;
+import gnu.trove.list.array.TLongArrayList;
+import io.repseq.core.GeneFeature;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class VDJCAlignmentsFeatureIndexTest {
+    @Test
+    public void test1() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File file = TempFileManager.getTempFile();
+        // Small run size to test merging of sorted runs
+        VDJCAlignmentsFeatureIndex.Builder builder = new VDJCAlignmentsFeatureIndex.Builder(GeneFeature.CDR3, 7);
+        Map<NucleotideSequence, TLongArrayList> expected = new HashMap<>();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file, 16)) {
+            writer.header(align.aligner);
+            long index = 0;
+            for (VDJCAlignments alignment : align.alignments) {
+                writer.write(alignment);
+                builder.put(alignment);
+                NSequenceWithQuality cdr3 = alignment.getFeature(GeneFeature.CDR3);
+                if (cdr3 != null) {
+                    TLongArrayList list = expected.get(cdr3.getSequence());
+                    if (list == null)
+                        expected.put(cdr3.getSequence(), list = new TLongArrayList());
+                    list.add(index);
+                }
+                ++index;
+            }
+        }
+        Assert.assertFalse(expected.isEmpty());
+
+        File indexFile = TempFileManager.getTempFile();
+        builder.write(indexFile);
+
+        try (VDJCAlignmentsFeatureIndex index = VDJCAlignmentsFeatureIndex.open(indexFile, 5);
+             RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(file)) {
+            Assert.assertEquals(align.alignments.size(), index.getNumberOfAlignments());
+            for (Map.Entry<NucleotideSequence, TLongArrayList> e : expected.entrySet()) {
+                long[] found = index.find(e.getKey());
+                Assert.assertArrayEquals(e.getValue().toArray(), found);
+                try (OutputPortCloseable<VDJCAlignments> port = reader.createPort(found, 2)) {
+                    for (VDJCAlignments al : CUtils.it(port))
+                        Assert.assertEquals(e.getKey(), al.getFeature(GeneFeature.CDR3).getSequence());
+                }
+            }
+            Assert.assertEquals(0, index.find(new NucleotideSequence("ACGTACGTACGTACGTACGTACGTACGTAAACCC")).length);
+        }
+    }
+
+    @Test
+    public void testEntriesOrder() throws Exception {
+        // Hashes with equal high 32 bits, negative values and duplicates
+        long[] hashes = {0x100000005L, 0x100000001L, -1L, 0x1FFFFFFFFL, 0x100000001L, Long.MIN_VALUE, 7L, -1L,
+                0x180000000L, 0x100000001L, 0x17FFFFFFFL};
+        for (int runSize : new int[]{3, 1000}) {
+            VDJCAlignmentsFeatureIndex.Builder builder = new VDJCAlignmentsFeatureIndex.Builder(GeneFeature.CDR3, runSize);
+            List<long[]> expected = new ArrayList<>();
+            for (int i = 0; i < hashes.length; i++) {
+                builder.putHash(hashes[i]);
+                expected.add(new long[]{hashes[i], 2 * i});
+                // Alignment without feature
+                builder.putEmpty();
+            }
+            Collections.sort(expected, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] o1, long[] o2) {
+                    int c = Long.compare(o1[0], o2[0]);
+                    return c != 0 ? c : Long.compare(o1[1], o2[1]);
+                }
+            });
+
+            File indexFile = TempFileManager.getTempFile();
+            builder.write(indexFile);
+            try (DataInputStream is = new DataInputStream(new FileInputStream(indexFile))) {
+                Assert.assertEquals(VDJCAlignmentsFeatureIndex.MAGIC, is.readInt());
+                Assert.assertEquals(GeneFeature.CDR3, GeneFeature.parse(is.readUTF()));
+                Assert.assertEquals(2 * hashes.length, is.readLong());
+                Assert.assertEquals(hashes.length, is.readLong());
+                for (long[] entry : expected) {
+                    Assert.assertEquals(entry[0], is.readLong());
+                    Assert.assertEquals(entry[1], is.readLong());
+                }
+            }
+        }
+    }
+}
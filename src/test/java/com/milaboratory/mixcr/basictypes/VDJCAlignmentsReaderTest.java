@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.mixcr.util.RunMiXCR;
+import com.milaboratory.util.TempFileManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class VDJCAlignmentsReaderTest {
+    @Test
+    public void testParallelDecoding() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File file = TempFileManager.getTempFile();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file, 8)) {
+            writer.header(align.aligner);
+            for (VDJCAlignments alignment : align.alignments)
+                writer.write(alignment);
+            writer.setNumberOfProcessedReads(align.totalNumberOfReads);
+        }
+
+        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file)) {
+            reader.setDecodingThreads(4);
+            int i = 0;
+            VDJCAlignments alignments;
+            while ((alignments = reader.take()) != null) {
+                Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                Assert.assertEquals(align.alignments.get(i++), alignments);
+            }
+            Assert.assertEquals(align.alignments.size(), i);
+            Assert.assertEquals(align.totalNumberOfReads, reader.getNumberOfReads());
+        }
+    }
+
+    @Test
+    public void testRawBlockCopy() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File source = TempFileManager.getTempFile();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(source, 8)) {
+            writer.header(align.aligner);
+            for (VDJCAlignments alignment : align.alignments)
+                writer.write(alignment);
+            writer.setNumberOfProcessedReads(align.totalNumberOfReads);
+        }
+
+        // Two copies of the same file: the second one is copied twice, so raw blocks with non-zero read id
+        // offset are copied and shifted once again
+        File merged = TempFileManager.getTempFile();
+        try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(source);
+             VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(merged, 8)) {
+            writer.header(align.aligner);
+            Assert.assertTrue(writer.isBlockCompatible(reader));
+            for (VDJCAlignments alignment : align.alignments.subList(0, 3))
+                writer.write(alignment);
+            for (int blockId = 0; blockId < reader.getNumberOfBlocks(); blockId++)
+                writer.writeRawBlock(reader, blockId, align.totalNumberOfReads);
+            writer.setNumberOfProcessedReads(2 * align.totalNumberOfReads);
+        }
+
+        File merged2 = TempFileManager.getTempFile();
+        try (RandomAccessVDJCAReader reader = new RandomAccessVDJCAReader(merged);
+             VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(merged2, 8)) {
+            writer.header(align.aligner);
+            for (int blockId = 0; blockId < reader.getNumberOfBlocks(); blockId++)
+                writer.writeRawBlock(reader, blockId, 1);
+        }
+
+        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(merged2)) {
+            int i = 0;
+            VDJCAlignments alignments;
+            while ((alignments = reader.take()) != null) {
+                Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                VDJCAlignments expected = i < 3
+                        ? align.alignments.get(i)
+                        : align.alignments.get(i - 3);
+                long offset = i < 3 ? 1 : 1 + align.totalNumberOfReads;
+                Assert.assertEquals(new VDJCAlignments(expected.getReadId() + offset, i, expected), alignments);
+                ++i;
+            }
+            Assert.assertEquals(align.alignments.size() + 3, i);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import cc.redberry.pipe.CUtils;
+import com.milaboratory.mixcr.info.AlignmentInfoCollector;
+import com.milaboratory.mixcr.info.AlignmentInfoCollectors;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+public class ActionAlignmentsStatTest {
+    @Test
+    public void testParallelCollectionEqualsSequential() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        params.alignerParameters.setAllowPartialAlignments(true);
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        Assert.assertTrue(align.alignments.size() > 100);
+
+        for (String name : AlignmentInfoCollectors.getNames()) {
+            String expected = collect(align, name, 1);
+            // Collectors must produce some statistics
+            Assert.assertFalse(expected.trim().isEmpty());
+            Assert.assertEquals(name, expected, collect(align, name, 4));
+        }
+    }
+
+    static String collect(RunMiXCR.AlignResult align, String name, int threads) {
+        List<AlignmentInfoCollector<?>> collectors = AlignmentInfoCollectors.create(name);
+        ActionAlignmentsStat.collect(CUtils.asOutputPort(align.alignments), collectors, threads);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(bos);
+        for (AlignmentInfoCollector<?> collector : collectors)
+            collector.writeResult(output);
+        output.flush();
+        return bos.toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import cc.redberry.primitives.Filter;
+import com.milaboratory.mixcr.basictypes.Clone;
+import com.milaboratory.mixcr.basictypes.CloneSet;
+import com.milaboratory.mixcr.basictypes.CloneSetIO;
+import com.milaboratory.mixcr.export.InfoWriter;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import com.milaboratory.util.TempFileManager;
+import io.repseq.core.VDJCLibraryRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ActionExportClonesTest {
+    @Test
+    public void testTotalCountOfFilteredClones() throws Exception {
+        File file = assembleTestClones();
+
+        // Default parameters (all chains, no frame / stop codon filters) must give the same fractions as filtering
+        // of the whole clone set
+        for (String chains : new String[]{"ALL", "TRB"}) {
+            ActionExportClones.CloneExportParameters parameters = new ActionExportClones.CloneExportParameters();
+            parameters.chains = chains;
+            Filter<Clone> filter = parameters.getFilter();
+            CloneSet expected = CloneSet.transform(CloneSetIO.read(file), filter);
+            Assert.assertEquals(expected.getTotalCount(), ActionExportClones.calculateTotalCount(file.getPath(), filter));
+            if (parameters.hasDefaultFilter())
+                try (CloneSetIO.CloneSetReader reader = new CloneSetIO.CloneSetReader(file, VDJCLibraryRegistry.getDefault())) {
+                    Assert.assertEquals(expected.getTotalCount(), reader.getTotalCountWithVJCHits());
+                }
+        }
+    }
+
+    @Test
+    public void testStreamingExport() throws Exception {
+        File file = assembleTestClones();
+        CloneSet cloneSet = CloneSetIO.read(file);
+        String minFraction = Float.toString(cloneSet.get(cloneSet.size() / 2).getFraction());
+        String minCount = Long.toString(cloneSet.get(cloneSet.size() / 3).getCount());
+
+        String[][] options = {
+                {},
+                {"-n", "3"},
+                {"-m", minCount},
+                {"-q", minFraction},
+                {"-q", minFraction, "-n", "2"},
+                {"-c", "TRB", "-n", "5"},
+                {"-o", "-t", "-m", minCount}
+        };
+        for (String[] opts : options) {
+            File actual = TempFileManager.getTempFile(), expected = TempFileManager.getTempFile();
+            // export refuses to overwrite existing files
+            actual.delete();
+            expected.delete();
+
+            ActionExportClones action = new ActionExportClones();
+            action.parseParameters(args(opts, file, actual));
+            action.go0();
+
+            exportWithCloneSet(args(opts, file, expected));
+
+            Assert.assertEquals(Arrays.toString(opts),
+                    new String(Files.readAllBytes(expected.toPath())), new String(Files.readAllBytes(actual.toPath())));
+        }
+    }
+
+    /**
+     * Export of the whole filtered clone set (the way it was done before streaming export)
+     */
+    @SuppressWarnings("unchecked")
+    static void exportWithCloneSet(String[] args) throws Exception {
+        ActionExportClones.CloneExportParameters parameters = new ActionExportClones.CloneExportParameters();
+        ActionExportParameters.parse(Clone.class, args, parameters);
+        CloneSet set = CloneSet.transform(CloneSetIO.read(parameters.getInputFile()), parameters.getFilter());
+        try (InfoWriter<Clone> writer = new InfoWriter<>(parameters.getOutputFile())) {
+            writer.attachInfoProviders((List) parameters.exporters);
+            writer.ensureHeader();
+            for (int i = 0; i < set.size() && i < parameters.getLimit(); i++) {
+                if (set.get(i).getFraction() < parameters.minFraction ||
+                        set.get(i).getCount() < parameters.minCount)
+                    break;
+                writer.put(set.get(i));
+            }
+        }
+    }
+
+    static String[] args(String[] options, File input, File output) {
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.add(input.getPath());
+        args.add(output.getPath());
+        return args.toArray(new String[args.size()]);
+    }
+
+    static File assembleTestClones() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+        RunMiXCR.AssembleResult assemble = RunMiXCR.assemble(RunMiXCR.align(params));
+
+        File file = TempFileManager.getTempFile();
+        CloneSetIO.write(assemble.cloneSet, file);
+        return file;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import cc.redberry.pipe.CUtils;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
+import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriterI;
+import com.milaboratory.mixcr.util.RunMiXCR;
+import com.milaboratory.util.TempFileManager;
+import io.repseq.core.Chains;
+import io.repseq.core.GeneFeature;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ActionFilterAlignmentsTest {
+    @Test
+    public void testParallelFilterPreservesOrder() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File file = TempFileManager.getTempFile();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file)) {
+            writer.header(align.aligner);
+            for (VDJCAlignments alignment : align.alignments)
+                writer.write(alignment);
+        }
+
+        ActionFilterAlignments.AlignmentsFilter filter =
+                new ActionFilterAlignments.AlignmentsFilter(GeneFeature.CDR3, null, Chains.ALL);
+
+        // Sequential filtering
+        List<VDJCAlignments> expected = new ArrayList<>();
+        long total = 0;
+        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file)) {
+            for (VDJCAlignments al : CUtils.it(reader)) {
+                ++total;
+                if (filter.accept(al))
+                    expected.add(al);
+            }
+        }
+        Assert.assertTrue(expected.size() > 0);
+
+        for (int threads : new int[]{1, 4}) {
+            VDJCAlignmentsWriterI.ArrayWriter writer = new VDJCAlignmentsWriterI.ArrayWriter();
+            long[] counts;
+            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file)) {
+                counts = ActionFilterAlignments.filter(reader, filter, threads, writer);
+            }
+            Assert.assertEquals(total, counts[0]);
+            Assert.assertEquals(expected.size(), counts[1]);
+            Assert.assertEquals(expected, writer.data);
+            for (int i = 1; i < writer.data.size(); i++)
+                Assert.assertTrue(writer.data.get(i - 1).getAlignmentsIndex() < writer.data.get(i).getAlignmentsIndex());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import cc.redberry.pipe.CUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InfoWriterTest {
+    @Test
+    public void testParallelOutputIsIdentical() throws Exception {
+        List<Integer> records = new ArrayList<>();
+        for (int i = 0; i < 10007; ++i)
+            records.add(i);
+
+        byte[] sequential = export(records, 1, 100);
+        for (int threads : new int[]{2, 4, 8})
+            for (int chunkSize : new int[]{1, 13, 1024})
+                Assert.assertArrayEquals(sequential, export(records, threads, chunkSize));
+    }
+
+    @Test
+    public void testNonAsciiValues() throws Exception {
+        List<Integer> records = new ArrayList<>();
+        for (int i = 0; i < 100; ++i)
+            records.add(i);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write("Value\tText\n".getBytes(InfoWriter.CHARSET));
+        for (Integer record : records)
+            expected.write((record + "\t" + text(record) + "\n").getBytes(InfoWriter.CHARSET));
+        Assert.assertArrayEquals(expected.toByteArray(), export(records, 3, 7));
+    }
+
+    private static byte[] export(List<Integer> records, int threads, int chunkSize) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InfoWriter<Integer> writer = new InfoWriter<>(bos)) {
+            writer.attachInfoProvider(new TestExtractor("Value", false));
+            writer.attachInfoProvider(new TestExtractor("Text", true));
+            Assert.assertEquals(records.size(), writer.putAll(CUtils.asOutputPort(records), threads, chunkSize));
+        }
+        return bos.toByteArray();
+    }
+
+    private static String text(int value) {
+        return value % 3 == 0 ? "\u03b1\u03b2" + value : "ab" + value + "\u00e9";
+    }
+
+    private static final class TestExtractor implements FieldExtractor<Integer> {
+        final String header;
+        final boolean text;
+
+        TestExtractor(String header, boolean text) {
+            this.header = header;
+            this.text = text;
+        }
+
+        @Override
+        public String getHeader() {
+            return header;
+        }
+
+        @Override
+        public String extractValue(Integer object) {
+            return text ? text(object) : Integer.toString(object);
+        }
+    }
+}
@@ -14,6 +14,7 @@ import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.mixcr.vdjaligners.VDJCParametersPresets;
 import com.milaboratory.test.TestUtil;
 import com.milaboratory.util.RandomUtil;
+import com.milaboratory.util.TempFileManager;
 import io.repseq.core.GeneFeature;
 import io.repseq.core.GeneType;
 import io.repseq.core.VDJCGene;
@@ -24,6 +25,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.EnumMap;
 
@@ -173,6 +175,187 @@ public class PartialAlignmentsAssemblerTest {
         }
     }
 
+    @Test
+    public void testParallelOverlapSearchIsDeterministic() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        params.alignerParameters.setAllowPartialAlignments(true);
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        byte[] expected = null;
+        for (int threads : new int[]{1, 4, 1, 3}) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(output)) {
+                PartialAlignmentsAssembler assembler = new PartialAlignmentsAssembler(
+                        PartialAlignmentsAssemblerParameters.getDefault(), writer, true, false);
+                try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                    assembler.buildLeftPartsIndex(reader);
+                }
+                try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                    assembler.searchOverlaps(reader, threads);
+                }
+            }
+            if (expected == null)
+                expected = output.toByteArray();
+            else
+                Assert.assertArrayEquals(expected, output.toByteArray());
+        }
+    }
+
+    @Test
+    public void testCompactIndexWithRandomAccess() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        params.alignerParameters.setAllowPartialAlignments(true);
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+
+        File vdjca = TempFileManager.getTempFile();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(vdjca)) {
+            writer.header(align.aligner);
+            for (VDJCAlignments alignment : align.alignments)
+                writer.write(alignment);
+            writer.setNumberOfProcessedReads(align.totalNumberOfReads);
+        }
+
+        byte[][] results = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(output);
+                 RandomAccessVDJCAReader leftPartsSource = new RandomAccessVDJCAReader(vdjca)) {
+                PartialAlignmentsAssembler assembler = new PartialAlignmentsAssembler(
+                        PartialAlignmentsAssemblerParameters.getDefault(), writer, true, false);
+                try (final VDJCAlignmentsReader reader = new VDJCAlignmentsReader(vdjca)) {
+                    if (i == 0)
+                        assembler.buildLeftPartsIndex(reader);
+                    else
+                        assembler.buildLeftPartsIndex(reader, leftPartsSource);
+                }
+                try (final VDJCAlignmentsReader reader = new VDJCAlignmentsReader(vdjca)) {
+                    assembler.searchOverlaps(reader, 2);
+                }
+            }
+            results[i] = output.toByteArray();
+        }
+        Assert.assertArrayEquals(results[0], results[1]);
+        vdjca.delete();
+    }
+
+    @Test
+    public void testIncrementalSecondRound() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        params.alignerParameters.setAllowPartialAlignments(true);
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        PartialAlignmentsAssemblerParameters pParameters = PartialAlignmentsAssemblerParameters.getDefault();
+
+        // Two separate runs
+        byte[] firstRound = runRound(pParameters, align.resultReader(), align.resultReader());
+        byte[] expected = runRound(pParameters, new VDJCAlignmentsReader(new ByteArrayInputStream(firstRound)),
+                new VDJCAlignmentsReader(new ByteArrayInputStream(firstRound)));
+
+        // Index of the second round is built from output of the first round
+        final ByteArrayOutputStream firstOutput = new ByteArrayOutputStream(), secondOutput = new ByteArrayOutputStream();
+        try (VDJCAlignmentsWriter firstWriter = new VDJCAlignmentsWriter(firstOutput);
+             VDJCAlignmentsWriter secondWriter = new VDJCAlignmentsWriter(secondOutput)) {
+            PartialAlignmentsAssembler first = new PartialAlignmentsAssembler(pParameters, firstWriter, true, false);
+            PartialAlignmentsAssembler second = new PartialAlignmentsAssembler(pParameters, secondWriter, true, false);
+            second.buildLeftPartsIndexFrom(first, true);
+            try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                first.buildLeftPartsIndex(reader);
+            }
+            try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                first.searchOverlaps(reader, 2);
+            }
+            firstWriter.close();
+            Assert.assertArrayEquals(firstRound, firstOutput.toByteArray());
+            try (final VDJCAlignmentsReader reader = new VDJCAlignmentsReader(new ByteArrayInputStream(firstOutput.toByteArray()))) {
+                second.searchOverlaps(reader, 2);
+            }
+        }
+        Assert.assertArrayEquals(expected, secondOutput.toByteArray());
+    }
+
+    @Test
+    public void testIncrementalSecondRoundWithRandomAccess() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/sample_IGH_R2.fastq").getFile());
+        params.alignerParameters.setAllowPartialAlignments(true);
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        PartialAlignmentsAssemblerParameters pParameters = PartialAlignmentsAssemblerParameters.getDefault();
+
+        // In-memory second round
+        final ByteArrayOutputStream expectedFirst = new ByteArrayOutputStream(), expectedSecond = new ByteArrayOutputStream();
+        try (VDJCAlignmentsWriter firstWriter = new VDJCAlignmentsWriter(expectedFirst);
+             VDJCAlignmentsWriter secondWriter = new VDJCAlignmentsWriter(expectedSecond)) {
+            PartialAlignmentsAssembler first = new PartialAlignmentsAssembler(pParameters, firstWriter, true, false);
+            PartialAlignmentsAssembler second = new PartialAlignmentsAssembler(pParameters, secondWriter, true, false);
+            second.buildLeftPartsIndexFrom(first, true);
+            try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                first.buildLeftPartsIndex(reader);
+            }
+            try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                first.searchOverlaps(reader, 2);
+            }
+            firstWriter.close();
+            try (final VDJCAlignmentsReader reader = new VDJCAlignmentsReader(new ByteArrayInputStream(expectedFirst.toByteArray()))) {
+                second.searchOverlaps(reader, 2);
+            }
+        }
+
+        // Output of the first round is written to file, and left parts of the second round are read from it on
+        // demand (the same as assemblePartial --rounds does)
+        File firstRound = TempFileManager.getTempFile();
+        final ByteArrayOutputStream secondOutput = new ByteArrayOutputStream();
+        try (VDJCAlignmentsWriter secondWriter = new VDJCAlignmentsWriter(secondOutput)) {
+            PartialAlignmentsAssembler first = new PartialAlignmentsAssembler(pParameters, firstRound.getPath(), true, false);
+            PartialAlignmentsAssembler second = new PartialAlignmentsAssembler(pParameters, secondWriter, true, false);
+            second.buildLeftPartsIndexFrom(first, false);
+            try {
+                try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                    first.buildLeftPartsIndex(reader);
+                }
+                try (final VDJCAlignmentsReader reader = align.resultReader()) {
+                    first.searchOverlaps(reader, 2);
+                }
+            } finally {
+                first.close();
+            }
+            try (RandomAccessVDJCAReader leftPartsSource = new RandomAccessVDJCAReader(firstRound);
+                 VDJCAlignmentsReader reader = new VDJCAlignmentsReader(firstRound)) {
+                // Small cache to check eviction of decoded blocks
+                leftPartsSource.setCacheSize(2);
+                second.setLeftPartsSource(leftPartsSource);
+                second.searchOverlaps(reader, 2);
+            }
+        } finally {
+            firstRound.delete();
+        }
+        Assert.assertArrayEquals(expectedSecond.toByteArray(), secondOutput.toByteArray());
+    }
+
+    static byte[] runRound(PartialAlignmentsAssemblerParameters pParameters,
+                           VDJCAlignmentsReader indexReader, VDJCAlignmentsReader reader) throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(output)) {
+            PartialAlignmentsAssembler assembler = new PartialAlignmentsAssembler(pParameters, writer, true, false);
+            try {
+                assembler.buildLeftPartsIndex(indexReader);
+            } finally {
+                indexReader.close();
+            }
+            try {
+                assembler.searchOverlaps(reader, 2);
+            } finally {
+                reader.close();
+            }
+        }
+        return output.toByteArray();
+    }
+
     static <V> EnumMap<GeneType, V> gtMap() {
         return new EnumMap<>(GeneType.class);
     }
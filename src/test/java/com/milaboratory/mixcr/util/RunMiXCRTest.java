@@ -8,6 +8,7 @@ import com.milaboratory.mixcr.cli.ActionAlign;
 import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
 import io.repseq.core.Chains;
 import io.repseq.core.GeneType;
+import io.repseq.core.VDJCLibraryRegistry;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -59,6 +60,33 @@ public class RunMiXCRTest {
             Assert.assertEquals(assemble.cloneSet.get(i), read.get(i));
     }
 
+    @Test
+    public void testStreamingRead() throws Exception {
+        RunMiXCR.RunMiXCRAnalysis params = new RunMiXCR.RunMiXCRAnalysis(
+                RunMiXCR.class.getResource("/sequences/test_R1.fastq").getFile(),
+                RunMiXCR.class.getResource("/sequences/test_R2.fastq").getFile());
+
+        RunMiXCR.AlignResult align = RunMiXCR.align(params);
+        RunMiXCR.AssembleResult assemble = RunMiXCR.assemble(align);
+
+        File tempFile = TempFileManager.getTempFile();
+        CloneSetIO.write(assemble.cloneSet, tempFile);
+
+        try (CloneSetIO.CloneSetReader reader = new CloneSetIO.CloneSetReader(tempFile, VDJCLibraryRegistry.getDefault())) {
+            Assert.assertEquals(assemble.cloneSet.size(), reader.getNumberOfClones());
+            reader.setFractionsTotalCount(assemble.cloneSet.getTotalCount());
+
+            int i = 0;
+            for (Clone clone : CUtils.it(reader)) {
+                Clone expected = assemble.cloneSet.get(i++);
+                Assert.assertEquals(expected, clone);
+                Assert.assertEquals(expected.getFraction(), clone.getFraction(), 0.0);
+            }
+            Assert.assertEquals(assemble.cloneSet.size(), i);
+            Assert.assertTrue(reader.isFinished());
+        }
+    }
+
     //@Test
     //public void testt() throws Exception {
     //    try {
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.util.TempFileManager;
+import io.repseq.core.Chains;
+import io.repseq.core.GeneType;
+import io.repseq.core.VDJCGene;
+import io.repseq.core.VDJCLibraryRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class DAlignmentCacheTest {
+    @Test
+    public void testSharingAndPersistence() throws Exception {
+        DAlignerParameters parameters = VDJCParametersPresets.getByName("default").getDAlignerParameters();
+        List<VDJCGene> dGenes = new ArrayList<>();
+        for (VDJCGene gene : VDJCLibraryRegistry.getDefault().getLibrary("default", "hs").getGenes(Chains.IGH))
+            if (gene.getGeneType() == GeneType.Diversity && gene.getFeature(parameters.getGeneFeatureToAlign()) != null)
+                dGenes.add(gene);
+        Assert.assertTrue(dGenes.size() > 1);
+
+        List<NucleotideSequence> targets = new ArrayList<>();
+        NucleotideSequence flank = new NucleotideSequence("ACGTTGCA");
+        for (VDJCGene gene : dGenes)
+            targets.add(flank.concatenate(gene.getFeature(parameters.getGeneFeatureToAlign())).concatenate(flank));
+
+        DAlignmentCache cache = new DAlignmentCache(1000, DAlignmentCache.EvictionPolicy.LRU);
+        SingleDAligner aligner = new SingleDAligner(parameters, dGenes, cache);
+        List<VDJCHit[]> expected = new ArrayList<>();
+        for (NucleotideSequence target : targets)
+            expected.add(aligner.align(target, Chains.IGH, 0, target.size(), 0, 1));
+        Assert.assertEquals(targets.size(), cache.getStats().misses);
+        Assert.assertEquals(0, cache.getStats().hits);
+
+        // Aligner with genes in different order shares cache entries
+        List<VDJCGene> reversed = new ArrayList<>(dGenes);
+        Collections.reverse(reversed);
+        SingleDAligner reversedAligner = new SingleDAligner(parameters, reversed, cache);
+        for (int i = 0; i < targets.size(); i++)
+            assertHitsEqual(expected.get(i),
+                    reversedAligner.align(targets.get(i), Chains.IGH, 0, targets.get(i).size(), 0, 1));
+        Assert.assertEquals(targets.size(), cache.getStats().hits);
+
+        // Persisted cache gives the same results without alignment
+        File file = TempFileManager.getTempFile();
+        cache.save(file);
+        DAlignmentCache loaded = new DAlignmentCache(1000, DAlignmentCache.EvictionPolicy.LRU);
+        loaded.load(file);
+        Assert.assertEquals(cache.size(), loaded.size());
+        SingleDAligner loadedAligner = new SingleDAligner(parameters, dGenes, loaded);
+        for (int i = 0; i < targets.size(); i++)
+            Assert.assertArrayEquals(expected.get(i),
+                    loadedAligner.align(targets.get(i), Chains.IGH, 0, targets.get(i).size(), 0, 1));
+        Assert.assertEquals(0, loaded.getStats().misses);
+        Assert.assertEquals(targets.size(), loaded.getStats().hits);
+
+        // Cache created with file is saved to it on close
+        DAlignmentCache opened = new DAlignmentCache(1000, DAlignmentCache.EvictionPolicy.LRU, file);
+        opened.load(file);
+        Assert.assertEquals(cache.size(), opened.size());
+        NucleotideSequence newTarget = targets.get(0).concatenate(targets.get(1));
+        new SingleDAligner(parameters, dGenes, opened).align(newTarget, Chains.IGH, 0, newTarget.size(), 0, 1);
+        opened.close();
+        DAlignmentCache reopened = new DAlignmentCache(1000, DAlignmentCache.EvictionPolicy.LRU);
+        reopened.load(file);
+        Assert.assertEquals(cache.size() + 1, reopened.size());
+    }
+
+    /**
+     * Compares hits regardless of the order of hits with equal scores
+     */
+    static void assertHitsEqual(VDJCHit[] expected, VDJCHit[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        expected = expected.clone();
+        actual = actual.clone();
+        Comparator<VDJCHit> byGene = new Comparator<VDJCHit>() {
+            @Override
+            public int compare(VDJCHit o1, VDJCHit o2) {
+                return o1.getGene().getId().compareTo(o2.getGene().getId());
+            }
+        };
+        Arrays.sort(expected, byGene);
+        Arrays.sort(actual, byGene);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i].getGene().getId(), actual[i].getGene().getId());
+            Assert.assertEquals(expected[i].getAlignment(0), actual[i].getAlignment(0));
+        }
+    }
+}
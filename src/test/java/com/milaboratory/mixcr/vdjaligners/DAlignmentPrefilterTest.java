@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.alignment.Aligner;
+import com.milaboratory.core.alignment.Alignment;
+import com.milaboratory.core.alignment.AffineGapAlignmentScoring;
+import com.milaboratory.core.alignment.AlignmentScoring;
+import com.milaboratory.core.alignment.LinearGapAlignmentScoring;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.test.TestUtil;
+import io.repseq.core.Chains;
+import io.repseq.core.GeneFeature;
+import io.repseq.core.GeneType;
+import io.repseq.core.VDJCGene;
+import io.repseq.core.VDJCLibraryRegistry;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well1024a;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DAlignmentPrefilterTest {
+    static final AlignmentScoring<NucleotideSequence> LINEAR =
+            new LinearGapAlignmentScoring<>(NucleotideSequence.ALPHABET, 5, -9, -12);
+    static final AlignmentScoring<NucleotideSequence> AFFINE =
+            new AffineGapAlignmentScoring<>(NucleotideSequence.ALPHABET, 10, -30, -40, -10);
+
+    @Test
+    public void testIdenticalResults() throws Exception {
+        for (Chains chains : new Chains[]{Chains.IGH, Chains.TRB})
+            for (AlignmentScoring<NucleotideSequence> scoring : new AlignmentScoring[]{LINEAR, AFFINE}) {
+                DAlignmentCache.Context context = createContext(chains, scoring, 25.0f);
+                Assert.assertNotNull(context.prefilter);
+                RandomGenerator random = new Well1024a(123);
+                for (int i = 0; i < 5000; i++) {
+                    NucleotideSequence target = randomTarget(context, random);
+                    assertEquals(context.align(target, false), context.align(target, true));
+                }
+            }
+    }
+
+    @Test
+    public void testLinearScoreIsExact() throws Exception {
+        DAlignmentCache.Context context = createContext(Chains.IGH, LINEAR, 25.0f);
+        RandomGenerator random = new Well1024a(456);
+        for (int i = 0; i < 1000; i++) {
+            NucleotideSequence target = randomTarget(context, random);
+            for (NucleotideSequence gene : context.sequences) {
+                Alignment<NucleotideSequence> alignment =
+                        Aligner.alignLocal(LINEAR, gene, target);
+                Assert.assertEquals(alignment == null ? 0 : (int) alignment.getScore(),
+                        context.prefilter.maxScore(gene, target));
+            }
+        }
+    }
+
+    static DAlignmentCache.Context createContext(Chains chains, AlignmentScoring<NucleotideSequence> scoring,
+                                                 float minScore) {
+        List<VDJCGene> dGenes = new ArrayList<>();
+        for (VDJCGene gene : VDJCLibraryRegistry.getDefault().getLibrary("default", "hs").getGenes(chains))
+            if (gene.getGeneType() == GeneType.Diversity && gene.getFeature(GeneFeature.DRegionWithP) != null)
+                dGenes.add(gene);
+        return new DAlignmentCache(1000, DAlignmentCache.EvictionPolicy.LRU)
+                .getContext(scoring, minScore, GeneFeature.DRegionWithP, dGenes);
+    }
+
+    /**
+     * Random flanks around (mutated) fragment of a random D gene, or just a random sequence
+     */
+    static NucleotideSequence randomTarget(DAlignmentCache.Context context, RandomGenerator random) {
+        if (random.nextInt(4) == 0)
+            return TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 5, 40);
+        NucleotideSequence gene = context.sequences[random.nextInt(context.sequences.length)];
+        int from = random.nextInt(gene.size() / 2), to = gene.size() - random.nextInt(gene.size() / 2);
+        NucleotideSequence fragment = gene.getRange(from, to);
+        // Random substitutions
+        for (int i = random.nextInt(4); i > 0; --i) {
+            int position = random.nextInt(fragment.size());
+            fragment = fragment.getRange(0, position)
+                    .concatenate(TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 1, 1))
+                    .concatenate(fragment.getRange(position + 1, fragment.size()));
+        }
+        return TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 1, 10)
+                .concatenate(fragment)
+                .concatenate(TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 1, 10));
+    }
+
+    static void assertEquals(PreVDJCHit[] expected, PreVDJCHit[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i].id, actual[i].id);
+            Assert.assertEquals(expected[i].alignment, actual[i].alignment);
+        }
+    }
+}